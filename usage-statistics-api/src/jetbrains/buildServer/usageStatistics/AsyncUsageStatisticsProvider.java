@@ -0,0 +1,35 @@
+package jetbrains.buildServer.usageStatistics;
+
+import java.util.concurrent.CompletableFuture;
+import jetbrains.buildServer.UserImplemented;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Usage statistics provider whose work is mostly waiting, e.g. for database queries or cloud clients.
+ * The collector does not keep a thread busy while such a provider is collecting, so many of them can be in flight at once.
+ * <p>
+ * The publisher may be called from any thread until the returned future is completed, but the calls must not overlap.
+ * Values published after the future is completed are ignored.
+ *
+ * @since 2018.2
+ */
+@UserImplemented
+public interface AsyncUsageStatisticsProvider extends UsageStatisticsProvider {
+  /**
+   * This method is called every time when TeamCity collects usage statistics values for some reason.
+   * It should start collecting and return without waiting for it.
+   *
+   * @param publisher Object that should be used to publish custom usage statistics.
+   * @return future completed when all the statistics are published, completed exceptionally if collecting failed.
+   * The future is cancelled when the provider does not complete it in time.
+   */
+  @NotNull
+  CompletableFuture<?> acceptAsynchronously(@NotNull UsageStatisticsPublisher publisher);
+
+  /**
+   * Collects the statistics synchronously, waits for {@link #acceptAsynchronously(UsageStatisticsPublisher)}.
+   */
+  default void accept(@NotNull UsageStatisticsPublisher publisher) {
+    acceptAsynchronously(publisher).join();
+  }
+}
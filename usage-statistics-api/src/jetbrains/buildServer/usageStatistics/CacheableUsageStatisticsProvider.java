@@ -0,0 +1,18 @@
+package jetbrains.buildServer.usageStatistics;
+
+import jetbrains.buildServer.UserImplemented;
+
+/**
+ * Usage statistics provider whose values rarely change. The collector reuses the values published by the last
+ * successful {@link #accept(UsageStatisticsPublisher)} call instead of calling it again until the values expire
+ * or are invalidated.
+ *
+ * @since 2018.2
+ */
+@UserImplemented
+public interface CacheableUsageStatisticsProvider extends UsageStatisticsProvider {
+  /**
+   * @return time in milliseconds during which the published values are considered fresh, 0 or negative to disable caching
+   */
+  long getResultTimeToLive();
+}
@@ -0,0 +1,18 @@
+package jetbrains.buildServer.usageStatistics;
+
+import jetbrains.buildServer.UserImplemented;
+
+/**
+ * Usage statistics provider which is able to stop collecting before it is finished.
+ *
+ * @since 2018.2
+ */
+@UserImplemented
+public interface CancellableUsageStatisticsProvider extends UsageStatisticsProvider {
+  /**
+   * This method is called from another thread when the {@link #accept(UsageStatisticsPublisher)} call takes more time
+   * than allowed. Implementation should make the running call return as soon as possible. All values published
+   * by the cancelled call are ignored.
+   */
+  void cancel();
+}
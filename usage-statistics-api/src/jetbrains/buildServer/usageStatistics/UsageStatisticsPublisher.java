@@ -1,6 +1,7 @@
 
 package jetbrains.buildServer.usageStatistics;
 
+import java.util.Map;
 import jetbrains.buildServer.SystemProvided;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -22,4 +23,57 @@ public interface UsageStatisticsPublisher {
    * @see UsageStatisticsProvider#accept(UsageStatisticsPublisher)
    */
   void publishStatistic(@NotNull String id, @Nullable Object value);
+
+  /**
+   * Publishes an integer statistic without boxing it.
+   *
+   * @see #publishStatistic(String, Object)
+   * @since 2018.2
+   */
+  default void publishInt(@NotNull String id, int value) {
+    publishStatistic(id, value);
+  }
+
+  /**
+   * Publishes a long statistic without boxing it.
+   *
+   * @see #publishStatistic(String, Object)
+   * @since 2018.2
+   */
+  default void publishLong(@NotNull String id, long value) {
+    publishStatistic(id, value);
+  }
+
+  /**
+   * Publishes a floating point statistic without boxing it.
+   *
+   * @see #publishStatistic(String, Object)
+   * @since 2018.2
+   */
+  default void publishDouble(@NotNull String id, double value) {
+    publishStatistic(id, value);
+  }
+
+  /**
+   * Publishes a boolean statistic without boxing it.
+   *
+   * @see #publishStatistic(String, Object)
+   * @since 2018.2
+   */
+  default void publishFlag(@NotNull String id, boolean value) {
+    publishStatistic(id, value);
+  }
+
+  /**
+   * Publishes all the statistics of the map in its iteration order.
+   *
+   * @param statistics map: statistic identifier -> value
+   * @see #publishStatistic(String, Object)
+   * @since 2018.2
+   */
+  default void publishAll(@NotNull Map<String, ?> statistics) {
+    for (Map.Entry<String, ?> entry : statistics.entrySet()) {
+      publishStatistic(entry.getKey(), entry.getValue());
+    }
+  }
 }
\ No newline at end of file
@@ -1,6 +1,6 @@
 
 BS.UsageStatistics = {
-  _lastCollectingFinishTimestamp: null,
+  _lastSnapshotGeneration: null,
 
   updateReportingStatus: function() {
     BS.Util.show('usageStatisticsReportingStatusUpdatingProgress');
@@ -35,6 +35,16 @@ BS.UsageStatistics = {
     });
   },
 
+  refreshGroup: function(groupName) {
+    BS.ajaxRequest(window['base_uri'] + "/admin/usageStatistics.html", {
+      method: "post",
+      parameters: "refreshGroup=" + encodeURIComponent(groupName),
+      onComplete: function() {
+        $('usageStatisticsStatus').refresh();
+      }
+    });
+  },
+
   scheduleStatusUpdating: function() {
     setTimeout(function () {
       BS.UsageStatistics.updateStatus();
@@ -46,12 +56,12 @@ BS.UsageStatistics = {
     BS.UsageStatistics.scheduleStatusUpdating();
   },
 
-  onStatusUpdated: function(lastCollectingFinishTimestamp) {
-    if (BS.UsageStatistics._lastCollectingFinishTimestamp != null && BS.UsageStatistics._lastCollectingFinishTimestamp != lastCollectingFinishTimestamp) {
+  onStatusUpdated: function(snapshotGeneration) {
+    if (BS.UsageStatistics._lastSnapshotGeneration != null && BS.UsageStatistics._lastSnapshotGeneration != snapshotGeneration) {
       $('usageStatisticsContent').refresh();
     }
 
-    BS.UsageStatistics._lastCollectingFinishTimestamp = lastCollectingFinishTimestamp;
+    BS.UsageStatistics._lastSnapshotGeneration = snapshotGeneration;
   },
 
   sortGroups: function(count) {
@@ -36,7 +36,7 @@
     <bs:refreshable containerId="usageStatisticsStatus" pageUrl="${pageUrl}">
         <c:if test="${statisticsData.collectingNow}"> </c:if
         >Usage statistics data was <c:choose
-      ><c:when test="${statisticsData.statisticsCollected}">collected <bs:date smart="true" no_smart_title="true" value="${statisticsData.lastCollectingFinishDate}"/></c:when
+      ><c:when test="${statisticsData.statisticsCollected}">collected <bs:date smart="true" no_smart_title="true" value="${statisticsData.lastCollectingFinishDate}"/><c:if test="${statisticsData.statisticsStale}"> before the server restart</c:if></c:when
       ><c:otherwise>not collected yet</c:otherwise
       ></c:choose><c:choose
       ><c:when test="${statisticsData.collectingNow}"> and is being collected now...<forms:progressRing className="progressRingInline"/></c:when
@@ -48,10 +48,7 @@
           </div>
         </c:if>
         <script type="text/javascript">
-          <c:choose>
-          <c:when test="${statisticsData.statisticsCollected}">BS.UsageStatistics.onStatusUpdated(${statisticsData.lastCollectingFinishDate.time});</c:when>
-          <c:otherwise>BS.UsageStatistics.onStatusUpdated(-1);</c:otherwise>
-          </c:choose>
+          BS.UsageStatistics.onStatusUpdated(${statisticsData.snapshotGeneration});
         </script>
     </bs:refreshable>
   </div>
@@ -70,6 +67,9 @@
             <c:forEach var="group" items="${groups}" varStatus="status">
               <div class="statisticGroup" id="group-${status.index}">
                 <l:settingsBlock title="${group.key}">
+                  <div class="refreshGroupLink">
+                    <a href="#" data-group="<c:out value="${group.key}"/>" onclick="BS.UsageStatistics.refreshGroup(this.getAttribute('data-group')); return false;">Refresh</a>
+                  </div>
                   <div class="statisticGroupInner">
                     <c:set var="statisticsGroup" value="${group.value.second}" scope="request"/>
                     <jsp:include page="${group.value.first}"/>
@@ -14,6 +14,7 @@ import javax.servlet.http.HttpServletResponse;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsCollector;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsPublisher;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsSnapshot;
 import jetbrains.buildServer.usageStatistics.impl.UsageStatisticsCollectorImpl;
 import jetbrains.buildServer.util.SortedProperties;
 import jetbrains.buildServer.web.openapi.WebControllerManager;
@@ -40,14 +41,15 @@ public class DownloadUsageStatisticsController extends BaseController {
 
   @Override
   protected ModelAndView doHandle(@NotNull final HttpServletRequest request, @NotNull final HttpServletResponse response) throws Exception {
-    if (!myStatisticsCollector.isStatisticsCollected()) {
+    final UsageStatisticsSnapshot snapshot = myStatisticsCollector.getSnapshot();
+    if (snapshot == null) {
       //noinspection ThrowableResultOfMethodCallIgnored
       final String cause = UsageStatisticsCollectorImpl.createIllegalStateException().getLocalizedMessage().toLowerCase();
       WebUtil.notFound(request, response, "Failed to download usage statistics: " + cause, LOG);
       return null;
     }
 
-    final Date collectingFinishDate = myStatisticsCollector.getLastCollectingFinishDate();
+    final Date collectingFinishDate = snapshot.getFinishDate();
     final String fileName = String.format("tc-usage-statistics-%s.properties", FILE_NAME_DATE_FORMAT.format(collectingFinishDate));
 
     OutputStream out = null;
@@ -58,7 +60,7 @@ public class DownloadUsageStatisticsController extends BaseController {
       WebUtil.setContentDisposition(request, response, fileName, false);
       WebUtil.addCacheHeadersForIE(request, response);
 
-      writeStatistics(out, collectingFinishDate);
+      writeStatistics(out, snapshot);
     }
     catch (final Exception e) {
       LOG.error("Failed to download usage statistics", e);
@@ -74,23 +76,43 @@ public class DownloadUsageStatisticsController extends BaseController {
     return null;
   }
 
-  private void writeStatistics(@NotNull final OutputStream out, @NotNull final Date collectingFinishDate) throws IOException {
+  private void writeStatistics(@NotNull final OutputStream out, @NotNull final UsageStatisticsSnapshot snapshot) throws IOException {
     final BufferedWriter writer = new BufferedWriter(new PrintWriter(out));
 
     writer.write("#TeamCity URL: " + myServer.getRootUrl());
     writer.newLine();
 
-    writer.write("#Usage statistics collecting finish date: " + FILE_CONTENT_DATE_FORMAT.format(collectingFinishDate));
+    writer.write("#Usage statistics collecting finish date: " + FILE_CONTENT_DATE_FORMAT.format(snapshot.getFinishDate()));
     writer.newLine();
 
     writer.flush();
 
     final Properties properties = new SortedProperties();
 
-    myStatisticsCollector.publishCollectedStatistics(new UsageStatisticsPublisher() {
+    snapshot.publishStatistics(new UsageStatisticsPublisher() {
       public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
         properties.setProperty(id, String.valueOf(value));
       }
+
+      @Override
+      public void publishInt(@NotNull final String id, final int value) {
+        properties.setProperty(id, Integer.toString(value));
+      }
+
+      @Override
+      public void publishLong(@NotNull final String id, final long value) {
+        properties.setProperty(id, Long.toString(value));
+      }
+
+      @Override
+      public void publishDouble(@NotNull final String id, final double value) {
+        properties.setProperty(id, Double.toString(value));
+      }
+
+      @Override
+      public void publishFlag(@NotNull final String id, final boolean value) {
+        properties.setProperty(id, Boolean.toString(value));
+      }
     });
 
     properties.store(out, null);
@@ -6,6 +6,7 @@ import java.util.Date;
 import java.util.LinkedHashMap;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsCollector;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsPublisher;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsSnapshot;
 import jetbrains.buildServer.usageStatistics.impl.UsageStatisticsCollectorImpl;
 import jetbrains.buildServer.usageStatistics.impl.UsageStatisticsSettingsPersistor;
 import jetbrains.buildServer.usageStatistics.presentation.UsageStatisticsGroup;
@@ -18,6 +19,8 @@ public class UsageStatisticsBean {
   private final boolean myReportingEnabled;
   private final boolean myCollectingNow;
   private final boolean myStatisticsCollected;
+  private final boolean myStatisticsStale;
+  private final long mySnapshotGeneration;
   private final String mySizeEstimate;
   private final Date myLastCollectingFinishDate;
   private final LinkedHashMap<String, Pair<String, UsageStatisticsGroup>> myStatisticGroups;
@@ -25,16 +28,19 @@ public class UsageStatisticsBean {
   public UsageStatisticsBean(@NotNull final UsageStatisticsSettingsPersistor settingsPersistor,
                              @NotNull final UsageStatisticsCollector statisticsCollector,
                              @NotNull final UsageStatisticsPresentationManagerEx presentationManager) {
-    myReportingEnabled = settingsPersistor.loadSettings().isReportingEnabled();
+    myReportingEnabled = settingsPersistor.getSettings().isReportingEnabled();
     myCollectingNow = statisticsCollector.isCollectingNow();
-    myStatisticsCollected = statisticsCollector.isStatisticsCollected();
+    final UsageStatisticsSnapshot snapshot = statisticsCollector.getSnapshot();
+    myStatisticsCollected = snapshot != null;
+    myStatisticsStale = snapshot != null && snapshot.isStale();
+    mySnapshotGeneration = snapshot == null ? -1 : snapshot.getGeneration();
 
-    if (myStatisticsCollected) {
-      myLastCollectingFinishDate = statisticsCollector.getLastCollectingFinishDate();
-      myStatisticGroups = presentationManager.groupStatistics(statisticsCollector);
+    if (snapshot != null) {
+      myLastCollectingFinishDate = snapshot.getFinishDate();
+      myStatisticGroups = presentationManager.groupStatistics(snapshot);
 
       final int[] sizeEstimate = new int[] { 0 };
-      statisticsCollector.publishCollectedStatistics(new UsageStatisticsPublisher() {
+      snapshot.publishStatistics(new UsageStatisticsPublisher() {
         public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
           sizeEstimate[0] += id.length() + String.valueOf(value).length() + 3;
         }
@@ -61,6 +67,20 @@ public class UsageStatisticsBean {
     return myStatisticsCollected;
   }
 
+  /**
+   * @return true if the statistics were collected before the server restart
+   */
+  public boolean isStatisticsStale() {
+    return myStatisticsStale;
+  }
+
+  /**
+   * @return generation of the shown snapshot, changes when any group is refreshed, -1 if statistics was not collected yet
+   */
+  public long getSnapshotGeneration() {
+    return mySnapshotGeneration;
+  }
+
   @NotNull
   public Date getLastCollectingFinishDate() {
     if (myLastCollectingFinishDate == null) {
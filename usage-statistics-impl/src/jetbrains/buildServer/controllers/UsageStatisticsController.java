@@ -18,7 +18,6 @@ import jetbrains.buildServer.serverSide.auth.AccessDeniedException;
 import jetbrains.buildServer.serverSide.auth.Permission;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsCollector;
 import jetbrains.buildServer.usageStatistics.impl.UsageStatisticsCommonDataPersistor;
-import jetbrains.buildServer.usageStatistics.impl.UsageStatisticsSettings;
 import jetbrains.buildServer.usageStatistics.impl.UsageStatisticsSettingsPersistor;
 import jetbrains.buildServer.usageStatistics.presentation.UsageStatisticsPresentationManagerEx;
 import jetbrains.buildServer.users.SUser;
@@ -117,6 +116,21 @@ public class UsageStatisticsController extends BaseFormXmlController {
       return;
     }
 
+    final String groupToRefresh = request.getParameter("refreshGroup");
+    final String providerToRefresh = request.getParameter("refreshProvider");
+    if (groupToRefresh != null || providerToRefresh != null) {
+      final boolean refreshStarted = groupToRefresh != null
+                                     ? myStatisticsCollector.forceAsynchronousGroupRefresh(groupToRefresh)
+                                     : myStatisticsCollector.forceAsynchronousProviderRefresh(providerToRefresh);
+      if (refreshStarted) {
+        myAuditLog.logUserAction(ActionType.USAGE_STATISTICS_COLLECTING_STARTED, null, null);
+      }
+      else {
+        xmlResponse.addContent("error");
+      }
+      return;
+    }
+
     final String reportingEnabledStr = request.getParameter("reportingEnabled");
     if (reportingEnabledStr != null) {
       final UsageStatisticsPermissionsChecker usageStatisticsPermissionsChecker =
@@ -144,9 +158,7 @@ public class UsageStatisticsController extends BaseFormXmlController {
   }
 
   private void setReportingEnabled(final boolean reportingEnabled) {
-    final UsageStatisticsSettings settings = mySettingsPersistor.loadSettings();
-    settings.setReportingEnabled(reportingEnabled);
-    mySettingsPersistor.saveSettings(settings);
+    mySettingsPersistor.saveSettings(mySettingsPersistor.getSettings().withReportingEnabled(reportingEnabled));
     myAuditLog.logUserAction(reportingEnabled ? ActionType.USAGE_STATISTICS_REPORTING_ENABLED : ActionType.USAGE_STATISTICS_REPORTING_DISABLED, null, null);
   }
 
@@ -0,0 +1,202 @@
+package jetbrains.buildServer.usageStatistics;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable columnar storage of collected usage statistics. Identifiers are kept as indices in a shared
+ * {@link UsageStatisticIdDictionary}, numeric and boolean values are kept in primitive columns and all other
+ * values are kept in a small side table. Values are published back with their original types,
+ * primitive values through the typed methods of {@link UsageStatisticsPublisher}, so they are not boxed.
+ */
+public class CompactUsageStatistics {
+  static final byte NULL = 0;
+  static final byte INTEGER = 1;
+  static final byte LONG = 2;
+  static final byte BOOLEAN = 3;
+  static final byte DOUBLE = 4;
+  static final byte FLOAT = 5;
+  static final byte OBJECT = 6;
+
+  @NotNull private final UsageStatisticIdDictionary myDictionary;
+  private final int mySize;
+  @NotNull private final int[] myIds;
+  @NotNull private final byte[] myKinds;
+  @NotNull private final long[] myLongs;
+  @Nullable private final double[] myDoubles; // null if there are no floating point values
+  @NotNull private final Object[] myObjects; // in the order of OBJECT kinds
+
+  private CompactUsageStatistics(@NotNull final Builder builder) {
+    myDictionary = builder.myDictionary;
+    mySize = builder.mySize;
+    myIds = Arrays.copyOf(builder.myIds, mySize);
+    myKinds = Arrays.copyOf(builder.myKinds, mySize);
+    myLongs = Arrays.copyOf(builder.myLongs, mySize);
+    myDoubles = builder.myDoubles == null ? null : Arrays.copyOf(builder.myDoubles, mySize);
+    myObjects = Arrays.copyOf(builder.myObjects, builder.myObjectsCount);
+  }
+
+  @NotNull
+  public static CompactUsageStatistics empty(@NotNull final UsageStatisticIdDictionary dictionary) {
+    return new Builder(dictionary).build();
+  }
+
+  public int size() {
+    return mySize;
+  }
+
+  @NotNull
+  public UsageStatisticIdDictionary getDictionary() {
+    return myDictionary;
+  }
+
+  public void publish(@NotNull final UsageStatisticsPublisher publisher) {
+    publish(publisher, null, 0);
+  }
+
+  /**
+   * Publishes the rows set in the rows bit set only, the rows of these statistics start at the firstRow bit.
+   */
+  void publish(@NotNull final UsageStatisticsPublisher publisher, @Nullable final BitSet rows, final int firstRow) {
+    int objectIndex = 0;
+    for (int i = 0; i < mySize; i++) {
+      final boolean skipped = rows != null && !rows.get(firstRow + i);
+      if (myKinds[i] == OBJECT) {
+        objectIndex++; // the objects are kept in the order of their rows
+      }
+      if (skipped) continue;
+      final String id = myDictionary.getId(myIds[i]);
+      switch (myKinds[i]) {
+        case INTEGER: publisher.publishInt(id, (int)myLongs[i]); break;
+        case LONG: publisher.publishLong(id, myLongs[i]); break;
+        case BOOLEAN: publisher.publishFlag(id, myLongs[i] != 0); break;
+        case DOUBLE: publisher.publishDouble(id, myDoubles[i]); break;
+        case FLOAT: publisher.publishStatistic(id, (float)myDoubles[i]); break; // there is no float method, keep the type
+        case OBJECT: publisher.publishStatistic(id, myObjects[objectIndex - 1]); break;
+        default: publisher.publishStatistic(id, null);
+      }
+    }
+  }
+
+  /**
+   * @return index of the row identifier in the {@link #getDictionary() dictionary}
+   */
+  int getIdIndex(final int row) {
+    return myIds[row];
+  }
+
+  /**
+   * Collects published values, can be used from one thread only.
+   */
+  public static class Builder implements UsageStatisticsPublisher {
+    private static final int INITIAL_CAPACITY = 16;
+
+    @NotNull private final UsageStatisticIdDictionary myDictionary;
+    private int mySize = 0;
+    @NotNull private int[] myIds = new int[INITIAL_CAPACITY];
+    @NotNull private byte[] myKinds = new byte[INITIAL_CAPACITY];
+    @NotNull private long[] myLongs = new long[INITIAL_CAPACITY];
+    @Nullable private double[] myDoubles = null;
+    private int myObjectsCount = 0;
+    @NotNull private Object[] myObjects = new Object[0];
+
+    public Builder(@NotNull final UsageStatisticIdDictionary dictionary) {
+      myDictionary = dictionary;
+    }
+
+    public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
+      if (value instanceof Integer) {
+        publishInt(id, (Integer)value);
+      }
+      else if (value instanceof Long) {
+        publishLong(id, (Long)value);
+      }
+      else if (value instanceof Boolean) {
+        publishFlag(id, (Boolean)value);
+      }
+      else if (value instanceof Double) {
+        publishDouble(id, (Double)value);
+      }
+      else if (value instanceof Float) {
+        final int i = add(id, FLOAT);
+        getDoubles()[i] = (Float)value;
+      }
+      else if (value == null) {
+        add(id, NULL);
+      }
+      else {
+        add(id, OBJECT);
+        addObject(value);
+      }
+    }
+
+    @Override
+    public void publishInt(@NotNull final String id, final int value) {
+      final int i = add(id, INTEGER);
+      myLongs[i] = value;
+    }
+
+    @Override
+    public void publishLong(@NotNull final String id, final long value) {
+      final int i = add(id, LONG);
+      myLongs[i] = value;
+    }
+
+    @Override
+    public void publishFlag(@NotNull final String id, final boolean value) {
+      final int i = add(id, BOOLEAN);
+      myLongs[i] = value ? 1 : 0;
+    }
+
+    @Override
+    public void publishDouble(@NotNull final String id, final double value) {
+      final int i = add(id, DOUBLE);
+      getDoubles()[i] = value;
+    }
+
+    @NotNull
+    public CompactUsageStatistics build() {
+      return new CompactUsageStatistics(this);
+    }
+
+    /**
+     * @return index of the added row, the value columns must be accessed after this call as they may be reallocated
+     */
+    private int add(@NotNull final String id, final byte kind) {
+      ensureCapacity();
+      final int i = mySize++;
+      myIds[i] = myDictionary.intern(id);
+      myKinds[i] = kind;
+      return i;
+    }
+
+    private void ensureCapacity() {
+      if (mySize < myIds.length) return;
+      final int capacity = myIds.length * 2;
+      myIds = Arrays.copyOf(myIds, capacity);
+      myKinds = Arrays.copyOf(myKinds, capacity);
+      myLongs = Arrays.copyOf(myLongs, capacity);
+      if (myDoubles != null) {
+        myDoubles = Arrays.copyOf(myDoubles, capacity);
+      }
+    }
+
+    @NotNull
+    private double[] getDoubles() {
+      if (myDoubles == null) {
+        myDoubles = new double[myIds.length];
+      }
+      return myDoubles;
+    }
+
+    private void addObject(@NotNull final Object value) {
+      if (myObjectsCount == myObjects.length) {
+        myObjects = Arrays.copyOf(myObjects, Math.max(4, myObjects.length * 2));
+      }
+      myObjects[myObjectsCount] = value;
+      myObjectsCount++;
+    }
+  }
+}
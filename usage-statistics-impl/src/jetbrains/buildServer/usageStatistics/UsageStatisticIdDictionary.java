@@ -0,0 +1,48 @@
+package jetbrains.buildServer.usageStatistics;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Interns usage statistic identifiers, so every identifier is kept in memory once for all collectings
+ * and the collected values refer to it by index. Identifiers are never removed, the collector replaces
+ * the dictionary when it grows too large.
+ */
+public class UsageStatisticIdDictionary {
+  @NotNull private final Object myLock = new Object();
+  @NotNull private final Map<String, Integer> myIndices = new HashMap<String, Integer>(); // guarded by myLock
+  @NotNull private volatile String[] myIds = new String[256];
+  private volatile int mySize = 0;
+
+  public int intern(@NotNull final String id) {
+    synchronized (myLock) {
+      final Integer index = myIndices.get(id);
+      if (index != null) return index;
+
+      final int newIndex = mySize;
+      String[] ids = myIds;
+      if (newIndex == ids.length) {
+        ids = Arrays.copyOf(ids, ids.length * 2);
+      }
+      ids[newIndex] = id;
+      myIds = ids;
+      myIndices.put(id, newIndex);
+      mySize = newIndex + 1;
+      return newIndex;
+    }
+  }
+
+  @NotNull
+  public String getId(final int index) {
+    if (index >= mySize) {
+      throw new IndexOutOfBoundsException("Unknown usage statistic id index: " + index);
+    }
+    return myIds[index];
+  }
+
+  public int size() {
+    return mySize;
+  }
+}
@@ -1,8 +1,9 @@
-
 package jetbrains.buildServer.usageStatistics;
 
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public interface UsageStatisticsCollector {
   boolean isCollectingNow();
@@ -12,9 +13,82 @@ public interface UsageStatisticsCollector {
   @NotNull
   Date getLastCollectingFinishDate();
 
+  /**
+   * Starts a full collecting unless one is running already. A running refresh or rolling collecting is finished first.
+   */
   void forceAsynchronousCollectingNow();
 
+  /**
+   * Re-runs only the providers of the specified group and replaces their results in the current snapshot.
+   * If statistics was not collected yet, all providers are run.
+   *
+   * @return false if there are no providers in the group
+   */
+  boolean forceAsynchronousGroupRefresh(@NotNull String groupName);
+
+  /**
+   * Re-runs only the providers of the specified class and replaces their results in the current snapshot.
+   * If statistics was not collected yet, all providers are run.
+   *
+   * @param providerClassName fully qualified or simple name of the provider class
+   * @return false if there are no such providers
+   */
+  boolean forceAsynchronousProviderRefresh(@NotNull String providerClassName);
+
+  /**
+   * Waits for the running full collecting or starts a new one and waits for it.
+   */
   void collectStatisticsAndWait();
 
   void publishCollectedStatistics(@NotNull UsageStatisticsPublisher publisher);
-}
\ No newline at end of file
+
+  /**
+   * @return the last published snapshot or null if statistics was not collected yet
+   */
+  @Nullable
+  UsageStatisticsSnapshot getSnapshot();
+
+  /**
+   * Starts a full collecting (or joins the running one) without blocking the calling thread.
+   * Refresh and rolling snapshots published before the full collecting finishes do not complete the future.
+   *
+   * @return future completed with the snapshot of the full collecting, see {@link #getSnapshotFuture(long)} for the shutdown behaviour
+   */
+  @NotNull
+  CompletableFuture<UsageStatisticsSnapshot> collectStatisticsAsynchronously();
+
+  /**
+   * Returns a future completed when a snapshot with the generation greater than the specified one is published.
+   * The future is completed from the collecting thread, so long dependent stages should be run asynchronously.
+   * If the server is shutting down, the future is completed with the last published snapshot
+   * or with {@link IllegalStateException} if statistics was not collected.
+   *
+   * @param generation generation to wait after, 0 to wait for the first snapshot
+   */
+  @NotNull
+  CompletableFuture<UsageStatisticsSnapshot> getSnapshotFuture(long generation);
+
+  /**
+   * Waits until a snapshot with the generation greater than the specified one is published.
+   * If the server is shutting down, the last published snapshot is returned.
+   *
+   * @param generation generation to wait after, 0 to wait for the first snapshot
+   * @throws IllegalStateException if the server is shutting down and statistics was not collected
+   */
+  @NotNull
+  UsageStatisticsSnapshot waitForSnapshot(long generation);
+
+  /**
+   * Makes the next collecting call the providers of the specified class even if their cached results are still fresh.
+   *
+   * @see CacheableUsageStatisticsProvider
+   */
+  void invalidateCachedStatistics(@NotNull Class<? extends UsageStatisticsProvider> providerClass);
+
+  /**
+   * Makes the next collecting call all providers.
+   *
+   * @see CacheableUsageStatisticsProvider
+   */
+  void invalidateAllCachedStatistics();
+}
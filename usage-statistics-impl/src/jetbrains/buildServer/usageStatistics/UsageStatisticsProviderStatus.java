@@ -0,0 +1,7 @@
+package jetbrains.buildServer.usageStatistics;
+
+public enum UsageStatisticsProviderStatus {
+  COLLECTED,
+  FAILED,
+  TIMED_OUT
+}
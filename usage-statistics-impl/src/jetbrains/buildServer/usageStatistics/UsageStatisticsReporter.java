@@ -1,6 +1,16 @@
 
 package jetbrains.buildServer.usageStatistics;
 
+import java.util.concurrent.CompletableFuture;
+import org.jetbrains.annotations.NotNull;
+
 public interface UsageStatisticsReporter {
-  boolean reportStatistics(long statisticsExpirationPeriod);
+  /**
+   * Reports the statistics, collecting them first if they are older than the specified period.
+   * Does not block the calling thread while the statistics are being collected.
+   *
+   * @return future completed with true if the statistics was reported
+   */
+  @NotNull
+  CompletableFuture<Boolean> reportStatistics(long statisticsExpirationPeriod);
 }
\ No newline at end of file
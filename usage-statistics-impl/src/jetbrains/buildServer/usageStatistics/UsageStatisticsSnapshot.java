@@ -0,0 +1,177 @@
+package jetbrains.buildServer.usageStatistics;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable result of a usage statistics collecting. Every published snapshot has a greater generation than the previous one.
+ * Snapshot loaded from the disk after the server restart is stale and has generation 0.
+ */
+public class UsageStatisticsSnapshot {
+  private final long myGeneration;
+  @NotNull private final Date myStartDate;
+  @NotNull private final Date myFinishDate;
+  @NotNull private final List<ProviderResult> myProviderResults;
+  private final boolean myStale;
+
+  public UsageStatisticsSnapshot(final long generation,
+                                 @NotNull final Date startDate,
+                                 @NotNull final Date finishDate,
+                                 @NotNull final List<ProviderResult> providerResults) {
+    this(generation, startDate, finishDate, providerResults, false);
+  }
+
+  public UsageStatisticsSnapshot(final long generation,
+                                 @NotNull final Date startDate,
+                                 @NotNull final Date finishDate,
+                                 @NotNull final List<ProviderResult> providerResults,
+                                 final boolean stale) {
+    myGeneration = generation;
+    myStartDate = startDate;
+    myFinishDate = finishDate;
+    myProviderResults = Collections.unmodifiableList(new ArrayList<ProviderResult>(providerResults));
+    myStale = stale;
+  }
+
+  public long getGeneration() {
+    return myGeneration;
+  }
+
+  @NotNull
+  public Date getStartDate() {
+    return myStartDate;
+  }
+
+  @NotNull
+  public Date getFinishDate() {
+    return myFinishDate;
+  }
+
+  /**
+   * @return true if the snapshot was collected before the server restart
+   */
+  public boolean isStale() {
+    return myStale;
+  }
+
+  /**
+   * @return provider results in the providers order
+   */
+  @NotNull
+  public List<ProviderResult> getProviderResults() {
+    return myProviderResults;
+  }
+
+  /**
+   * @return map: provider name -> status
+   */
+  @NotNull
+  public Map<String, UsageStatisticsProviderStatus> getProviderStatuses() {
+    final Map<String, UsageStatisticsProviderStatus> result = new LinkedHashMap<String, UsageStatisticsProviderStatus>();
+    for (final ProviderResult providerResult : myProviderResults) {
+      result.put(providerResult.getProviderName(), providerResult.getStatus());
+    }
+    return result;
+  }
+
+  public void publishStatistics(@NotNull final UsageStatisticsPublisher publisher) {
+    for (final ProviderResult providerResult : myProviderResults) {
+      providerResult.getStatistics().publish(publisher);
+    }
+  }
+
+  /**
+   * Publishes every statistic once, with the value published last, at the position of that value,
+   * as if the statistics were collected into a map. Only the identifiers are scanned to find the last values,
+   * the values are published in a single pass.
+   */
+  public void publishLastValues(@NotNull final UsageStatisticsPublisher publisher) {
+    final BitSet lastRows = findLastRows();
+    int firstRow = 0;
+    for (final ProviderResult providerResult : myProviderResults) {
+      providerResult.getStatistics().publish(publisher, lastRows, firstRow);
+      firstRow += providerResult.getStatistics().size();
+    }
+  }
+
+  /**
+   * @return rows with the last value of their identifiers, the rows of all the providers are numbered in the providers order
+   */
+  @NotNull
+  private BitSet findLastRows() {
+    int rowCount = 0;
+    UsageStatisticIdDictionary dictionary = null;
+    boolean sharedDictionary = true;
+    for (final ProviderResult providerResult : myProviderResults) {
+      final CompactUsageStatistics statistics = providerResult.getStatistics();
+      rowCount += statistics.size();
+      if (dictionary == null) {
+        dictionary = statistics.getDictionary();
+      }
+      else if (dictionary != statistics.getDictionary()) {
+        sharedDictionary = false; // the collector has replaced the dictionary between the provider runs
+      }
+    }
+
+    final BitSet lastRows = new BitSet(rowCount);
+    final BitSet seenIndices = sharedDictionary ? new BitSet() : null;
+    final Set<String> seenIds = sharedDictionary ? null : new HashSet<String>();
+    int row = rowCount;
+    for (int i = myProviderResults.size() - 1; i >= 0; i--) {
+      final CompactUsageStatistics statistics = myProviderResults.get(i).getStatistics();
+      for (int statisticRow = statistics.size() - 1; statisticRow >= 0; statisticRow--) {
+        row--;
+        final int index = statistics.getIdIndex(statisticRow);
+        final boolean last;
+        if (seenIndices != null) {
+          last = !seenIndices.get(index);
+          seenIndices.set(index);
+        }
+        else {
+          last = seenIds.add(statistics.getDictionary().getId(index));
+        }
+        if (last) {
+          lastRows.set(row);
+        }
+      }
+    }
+    return lastRows;
+  }
+
+  public static class ProviderResult {
+    @NotNull private final String myProviderName;
+    @NotNull private final UsageStatisticsProviderStatus myStatus;
+    @NotNull private final CompactUsageStatistics myStatistics;
+
+    public ProviderResult(@NotNull final String providerName,
+                          @NotNull final UsageStatisticsProviderStatus status,
+                          @NotNull final CompactUsageStatistics statistics) {
+      myProviderName = providerName;
+      myStatus = status;
+      myStatistics = statistics;
+    }
+
+    @NotNull
+    public String getProviderName() {
+      return myProviderName;
+    }
+
+    @NotNull
+    public UsageStatisticsProviderStatus getStatus() {
+      return myStatus;
+    }
+
+    @NotNull
+    public CompactUsageStatistics getStatistics() {
+      return myStatistics;
+    }
+  }
+}
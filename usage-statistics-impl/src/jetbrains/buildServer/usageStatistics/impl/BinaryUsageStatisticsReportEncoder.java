@@ -0,0 +1,112 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compact length-prefixed binary encoding. Every record starts with a tag byte, numbers are written as unsigned varints
+ * and strings as a varint length followed by UTF-8 bytes:
+ * <pre>
+ * "TCSB" version
+ * DEFINE_ID  shared-prefix-length suffix    -- adds an id to the dictionary, the prefix is shared with the previously defined id
+ * STATISTIC  id-index value
+ * REMOVED    id-index
+ * END
+ * </pre>
+ * Statistic ids of one group usually share long prefixes, so they are sent much shorter than in the form encoding.
+ */
+public class BinaryUsageStatisticsReportEncoder implements UsageStatisticsReportEncoder {
+  private static final byte[] MAGIC = {'T', 'C', 'S', 'B'};
+  private static final int VERSION = 1;
+
+  private static final int DEFINE_ID = 1;
+  private static final int STATISTIC = 2;
+  private static final int REMOVED = 3;
+  private static final int END = 0;
+
+  @NotNull
+  public String getId() {
+    return "binary";
+  }
+
+  @Nullable
+  public String getContentType() {
+    return "application/x-teamcity-usage-statistics";
+  }
+
+  @NotNull
+  public Encoding startEncoding(@NotNull final OutputStream stream) throws IOException {
+    final OutputStream out = new BufferedOutputStream(stream);
+    out.write(MAGIC);
+    writeVarInt(out, VERSION);
+    return new Encoding() {
+      @NotNull private final Map<String, Integer> myDictionary = new HashMap<String, Integer>();
+      @NotNull private String myLastDefinedId = "";
+
+      public void writeStatistic(@NotNull final String id, @NotNull final String value) throws IOException {
+        final int index = getIndex(id);
+        out.write(STATISTIC);
+        writeVarInt(out, index);
+        writeString(out, value);
+      }
+
+      public void writeRemoved(@NotNull final String id) throws IOException {
+        final int index = getIndex(id);
+        out.write(REMOVED);
+        writeVarInt(out, index);
+      }
+
+      public void finish() throws IOException {
+        out.write(END);
+        out.flush();
+      }
+
+      private int getIndex(@NotNull final String id) throws IOException {
+        final Integer index = myDictionary.get(id);
+        if (index != null) return index;
+
+        final int prefixLength = getSharedPrefixLength(myLastDefinedId, id);
+        out.write(DEFINE_ID);
+        writeVarInt(out, prefixLength);
+        writeString(out, id.substring(prefixLength));
+        myLastDefinedId = id;
+
+        final int newIndex = myDictionary.size();
+        myDictionary.put(id, newIndex);
+        return newIndex;
+      }
+    };
+  }
+
+  private static int getSharedPrefixLength(@NotNull final String s1, @NotNull final String s2) {
+    final int maxLength = Math.min(s1.length(), s2.length());
+    int i = 0;
+    while (i < maxLength && s1.charAt(i) == s2.charAt(i)) {
+      i++;
+    }
+    if (i > 0 && Character.isHighSurrogate(s1.charAt(i - 1))) {
+      i--; // do not split a surrogate pair
+    }
+    return i;
+  }
+
+  private static void writeString(@NotNull final OutputStream out, @NotNull final String value) throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeVarInt(@NotNull final OutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+}
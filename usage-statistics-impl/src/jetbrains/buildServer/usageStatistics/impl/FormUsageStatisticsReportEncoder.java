@@ -0,0 +1,51 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import jetbrains.buildServer.web.util.WebUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Encodes the statistics as an URL-encoded form, removed statistics are sent as {@code jb.removed} fields.
+ */
+public class FormUsageStatisticsReportEncoder implements UsageStatisticsReportEncoder {
+  @NotNull
+  public String getId() {
+    return "form";
+  }
+
+  @Nullable
+  public String getContentType() {
+    return null;
+  }
+
+  @NotNull
+  public Encoding startEncoding(@NotNull final OutputStream out) {
+    final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    return new Encoding() {
+      private boolean myFirst = true;
+
+      public void writeStatistic(@NotNull final String id, @NotNull final String value) throws IOException {
+        if (!myFirst) {
+          writer.write('&');
+        }
+        myFirst = false;
+        writer.write(WebUtil.encode(id));
+        writer.write('=');
+        writer.write(WebUtil.encode(value));
+      }
+
+      public void writeRemoved(@NotNull final String id) throws IOException {
+        writeStatistic("jb.removed", id);
+      }
+
+      public void finish() throws IOException {
+        writer.flush();
+      }
+    };
+  }
+}
@@ -0,0 +1,86 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Encodes the statistics as a JSON object: <code>{"statistics": {"id": "value", ...}, "removed": ["id", ...]}</code>.
+ */
+public class JsonUsageStatisticsReportEncoder implements UsageStatisticsReportEncoder {
+  @NotNull
+  public String getId() {
+    return "json";
+  }
+
+  @Nullable
+  public String getContentType() {
+    return "application/json; charset=UTF-8";
+  }
+
+  @NotNull
+  public Encoding startEncoding(@NotNull final OutputStream out) throws IOException {
+    final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    writer.write("{\"statistics\":{");
+    return new Encoding() {
+      private boolean myFirst = true;
+      private boolean myWritingRemoved = false;
+
+      public void writeStatistic(@NotNull final String id, @NotNull final String value) throws IOException {
+        if (myWritingRemoved) throw new IllegalStateException("Statistics must be written before the removed ones");
+        writeSeparator();
+        writeString(writer, id);
+        writer.write(':');
+        writeString(writer, value);
+      }
+
+      public void writeRemoved(@NotNull final String id) throws IOException {
+        if (!myWritingRemoved) {
+          writer.write("},\"removed\":[");
+          myWritingRemoved = true;
+          myFirst = true;
+        }
+        writeSeparator();
+        writeString(writer, id);
+      }
+
+      public void finish() throws IOException {
+        writer.write(myWritingRemoved ? "]}" : "}}");
+        writer.flush();
+      }
+
+      private void writeSeparator() throws IOException {
+        if (!myFirst) {
+          writer.write(',');
+        }
+        myFirst = false;
+      }
+    };
+  }
+
+  private static void writeString(@NotNull final Writer writer, @NotNull final String value) throws IOException {
+    writer.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      switch (c) {
+        case '"': writer.write("\\\""); break;
+        case '\\': writer.write("\\\\"); break;
+        case '\n': writer.write("\\n"); break;
+        case '\r': writer.write("\\r"); break;
+        case '\t': writer.write("\\t"); break;
+        default:
+          if (c < 0x20) {
+            writer.write(String.format("\\u%04x", (int)c));
+          }
+          else {
+            writer.write(c);
+          }
+      }
+    }
+    writer.write('"');
+  }
+}
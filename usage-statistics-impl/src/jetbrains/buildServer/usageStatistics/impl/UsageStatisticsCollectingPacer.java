@@ -0,0 +1,164 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.Dates;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Computes the pauses between usage statistics providers. By default the pause is fixed, see {@link #PROVIDER_SLEEP_TIME}.
+ * With {@link #PACING_ENABLED} the pause is computed from the current server pressure: it is short when the server is idle
+ * and grows up to the maximum when the server is busy, so a full collecting can take much longer than with the fixed pause.
+ */
+public class UsageStatisticsCollectingPacer {
+  @NotNull private static final Logger LOG = Logger.getInstance(UsageStatisticsCollectingPacer.class.getName());
+
+  @NotNull private static final String PACING_ENABLED = "teamcity.usageStatistics.pacing.enabled";
+  @NotNull private static final String PROVIDER_SLEEP_TIME = "teamcity.usageStatistics.provider.sleep.time.milliseconds";
+  private static final int DEFAULT_PROVIDER_SLEEP_TIME = 1000; // 1 second
+  @NotNull private static final String MIN_PAUSE = "teamcity.usageStatistics.pacing.min.pause.milliseconds";
+  private static final int DEFAULT_MIN_PAUSE = 100;
+  @NotNull private static final String MAX_PAUSE = "teamcity.usageStatistics.pacing.max.pause.milliseconds";
+  private static final int DEFAULT_MAX_PAUSE = 30 * 1000; // 30 seconds
+  @NotNull private static final String BUSY_QUEUE_SIZE = "teamcity.usageStatistics.pacing.busy.queue.size";
+  private static final int DEFAULT_BUSY_QUEUE_SIZE = 100;
+
+  private static final int MAX_DECISIONS_COUNT = 100;
+
+  @NotNull private final SBuildServer myServer;
+  @NotNull private final Deque<Decision> myDecisions = new ArrayDeque<Decision>(); // guarded by itself
+
+  public UsageStatisticsCollectingPacer(@NotNull final SBuildServer server) {
+    myServer = server;
+  }
+
+  /**
+   * Sleeps between two providers.
+   */
+  public void pause() throws InterruptedException {
+    final long pause = computePause();
+    if (pause > 0) {
+      Thread.sleep(pause);
+    }
+  }
+
+  /**
+   * @return current server pressure in the range [0, 1], the maximum of the process CPU load and the build queue pressure
+   */
+  public double getServerPressure() {
+    return computePressure(getProcessCpuLoad(), myServer.getQueue().getNumberOfItems());
+  }
+
+  /**
+   * @return the most recent pacing decisions, the oldest first
+   */
+  @NotNull
+  public List<Decision> getRecentDecisions() {
+    synchronized (myDecisions) {
+      return new ArrayList<Decision>(myDecisions);
+    }
+  }
+
+  private long computePause() {
+    if (!TeamCityProperties.getBoolean(PACING_ENABLED)) {
+      return TeamCityProperties.getLong(PROVIDER_SLEEP_TIME, DEFAULT_PROVIDER_SLEEP_TIME);
+    }
+
+    final double cpuLoad = getProcessCpuLoad();
+    final int queueSize = myServer.getQueue().getNumberOfItems();
+    final double pressure = computePressure(cpuLoad, queueSize);
+
+    final long minPause = TeamCityProperties.getLong(MIN_PAUSE, DEFAULT_MIN_PAUSE);
+    final long maxPause = Math.max(minPause, TeamCityProperties.getLong(MAX_PAUSE, DEFAULT_MAX_PAUSE));
+    final long pause = minPause + Math.round((maxPause - minPause) * pressure * pressure);
+
+    final Decision decision = new Decision(Dates.now(), cpuLoad, queueSize, pressure, pause);
+    synchronized (myDecisions) {
+      if (myDecisions.size() == MAX_DECISIONS_COUNT) {
+        myDecisions.removeFirst();
+      }
+      myDecisions.addLast(decision);
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Usage statistics collecting pause: " + decision);
+    }
+
+    return pause;
+  }
+
+  private static double computePressure(final double cpuLoad, final int queueSize) {
+    final double queuePressure = Math.min(1.0, (double)queueSize / Math.max(1, TeamCityProperties.getInteger(BUSY_QUEUE_SIZE, DEFAULT_BUSY_QUEUE_SIZE)));
+    return Math.max(Math.max(cpuLoad, 0), queuePressure);
+  }
+
+  /**
+   * @return process CPU load in the range [0, 1] or a negative value if it is not available
+   */
+  private static double getProcessCpuLoad() {
+    final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean)osBean).getProcessCpuLoad();
+    }
+    final double loadAverage = osBean.getSystemLoadAverage();
+    return loadAverage < 0 ? loadAverage : Math.min(1.0, loadAverage / osBean.getAvailableProcessors());
+  }
+
+  public static class Decision {
+    @NotNull private final Date myDate;
+    private final double myCpuLoad;
+    private final int myQueueSize;
+    private final double myPressure;
+    private final long myPause;
+
+    Decision(@NotNull final Date date, final double cpuLoad, final int queueSize, final double pressure, final long pause) {
+      myDate = date;
+      myCpuLoad = cpuLoad;
+      myQueueSize = queueSize;
+      myPressure = pressure;
+      myPause = pause;
+    }
+
+    @NotNull
+    public Date getDate() {
+      return myDate;
+    }
+
+    /**
+     * @return process CPU load in the range [0, 1] or a negative value if it was not available
+     */
+    public double getCpuLoad() {
+      return myCpuLoad;
+    }
+
+    public int getQueueSize() {
+      return myQueueSize;
+    }
+
+    /**
+     * @return server pressure in the range [0, 1]
+     */
+    public double getPressure() {
+      return myPressure;
+    }
+
+    /**
+     * @return pause in milliseconds
+     */
+    public long getPause() {
+      return myPause;
+    }
+
+    @Override
+    public String toString() {
+      return "cpu load: " + myCpuLoad + ", queue size: " + myQueueSize + ", pressure: " + myPressure + ", pause: " + myPause + " ms";
+    }
+  }
+}
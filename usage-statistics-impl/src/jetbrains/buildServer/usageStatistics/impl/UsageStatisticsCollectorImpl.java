@@ -2,186 +2,679 @@
 package jetbrains.buildServer.usageStatistics.impl;
 
 import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.openapi.util.Pair;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import jetbrains.buildServer.ExtensionHolder;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.usageStatistics.AsyncUsageStatisticsProvider;
+import jetbrains.buildServer.usageStatistics.CompactUsageStatistics;
+import jetbrains.buildServer.usageStatistics.UsageStatisticIdDictionary;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsCollector;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsProvider;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsProviderStatus;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsPublisher;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsSnapshot;
+import jetbrains.buildServer.usageStatistics.impl.providers.BaseUsageStatisticsProvider;
 import jetbrains.buildServer.usageStatistics.presentation.UsageStatisticsPresentationManager;
 import jetbrains.buildServer.usageStatistics.presentation.UsageStatisticsPresentationProvider;
 import jetbrains.buildServer.util.Dates;
 import jetbrains.buildServer.util.NamedDaemonThreadFactory;
-import jetbrains.buildServer.util.NamedThreadFactory;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class UsageStatisticsCollectorImpl extends BuildServerAdapter implements UsageStatisticsCollector, Runnable {
   @NotNull private static final Logger LOG = Logger.getInstance(UsageStatisticsCollectorImpl.class.getName());
 
-  @NotNull private static final String PROVIDER_SLEEP_TIME = "teamcity.usageStatistics.provider.sleep.time.milliseconds";
-  private static final int DEFAULT_PROVIDER_SLEEP_TIME = 1000; // 1 second
+  @NotNull private static final String PROVIDER_TIMEOUT = "teamcity.usageStatistics.provider.timeout.seconds";
+  private static final int DEFAULT_PROVIDER_TIMEOUT = 10 * 60; // 10 minutes
+  @NotNull private static final String TIMED_OUT_MARKER_ID_FORMAT = "jb.usageStatistics.timedOut[%s]";
+  private static final int MAX_DICTIONARY_OVERHEAD = 4;
+  @NotNull private static final String COLLECTING_PARALLELISM = "teamcity.usageStatistics.collecting.parallelism";
+  private static final int DEFAULT_COLLECTING_PARALLELISM = 1; // providers are run one by one
+  @NotNull private static final String ASYNC_PROVIDERS_IN_FLIGHT = "teamcity.usageStatistics.collecting.async.maxInFlight";
+  private static final int DEFAULT_ASYNC_PROVIDERS_IN_FLIGHT = 16;
+  @NotNull private static final String ROLLING_ENABLED = "teamcity.usageStatistics.rolling.enabled";
+  @NotNull private static final String ROLLING_TICK = "teamcity.usageStatistics.rolling.tick.seconds";
+  private static final int DEFAULT_ROLLING_TICK = 5 * 60; // 5 minutes
+  @NotNull private static final String ROLLING_FRESHNESS = "teamcity.usageStatistics.rolling.freshness.seconds";
+  private static final int DEFAULT_ROLLING_FRESHNESS = 24 * 60 * 60; // 1 day
+  @NotNull private static final String ROLLING_PROVIDERS_PER_TICK = "teamcity.usageStatistics.rolling.providers.per.tick";
+  private static final int DEFAULT_ROLLING_PROVIDERS_PER_TICK = 2;
+  @NotNull private static final String SNAPSHOT_SAVE_INTERVAL = "teamcity.usageStatistics.snapshot.save.interval.minutes";
+  private static final int DEFAULT_SNAPSHOT_SAVE_INTERVAL = 60;
 
   @NotNull private final ExtensionHolder myExtensionHolder;
   @NotNull private final UsageStatisticsPresentationManager myPresentationManager;
+  @NotNull private final UsageStatisticsCollectingPacer myPacer;
+  @NotNull private final UsageStatisticsSnapshotPersistor mySnapshotPersistor;
 
   @NotNull private final Object myLock = new Object();
+  @NotNull private final Map<UsageStatisticsProvider, UsageStatisticsProviderTask> myAbandonedTasks = new ConcurrentHashMap<UsageStatisticsProvider, UsageStatisticsProviderTask>();
+  @NotNull private final UsageStatisticsResultCache myResultCache = new UsageStatisticsResultCache();
+  @NotNull private final Map<UsageStatisticsProvider, Long> myLastRunTimes = new ConcurrentHashMap<UsageStatisticsProvider, Long>();
 
-  @Nullable private List<Pair<String, Object>> myCollectedStatistics = null;
-  @Nullable private Date myLastCollectingFinishDate = null;
-  private boolean myIsCollectingNow = false;
-  private boolean myCollectingWasForced = false;
-  private boolean myServerIsActive = true;
+  @NotNull private final AtomicReference<UsageStatisticsSnapshot> mySnapshot = new AtomicReference<UsageStatisticsSnapshot>();
+  private volatile boolean myIsCollectingNow = false;
+  private volatile boolean myServerIsActive = true;
+  private long myLastSnapshotSaveTime = 0; // accessed by the collecting thread only
+  private volatile long mySavedGeneration = 0;
+  private boolean myCollectingWasForced = false; // guarded by myLock
+  private boolean myFullCollectingNow = false; // guarded by myLock
+  private long myFullCollectingsCount = 0; // guarded by myLock
+  @NotNull private final Set<String> myGroupsToRefresh = new HashSet<String>(); // guarded by myLock
+  @NotNull private final Set<String> myProvidersToRefresh = new HashSet<String>(); // guarded by myLock
+  @NotNull private final Map<CompletableFuture<UsageStatisticsSnapshot>, Long> mySnapshotWaiters = new HashMap<CompletableFuture<UsageStatisticsSnapshot>, Long>(); // guarded by myLock
+  @NotNull private final Map<CompletableFuture<UsageStatisticsSnapshot>, Long> myFullCollectingWaiters = new HashMap<CompletableFuture<UsageStatisticsSnapshot>, Long>(); // guarded by myLock
 
   public UsageStatisticsCollectorImpl(@NotNull final SBuildServer server,
-                                      @NotNull final UsageStatisticsPresentationManager presentationManager) {
+                                      @NotNull final UsageStatisticsPresentationManager presentationManager,
+                                      @NotNull final UsageStatisticsCollectingPacer pacer,
+                                      @NotNull final UsageStatisticsSnapshotPersistor snapshotPersistor) {
     myExtensionHolder = server;
     myPresentationManager = presentationManager;
+    myPacer = pacer;
+    mySnapshotPersistor = snapshotPersistor;
     server.addListener(this);
 
     new NamedDaemonThreadFactory("Usage statistics collector").newThread(this).start();
   }
 
   public void publishCollectedStatistics(@NotNull final UsageStatisticsPublisher publisher) {
-    for (final Pair<String, Object> entry : getCollectedStatistics()) {
-      publisher.publishStatistic(entry.getFirst(), entry.getSecond());
-    }
+    getCollectedSnapshot().publishStatistics(publisher);
+  }
+
+  @Nullable
+  public UsageStatisticsSnapshot getSnapshot() {
+    return mySnapshot.get();
   }
 
-  @SuppressWarnings("NullableProblems")
   @NotNull
-  private List<Pair<String, Object>> getCollectedStatistics() {
-    synchronized (myLock) {
-      if (myCollectedStatistics == null) {
-        throw createIllegalStateException();
-      }
-      return myCollectedStatistics;
+  private UsageStatisticsSnapshot getCollectedSnapshot() {
+    final UsageStatisticsSnapshot snapshot = mySnapshot.get();
+    if (snapshot == null) {
+      throw createIllegalStateException();
     }
+    return snapshot;
   }
 
   public boolean isCollectingNow() {
-    synchronized (myLock) {
-      return myIsCollectingNow;
-    }
+    return myIsCollectingNow;
   }
 
-  @SuppressWarnings("NullableProblems")
   @NotNull
   public Date getLastCollectingFinishDate() {
-    synchronized (myLock) {
-      if (myLastCollectingFinishDate == null) {
-        throw createIllegalStateException();
-      }
-      return myLastCollectingFinishDate;
-    }
+    return getCollectedSnapshot().getFinishDate();
   }
 
   public boolean isStatisticsCollected() {
-    synchronized (myLock) {
-      return myLastCollectingFinishDate != null;
-    }
+    return mySnapshot.get() != null;
   }
 
   public void forceAsynchronousCollectingNow() {
     synchronized (myLock) {
-      if (myIsCollectingNow) return;
+      if (myFullCollectingNow) return;
       myCollectingWasForced = true;
       myLock.notifyAll();
     }
   }
 
+  public boolean forceAsynchronousGroupRefresh(@NotNull final String groupName) {
+    return forceAsynchronousRefresh(myGroupsToRefresh, groupName, Collections.singleton(groupName), Collections.<String>emptySet());
+  }
+
+  public boolean forceAsynchronousProviderRefresh(@NotNull final String providerClassName) {
+    return forceAsynchronousRefresh(myProvidersToRefresh, providerClassName, Collections.<String>emptySet(), Collections.singleton(providerClassName));
+  }
+
+  private boolean forceAsynchronousRefresh(@NotNull final Set<String> requests,
+                                           @NotNull final String request,
+                                           @NotNull final Set<String> groupNames,
+                                           @NotNull final Set<String> providerClassNames) {
+    if (selectProviders(groupNames, providerClassNames).isEmpty()) return false;
+    synchronized (myLock) {
+      requests.add(request);
+      myLock.notifyAll();
+    }
+    return true;
+  }
+
   public void collectStatisticsAndWait() {
     synchronized (myLock) {
-      final Date oldLastCollectingFinishDate = myLastCollectingFinishDate;
+      final long fullCollectingsCount = myFullCollectingsCount + 1;
       forceAsynchronousCollectingNow();
-      while (myLastCollectingFinishDate == oldLastCollectingFinishDate) {
+      while (myFullCollectingsCount < fullCollectingsCount) {
+        if (!myServerIsActive) {
+          if (mySnapshot.get() == null) throw createIllegalStateException();
+          return;
+        }
+        try {
+          myLock.wait();
+        } catch (final InterruptedException ignore) {}
+      }
+    }
+  }
+
+  @NotNull
+  public CompletableFuture<UsageStatisticsSnapshot> collectStatisticsAsynchronously() {
+    final CompletableFuture<UsageStatisticsSnapshot> result = new CompletableFuture<UsageStatisticsSnapshot>();
+    final UsageStatisticsSnapshot snapshot;
+    synchronized (myLock) {
+      if (myServerIsActive) {
+        myFullCollectingWaiters.put(result, myFullCollectingsCount + 1);
+        forceAsynchronousCollectingNow();
+        return result;
+      }
+      snapshot = mySnapshot.get();
+    }
+    completeOnShutdown(result, snapshot);
+    return result;
+  }
+
+  @NotNull
+  public CompletableFuture<UsageStatisticsSnapshot> getSnapshotFuture(final long generation) {
+    final CompletableFuture<UsageStatisticsSnapshot> result = new CompletableFuture<UsageStatisticsSnapshot>();
+    synchronized (myLock) {
+      final UsageStatisticsSnapshot snapshot = mySnapshot.get();
+      if (snapshot != null && snapshot.getGeneration() > generation) {
+        result.complete(snapshot);
+      }
+      else if (!myServerIsActive) {
+        completeOnShutdown(result, snapshot);
+      }
+      else {
+        mySnapshotWaiters.put(result, generation);
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  public UsageStatisticsSnapshot waitForSnapshot(final long generation) {
+    synchronized (myLock) {
+      UsageStatisticsSnapshot snapshot;
+      while ((snapshot = mySnapshot.get()) == null || snapshot.getGeneration() <= generation) {
+        if (!myServerIsActive) {
+          if (snapshot == null) throw createIllegalStateException();
+          return snapshot;
+        }
         try {
           myLock.wait();
         } catch (final InterruptedException ignore) {}
       }
+      return snapshot;
+    }
+  }
+
+  public void invalidateCachedStatistics(@NotNull final Class<? extends UsageStatisticsProvider> providerClass) {
+    myResultCache.invalidate(providerClass);
+  }
+
+  public void invalidateAllCachedStatistics() {
+    myResultCache.invalidateAll();
+  }
+
+  @Override
+  public void serverConfigurationReloaded() {
+    invalidateAllCachedStatistics();
+  }
+
+  @Override
+  public void pluginsLoaded() {
+    invalidateAllCachedStatistics();
+  }
+
+  @Override
+  public void serverStartup() {
+    new NamedDaemonThreadFactory("Usage statistics snapshot loader").newThread(this::loadPersistedSnapshot).start();
+  }
+
+  private void loadPersistedSnapshot() {
+    final UsageStatisticsSnapshot snapshot = mySnapshotPersistor.load();
+    if (snapshot == null) return;
+    synchronized (myLock) {
+      if (mySnapshot.compareAndSet(null, snapshot)) { // a fresh snapshot may already be collected
+        LOG.info("Loaded usage statistics collected at " + snapshot.getFinishDate());
+        myLock.notifyAll();
+      }
     }
   }
 
   @Override
   public void serverShutdown() {
+    final Map<CompletableFuture<UsageStatisticsSnapshot>, Long> waiters;
+    final UsageStatisticsSnapshot snapshot;
     synchronized (myLock) {
       myServerIsActive = false;
       myLock.notifyAll();
+      waiters = new HashMap<CompletableFuture<UsageStatisticsSnapshot>, Long>(mySnapshotWaiters);
+      waiters.putAll(myFullCollectingWaiters);
+      mySnapshotWaiters.clear();
+      myFullCollectingWaiters.clear();
+      snapshot = mySnapshot.get();
+    }
+    for (final CompletableFuture<UsageStatisticsSnapshot> waiter : waiters.keySet()) {
+      completeOnShutdown(waiter, snapshot);
+    }
+    if (snapshot != null && snapshot.getGeneration() > mySavedGeneration) {
+      mySnapshotPersistor.save(snapshot); // the refreshed results not saved because of the throttling
+    }
+  }
+
+  private static void completeOnShutdown(@NotNull final CompletableFuture<UsageStatisticsSnapshot> future, @Nullable final UsageStatisticsSnapshot snapshot) {
+    if (snapshot == null) {
+      future.completeExceptionally(createIllegalStateException());
+    }
+    else {
+      future.complete(snapshot);
     }
   }
 
   public void run() {
-    waitForEvent();
+    while (true) {
+      final boolean rollingTick = waitForEvent();
+      if (!serverIsActive()) break;
 
-    while (serverIsActive()) {
+      final List<UsageStatisticsProvider> providersToRoll = rollingTick ? selectProvidersToRoll() : Collections.<UsageStatisticsProvider>emptyList();
+      final boolean fullCollecting;
+      final Set<String> groupsToRefresh;
+      final Set<String> providersToRefresh;
       synchronized (myLock) {
+        final boolean refreshRequested = !myGroupsToRefresh.isEmpty() || !myProvidersToRefresh.isEmpty();
+        fullCollecting = myCollectingWasForced || refreshRequested && mySnapshot.get() == null;
+        if (!fullCollecting && !refreshRequested && providersToRoll.isEmpty()) continue;
+
         myIsCollectingNow = true;
+        myFullCollectingNow = fullCollecting;
         myCollectingWasForced = false;
+        groupsToRefresh = new HashSet<String>(myGroupsToRefresh);
+        providersToRefresh = new HashSet<String>(myProvidersToRefresh);
+        myGroupsToRefresh.clear();
+        myProvidersToRefresh.clear();
       }
-      LOG.info("Starting usage statistics collection...");
-      final long processStart = System.nanoTime();
 
-      final List<Pair<String, Object>> newStatistics = new ArrayList<Pair<String, Object>>();
-      collectStatistics(newStatistics);
+      final UsageStatisticsSnapshot snapshot;
+      if (fullCollecting) {
+        snapshot = collectAllStatistics();
+      }
+      else if (!groupsToRefresh.isEmpty() || !providersToRefresh.isEmpty()) {
+        LOG.info("Refreshing usage statistics of groups " + groupsToRefresh + " and providers " + providersToRefresh + "...");
+        snapshot = refreshStatistics(selectProviders(groupsToRefresh, providersToRefresh), false);
+      }
+      else {
+        LOG.debug("Rolling usage statistics collecting with " + providersToRoll.size() + " provider(s)");
+        snapshot = refreshStatistics(providersToRoll, true);
+      }
+      saveSnapshot(snapshot, fullCollecting);
+    }
+  }
 
-      synchronized (myLock) {
-        myCollectedStatistics = newStatistics;
-        myLastCollectingFinishDate = Dates.now();
-        myIsCollectingNow = false;
-        myLock.notifyAll();
+  /**
+   * Saves the snapshot of every full collecting, the refreshed snapshots are saved at most once per {@link #SNAPSHOT_SAVE_INTERVAL}
+   * and on the server shutdown.
+   */
+  private void saveSnapshot(@NotNull final UsageStatisticsSnapshot snapshot, final boolean fullCollecting) {
+    final long now = System.currentTimeMillis();
+    final long interval = TeamCityProperties.getLong(SNAPSHOT_SAVE_INTERVAL, DEFAULT_SNAPSHOT_SAVE_INTERVAL) * Dates.ONE_MINUTE;
+    if (!fullCollecting && now - myLastSnapshotSaveTime < interval) return;
+    myLastSnapshotSaveTime = now;
+    mySnapshotPersistor.save(snapshot);
+    mySavedGeneration = snapshot.getGeneration();
+  }
+
+  @NotNull
+  private UsageStatisticsSnapshot collectAllStatistics() {
+    LOG.info("Starting usage statistics collection...");
+    final long processStart = System.nanoTime();
+    final Date startDate = Dates.now();
+
+    final List<UsageStatisticsSnapshot.ProviderResult> results = collectStatistics(myExtensionHolder.getExtensions(UsageStatisticsProvider.class),
+                                                                                   myExtensionHolder.getExtensions(UsageStatisticsPresentationProvider.class),
+                                                                                   true);
+
+    final UsageStatisticsSnapshot snapshot = publishSnapshot(previous -> new UsageStatisticsSnapshot(getNextGeneration(previous), startDate, Dates.now(), results), true);
+    final long processFinish = System.nanoTime();
+    LOG.info("Finish usage statistics collection, collected in " + TimeUnit.MILLISECONDS.convert(processFinish - processStart, TimeUnit.NANOSECONDS) + " ms");
+    return snapshot;
+  }
+
+  /**
+   * Re-runs the selected providers and replaces their results in the current snapshot.
+   * The collecting dates of the snapshot are kept, so a manual refresh does not postpone the statistics expiration.
+   * A rolling refresh dates the snapshot by its results, see {@link #createRollingSnapshot}.
+   */
+  @NotNull
+  private UsageStatisticsSnapshot refreshStatistics(@NotNull final List<UsageStatisticsProvider> providers, final boolean rolling) {
+    final List<UsageStatisticsPresentationProvider> presentationProviders = new ArrayList<UsageStatisticsPresentationProvider>();
+    for (final UsageStatisticsProvider provider : providers) {
+      if (provider instanceof UsageStatisticsPresentationProvider) {
+        presentationProviders.add((UsageStatisticsPresentationProvider)provider);
+      }
+    }
+    final List<UsageStatisticsSnapshot.ProviderResult> results = collectStatistics(providers, presentationProviders, false);
+
+    return publishSnapshot(previous -> {
+      if (previous == null) {
+        final Date now = Dates.now();
+        return new UsageStatisticsSnapshot(1, now, now, results);
+      }
+      if (rolling) {
+        return createRollingSnapshot(previous, replaceResults(previous.getProviderResults(), results));
+      }
+      return new UsageStatisticsSnapshot(getNextGeneration(previous), previous.getStartDate(), previous.getFinishDate(),
+                                         replaceResults(previous.getProviderResults(), results), previous.isStale());
+    }, false);
+  }
+
+  /**
+   * Selects the providers whose results are older than {@link #ROLLING_FRESHNESS}, the stalest first,
+   * at most {@link #ROLLING_PROVIDERS_PER_TICK} of them.
+   */
+  @NotNull
+  private List<UsageStatisticsProvider> selectProvidersToRoll() {
+    final UsageStatisticsSnapshot snapshot = mySnapshot.get();
+    if (snapshot == null) return Collections.emptyList(); // the first snapshot is collected in full
+
+    final long now = Dates.now().getTime();
+    final long freshness = TeamCityProperties.getLong(ROLLING_FRESHNESS, DEFAULT_ROLLING_FRESHNESS) * Dates.ONE_SECOND;
+    final List<UsageStatisticsProvider> providers = new ArrayList<UsageStatisticsProvider>();
+    for (final UsageStatisticsProvider provider : myExtensionHolder.getExtensions(UsageStatisticsProvider.class)) {
+      if (now - getLastRunTime(provider, snapshot) >= freshness) {
+        providers.add(provider);
+      }
+    }
+    providers.sort(Comparator.comparingLong(provider -> getLastRunTime(provider, snapshot)));
+    final int providersPerTick = Math.max(1, TeamCityProperties.getInteger(ROLLING_PROVIDERS_PER_TICK, DEFAULT_ROLLING_PROVIDERS_PER_TICK));
+    return providers.size() > providersPerTick ? providers.subList(0, providersPerTick) : providers;
+  }
+
+  /**
+   * A rolling snapshot starts at the time its oldest result was collected and finishes at the time of its newest result.
+   * While some results are still those loaded from the disk after the restart, the snapshot stays stale and keeps the dates
+   * of the loaded snapshot, so the old statistics are not taken for fresh ones.
+   */
+  @NotNull
+  private UsageStatisticsSnapshot createRollingSnapshot(@NotNull final UsageStatisticsSnapshot previous,
+                                                        @NotNull final List<UsageStatisticsSnapshot.ProviderResult> results) {
+    final Map<String, Long> runTimes = new HashMap<String, Long>();
+    for (final UsageStatisticsProvider provider : myExtensionHolder.getExtensions(UsageStatisticsProvider.class)) {
+      final Long runTime = myLastRunTimes.get(provider);
+      if (runTime != null) {
+        runTimes.put(provider.getClass().getName(), runTime);
+      }
+    }
+
+    long oldestRunTime = Long.MAX_VALUE;
+    long newestRunTime = Long.MIN_VALUE;
+    boolean stale = false;
+    for (final UsageStatisticsSnapshot.ProviderResult result : results) {
+      final Long runTime = runTimes.get(result.getProviderName());
+      if (runTime == null) {
+        stale |= previous.isStale(); // the provider was not run by this server process
+        continue;
+      }
+      oldestRunTime = Math.min(oldestRunTime, runTime);
+      newestRunTime = Math.max(newestRunTime, runTime);
+    }
+
+    if (stale || newestRunTime == Long.MIN_VALUE) {
+      return new UsageStatisticsSnapshot(getNextGeneration(previous), previous.getStartDate(), previous.getFinishDate(), results, previous.isStale());
+    }
+    return new UsageStatisticsSnapshot(getNextGeneration(previous), new Date(oldestRunTime), new Date(newestRunTime), results);
+  }
+
+  /**
+   * @return the time the provider was run last time, the snapshot start time if the provider was not run by this server process
+   */
+  private long getLastRunTime(@NotNull final UsageStatisticsProvider provider, @NotNull final UsageStatisticsSnapshot snapshot) {
+    final Long lastRunTime = myLastRunTimes.get(provider);
+    return lastRunTime == null ? snapshot.getStartDate().getTime() : lastRunTime;
+  }
+
+  @NotNull
+  private List<UsageStatisticsProvider> selectProviders(@NotNull final Set<String> groupNames, @NotNull final Set<String> providerClassNames) {
+    final List<UsageStatisticsProvider> result = new ArrayList<UsageStatisticsProvider>();
+    for (final UsageStatisticsProvider provider : myExtensionHolder.getExtensions(UsageStatisticsProvider.class)) {
+      final String groupName = provider instanceof BaseUsageStatisticsProvider ? ((BaseUsageStatisticsProvider)provider).getGroupName() : null;
+      if (groupName != null && groupNames.contains(groupName) ||
+          providerClassNames.contains(provider.getClass().getName()) ||
+          providerClassNames.contains(provider.getClass().getSimpleName())) {
+        result.add(provider);
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private static List<UsageStatisticsSnapshot.ProviderResult> replaceResults(@NotNull final List<UsageStatisticsSnapshot.ProviderResult> results,
+                                                                             @NotNull final List<UsageStatisticsSnapshot.ProviderResult> newResults) {
+    final Map<String, UsageStatisticsSnapshot.ProviderResult> newResultsByName = new LinkedHashMap<String, UsageStatisticsSnapshot.ProviderResult>();
+    for (final UsageStatisticsSnapshot.ProviderResult newResult : newResults) {
+      newResultsByName.put(newResult.getProviderName(), newResult);
+    }
+    final List<UsageStatisticsSnapshot.ProviderResult> merged = new ArrayList<UsageStatisticsSnapshot.ProviderResult>(results.size() + newResults.size());
+    for (final UsageStatisticsSnapshot.ProviderResult result : results) {
+      final UsageStatisticsSnapshot.ProviderResult newResult = newResultsByName.remove(result.getProviderName());
+      merged.add(newResult == null ? result : newResult);
+    }
+    merged.addAll(newResultsByName.values());
+    return merged;
+  }
+
+  private static long getNextGeneration(@Nullable final UsageStatisticsSnapshot previous) {
+    return previous == null ? 1 : previous.getGeneration() + 1;
+  }
+
+  @NotNull
+  private UsageStatisticsSnapshot publishSnapshot(@NotNull final Function<UsageStatisticsSnapshot, UsageStatisticsSnapshot> snapshotFactory,
+                                                  final boolean fullCollecting) {
+    final UsageStatisticsSnapshot snapshot;
+    final List<CompletableFuture<UsageStatisticsSnapshot>> readyWaiters = new ArrayList<CompletableFuture<UsageStatisticsSnapshot>>();
+    synchronized (myLock) {
+      snapshot = snapshotFactory.apply(mySnapshot.get());
+      mySnapshot.set(snapshot);
+      myIsCollectingNow = false;
+      myFullCollectingNow = false;
+      if (fullCollecting) {
+        myFullCollectingsCount++;
+      }
+      myLock.notifyAll();
+      for (final Map.Entry<CompletableFuture<UsageStatisticsSnapshot>, Long> waiter : mySnapshotWaiters.entrySet()) {
+        if (snapshot.getGeneration() > waiter.getValue()) {
+          readyWaiters.add(waiter.getKey());
+        }
+      }
+      mySnapshotWaiters.keySet().removeAll(readyWaiters);
+      for (final Map.Entry<CompletableFuture<UsageStatisticsSnapshot>, Long> waiter : myFullCollectingWaiters.entrySet()) {
+        if (myFullCollectingsCount >= waiter.getValue()) {
+          readyWaiters.add(waiter.getKey());
+        }
       }
-      final long processFinish = System.nanoTime();
-      LOG.info("Finish usage statistics collection, collected in " + TimeUnit.MILLISECONDS.convert(processFinish - processStart, TimeUnit.NANOSECONDS) + " ms");
-      waitForEvent();
+      myFullCollectingWaiters.keySet().removeAll(readyWaiters);
+    }
+    // dependent stages are run outside of the lock
+    for (final CompletableFuture<UsageStatisticsSnapshot> waiter : readyWaiters) {
+      waiter.complete(snapshot);
     }
+    return snapshot;
   }
 
-  private void collectStatistics(@NotNull final List<Pair<String, Object>> statistics) {
-    final UsageStatisticsPublisher publisher = new UsageStatisticsPublisher() {
-      public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
-        statistics.add(Pair.create(id, value));
+  /**
+   * @param useCache false to call all the providers even if their cached results are still fresh
+   */
+  @NotNull
+  private List<UsageStatisticsSnapshot.ProviderResult> collectStatistics(@NotNull final Collection<UsageStatisticsProvider> providers,
+                                                                         @NotNull final Collection<UsageStatisticsPresentationProvider> presentationProviders,
+                                                                         final boolean useCache) {
+    final UsageStatisticIdDictionary dictionary = getIdDictionary();
+
+    final Map<UsageStatisticsProvider, UsageStatisticsSnapshot.ProviderResult> providerResults = new HashMap<UsageStatisticsProvider, UsageStatisticsSnapshot.ProviderResult>();
+    final List<UsageStatisticsProvider> providersToRun = new ArrayList<UsageStatisticsProvider>(providers.size());
+    for (final UsageStatisticsProvider provider : providers) {
+      final UsageStatisticsSnapshot.ProviderResult cachedResult = useCache ? myResultCache.get(provider) : null;
+      if (cachedResult != null) {
+        providerResults.put(provider, cachedResult); // presentations of the cached result are applied by the provider as usual
+      }
+      else {
+        providersToRun.add(provider);
+      }
+    }
+
+    final Set<Object> timedOutProviders = new HashSet<Object>();
+    for (final UsageStatisticsProviderTask task : runProviders(providersToRun, dictionary)) {
+      CompactUsageStatistics statistics = task.getStatistics();
+      if (task.getStatus() == UsageStatisticsProviderStatus.TIMED_OUT) {
+        timedOutProviders.add(task.getProvider());
+        final CompactUsageStatistics.Builder marker = new CompactUsageStatistics.Builder(dictionary);
+        marker.publishStatistic(getTimedOutMarkerId(task), Boolean.TRUE);
+        statistics = marker.build();
+        applyTimedOutMarkerPresentation(task);
       }
-    };
+      final UsageStatisticsSnapshot.ProviderResult result = new UsageStatisticsSnapshot.ProviderResult(task.getProvider().getClass().getName(), task.getStatus(), statistics);
+      myResultCache.put(task.getProvider(), result);
+      myLastRunTimes.put(task.getProvider(), Dates.now().getTime());
+      providerResults.put(task.getProvider(), result);
+    }
 
-    final Collection<UsageStatisticsProvider> providers = myExtensionHolder.getExtensions(UsageStatisticsProvider.class);
+    final List<UsageStatisticsSnapshot.ProviderResult> results = new ArrayList<UsageStatisticsSnapshot.ProviderResult>(providerResults.size());
     for (final UsageStatisticsProvider provider : providers) {
-      if (!serverIsActive()) return;
-      collectStatisticsWithProvider(provider, publisher);
+      final UsageStatisticsSnapshot.ProviderResult result = providerResults.get(provider);
+      if (result != null) {
+        results.add(result);
+      }
     }
 
-    final Collection<UsageStatisticsPresentationProvider> presentationProviders = myExtensionHolder.getExtensions(UsageStatisticsPresentationProvider.class);
     for (final UsageStatisticsPresentationProvider presentationProvider : presentationProviders) {
-      if (!serverIsActive()) return;
+      if (!serverIsActive()) break;
+      if (timedOutProviders.contains(presentationProvider)) continue; // abandoned provider can still be modifying its presentations
       applyPresentationsWithProvider(presentationProvider);
     }
+
+    return results;
   }
 
-  private void collectStatisticsWithProvider(@NotNull final UsageStatisticsProvider provider, @NotNull final UsageStatisticsPublisher publisher) {
+  /**
+   * Starts the providers on worker threads, at most {@link #COLLECTING_PARALLELISM} providers are running at the same time.
+   * Asynchronous providers are started first and do not occupy the workers, at most {@link #ASYNC_PROVIDERS_IN_FLIGHT}
+   * of them are in flight at the same time.
+   * Provider which does not finish in {@link #PROVIDER_TIMEOUT} is abandoned and does not occupy a worker anymore.
+   *
+   * @return tasks in the providers order, so the result does not depend on the workers scheduling
+   */
+  @NotNull
+  private List<UsageStatisticsProviderTask> runProviders(@NotNull final Collection<UsageStatisticsProvider> providers,
+                                                         @NotNull final UsageStatisticIdDictionary dictionary) {
+    final UsageStatisticsProviderTask[] tasks = new UsageStatisticsProviderTask[providers.size()];
+    final Semaphore workers = new Semaphore(getCollectingParallelism());
+    final Semaphore asyncProviders = new Semaphore(getAsyncProvidersInFlight());
+    final long timeout = getProviderTimeout();
+
+    final ExecutorService executor = Executors.newCachedThreadPool(new NamedDaemonThreadFactory("Usage statistics collector worker"));
+    final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("Usage statistics collector watchdog"));
     try {
-      NamedThreadFactory.executeWithNewThreadName("Collecting usage statistics with provider " + provider.getClass().getSimpleName(), new Runnable() {
-        public void run() {
-          provider.accept(publisher);
+      for (final boolean async : new boolean[] { true, false }) {
+        int i = 0;
+        for (final UsageStatisticsProvider provider : providers) {
+          final int index = i++;
+          if (provider instanceof AsyncUsageStatisticsProvider != async) continue;
+
+          final UsageStatisticsProviderTask abandonedTask = myAbandonedTasks.remove(provider);
+          if (abandonedTask != null && abandonedTask.isProviderRunning()) {
+            LOG.info("Usage statistics provider " + abandonedTask.getProviderName() + " is still running since the previous collecting, skipping it");
+            tasks[index] = abandonedTask;
+            continue;
+          }
+          final Semaphore permits = async ? asyncProviders : workers;
+          permits.acquireUninterruptibly();
+          if (!serverIsActive()) {
+            permits.release();
+            break;
+          }
+          final UsageStatisticsProviderTask task = new UsageStatisticsProviderTask(provider, dictionary, myPacer, permits::release);
+          tasks[index] = task;
+          final Future<?> future = executor.submit(task);
+          if (timeout > 0) {
+            watchdog.schedule(() -> {
+              if (task.timeOut(timeout)) {
+                future.cancel(true);
+              }
+            }, timeout, TimeUnit.MILLISECONDS);
+          }
+        }
+      }
+      final List<UsageStatisticsProviderTask> result = new ArrayList<UsageStatisticsProviderTask>(tasks.length);
+      for (final UsageStatisticsProviderTask task : tasks) {
+        if (task == null) continue; // not started because of the server shutdown
+        task.await();
+        if (task.getStatus() == UsageStatisticsProviderStatus.TIMED_OUT) {
+          myAbandonedTasks.put(task.getProvider(), task);
         }
-      });
-      Thread.sleep(getProviderSleepTime());
+        result.add(task);
+      }
+      return result;
     }
-    catch (final InterruptedException ignore) {}
-    catch (final Throwable e) {
-      LOG.warnAndDebugDetails("Usage statistics provider " + provider.getClass().getSimpleName() + " failed", e);
+    finally {
+      executor.shutdownNow();
+      watchdog.shutdownNow();
     }
   }
 
+  /**
+   * Identifiers are never removed from the dictionary, so it is replaced when it becomes much larger than the collected statistics.
+   * Published snapshots keep referring to their own dictionary.
+   */
+  @NotNull
+  private UsageStatisticIdDictionary getIdDictionary() {
+    final UsageStatisticsSnapshot snapshot = mySnapshot.get();
+    if (snapshot == null) return new UsageStatisticIdDictionary();
+
+    int size = 0;
+    UsageStatisticIdDictionary dictionary = null;
+    for (final UsageStatisticsSnapshot.ProviderResult result : snapshot.getProviderResults()) {
+      size += result.getStatistics().size();
+      dictionary = result.getStatistics().getDictionary();
+    }
+    if (dictionary == null || dictionary.size() > MAX_DICTIONARY_OVERHEAD * Math.max(size, 1)) {
+      return new UsageStatisticIdDictionary();
+    }
+    return dictionary;
+  }
+
+  @NotNull
+  private static String getTimedOutMarkerId(@NotNull final UsageStatisticsProviderTask task) {
+    return String.format(TIMED_OUT_MARKER_ID_FORMAT, task.getProviderName());
+  }
+
+  private void applyTimedOutMarkerPresentation(@NotNull final UsageStatisticsProviderTask task) {
+    final UsageStatisticsProvider provider = task.getProvider();
+    final String groupName = provider instanceof BaseUsageStatisticsProvider ? ((BaseUsageStatisticsProvider)provider).getGroupName() : null;
+    myPresentationManager.applyPresentation(getTimedOutMarkerId(task), "Collecting timed out (" + task.getProviderName() + ")", groupName, null, null);
+  }
+
   private void applyPresentationsWithProvider(@NotNull final UsageStatisticsPresentationProvider presentationProvider) {
     try {
       presentationProvider.accept(myPresentationManager);
-      Thread.sleep(getProviderSleepTime());
+      myPacer.pause();
     }
     catch (final InterruptedException ignore) {}
     catch (final Throwable e) {
@@ -189,26 +682,42 @@ public class UsageStatisticsCollectorImpl extends BuildServerAdapter implements
     }
   }
 
-  private void waitForEvent() {
+  /**
+   * @return true if the rolling collecting is enabled and its tick has come, false if collecting was requested or the server is shutting down
+   */
+  private boolean waitForEvent() {
+    final long tickTime = System.currentTimeMillis() + getRollingTick();
     while (true) {
       try {
         synchronized (myLock) {
-          if (!myServerIsActive || myCollectingWasForced) break;
-          myLock.wait();
+          if (!myServerIsActive || myCollectingWasForced || !myGroupsToRefresh.isEmpty() || !myProvidersToRefresh.isEmpty()) return false;
+          final long timeToTick = tickTime - System.currentTimeMillis();
+          if (timeToTick <= 0 && TeamCityProperties.getBoolean(ROLLING_ENABLED)) return true;
+          myLock.wait(timeToTick > 0 ? timeToTick : getRollingTick()); // the rolling mode can be enabled at any moment
         }
       }
       catch (final InterruptedException ignore) {}
     }
   }
 
-  private long getProviderSleepTime() {
-    return TeamCityProperties.getLong(PROVIDER_SLEEP_TIME, DEFAULT_PROVIDER_SLEEP_TIME);
+  private long getRollingTick() {
+    return Math.max(1, TeamCityProperties.getLong(ROLLING_TICK, DEFAULT_ROLLING_TICK)) * Dates.ONE_SECOND;
+  }
+
+  private long getProviderTimeout() {
+    return TeamCityProperties.getLong(PROVIDER_TIMEOUT, DEFAULT_PROVIDER_TIMEOUT) * Dates.ONE_SECOND;
+  }
+
+  private int getCollectingParallelism() {
+    return Math.max(1, TeamCityProperties.getInteger(COLLECTING_PARALLELISM, DEFAULT_COLLECTING_PARALLELISM));
+  }
+
+  private int getAsyncProvidersInFlight() {
+    return Math.max(1, TeamCityProperties.getInteger(ASYNC_PROVIDERS_IN_FLIGHT, DEFAULT_ASYNC_PROVIDERS_IN_FLIGHT));
   }
 
   private boolean serverIsActive() {
-    synchronized (myLock) {
-      return myServerIsActive;
-    }
+    return myServerIsActive;
   }
 
   @NotNull
@@ -1,6 +1,9 @@
 
 package jetbrains.buildServer.usageStatistics.impl;
 
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
 import java.util.Date;
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.SBuildServer;
@@ -8,20 +11,29 @@ import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.serverSide.ServerResponsibility;
 import jetbrains.buildServer.usageStatistics.util.BaseUsageStatisticsStatePersister;
 import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
 import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class UsageStatisticsCommonDataPersistor extends BaseUsageStatisticsStatePersister {
+  @NotNull private static final Logger LOG = Logger.getInstance(UsageStatisticsCommonDataPersistor.class.getName());
+
   @NotNull private static final String LAST_REPORTING_DATE = "last-reporting-date";
   @NotNull private static final String REPORTING_SUGGESTION_WAS_CONSIDERED = "reporting-suggestion-was-considered";
-  @Nullable private Date myLastReportingDate;
-  private boolean myReportingSuggestionWasConsidered;
+  @NotNull private final ServerResponsibility myServerResponsibility;
+  @NotNull private final File myDigestFile;
+  @Nullable private volatile Date myLastReportingDate;
+  private volatile boolean myReportingSuggestionWasConsidered;
+  @Nullable private UsageStatisticsReportDigest myLastReportDigest; // guarded by this
+  private boolean myDigestLoaded = false; // guarded by this
 
   public UsageStatisticsCommonDataPersistor(@NotNull EventDispatcher<BuildServerListener> eventDispatcher,
                                             @NotNull ServerPaths serverPaths,
                                             @NotNull ServerResponsibility serverResponsibility) {
     super(eventDispatcher, serverPaths, serverResponsibility);
+    myServerResponsibility = serverResponsibility;
+    myDigestFile = new File(getStateFile().getParentFile(), "lastReportDigest.bin");
   }
 
   @Nullable
@@ -32,6 +44,7 @@ public class UsageStatisticsCommonDataPersistor extends BaseUsageStatisticsState
   @SuppressWarnings({"NullableProblems"})
   public void setLastReportingDate(@NotNull final Date date) {
     myLastReportingDate = date;
+    markDirty();
   }
 
   public boolean wasReportingSuggestionConsidered() {
@@ -40,6 +53,40 @@ public class UsageStatisticsCommonDataPersistor extends BaseUsageStatisticsState
 
   public void markReportingSuggestionAsConsidered() {
     myReportingSuggestionWasConsidered = true;
+    markDirty();
+  }
+
+  /**
+   * @return digest of the last acknowledged report or null if the next report should contain all the values
+   */
+  @Nullable
+  public synchronized UsageStatisticsReportDigest getLastReportDigest() {
+    if (!myDigestLoaded) {
+      myLastReportDigest = UsageStatisticsReportDigest.readFrom(myDigestFile);
+      myDigestLoaded = true;
+    }
+    return myLastReportDigest;
+  }
+
+  /**
+   * The digest has an entry for every reported statistic, so it is kept in its own file instead of the common state.
+   * The file is written right away, so the digest is not lost if the server is not stopped gracefully.
+   */
+  public synchronized void setLastReportDigest(@Nullable final UsageStatisticsReportDigest digest) {
+    myLastReportDigest = digest;
+    myDigestLoaded = true;
+    if (!myServerResponsibility.canWriteToConfigDirectory()) return;
+    if (digest == null) {
+      FileUtil.delete(myDigestFile);
+      return;
+    }
+    try {
+      digest.writeTo(myDigestFile);
+    }
+    catch (final IOException e) {
+      LOG.warnAndDebugDetails("Failed to save the last usage statistics report digest to the \"" + myDigestFile.getAbsolutePath() + "\" file", e);
+      FileUtil.delete(myDigestFile); // the next report is full rather than a delta against an outdated digest
+    }
   }
 
   @NotNull
@@ -48,6 +95,11 @@ public class UsageStatisticsCommonDataPersistor extends BaseUsageStatisticsState
     return "common";
   }
 
+  @Override
+  protected boolean tracksChanges() {
+    return true;
+  }
+
   @Override
   protected void writeExternal(@NotNull final Element element) {
     if (myLastReportingDate != null) {
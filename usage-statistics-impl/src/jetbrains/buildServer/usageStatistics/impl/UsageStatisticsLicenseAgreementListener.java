@@ -32,9 +32,7 @@ public class UsageStatisticsLicenseAgreementListener implements LicenseAgreement
   public void onLicenseAccepted(@NotNull final HttpServletRequest request) {
     myDataPersistor.markReportingSuggestionAsConsidered();
     if (Boolean.parseBoolean(request.getParameter("sendUsageStatistics"))) {
-      final UsageStatisticsSettings settings = mySettingsPersistor.loadSettings();
-      settings.setReportingEnabled(true);
-      mySettingsPersistor.saveSettings(settings);
+      mySettingsPersistor.saveSettings(mySettingsPersistor.getSettings().withReportingEnabled(true));
     }
   }
 
@@ -0,0 +1,139 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsCollector;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsSnapshot;
+import jetbrains.buildServer.util.Dates;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Collects statistics in advance when the server is not busy, so the reporter finds a fresh snapshot
+ * and does not have to collect statistics at the reporting time. Disabled by default.
+ * <p/>
+ * Statistics is collected only if the current snapshot would be expired at the next scheduled report,
+ * so the collecting started by the reporting scheduler ahead of the report finds a fresh snapshot and is skipped.
+ * If the collecting window ({@code HH:mm-HH:mm}, server local time) is configured, statistics is collected inside it,
+ * otherwise at a moment of low server activity.
+ */
+public class UsageStatisticsPreCollectingScheduler extends BuildServerAdapter implements Runnable {
+  @NotNull private static final Logger LOG = Logger.getInstance(UsageStatisticsPreCollectingScheduler.class.getName());
+
+  @NotNull private static final String PRE_COLLECTING_ENABLED = "teamcity.usageStatistics.preCollecting.enabled";
+  @NotNull private static final String COLLECTING_WINDOW = "teamcity.usageStatistics.preCollecting.window";
+  @NotNull private static final String MAX_SERVER_PRESSURE = "teamcity.usageStatistics.preCollecting.lowActivity.max.pressure.percent";
+  private static final int DEFAULT_MAX_SERVER_PRESSURE = 20;
+  @NotNull private static final String CHECKING_INTERVAL = "teamcity.usageStatistics.preCollecting.checking.interval.minutes";
+  private static final int DEFAULT_CHECKING_INTERVAL = 5;
+  @NotNull private static final String REPORTING_PERIOD = "teamcity.usageStatistics.reporting.period.minutes";
+  private static final int DEFAULT_REPORTING_PERIOD = 24 * 60; // day
+
+  @NotNull private static final Pattern WINDOW_PATTERN = Pattern.compile("(\\d{1,2}):(\\d{2})\\s*-\\s*(\\d{1,2}):(\\d{2})");
+
+  @NotNull private final SBuildServer myServer;
+  @NotNull private final UsageStatisticsSettingsPersistor mySettingsPersistor;
+  @NotNull private final UsageStatisticsCommonDataPersistor myCommonDataPersistor;
+  @NotNull private final UsageStatisticsCollector myStatisticsCollector;
+  @NotNull private final UsageStatisticsCollectingPacer myPacer;
+  @NotNull private final ScheduledFuture<?> myTask;
+
+  public UsageStatisticsPreCollectingScheduler(@NotNull final SBuildServer server,
+                                               @NotNull final ScheduledExecutorService executor,
+                                               @NotNull final UsageStatisticsSettingsPersistor settingsPersistor,
+                                               @NotNull final UsageStatisticsCommonDataPersistor commonDataPersistor,
+                                               @NotNull final UsageStatisticsCollector statisticsCollector,
+                                               @NotNull final UsageStatisticsCollectingPacer pacer) {
+    myServer = server;
+    mySettingsPersistor = settingsPersistor;
+    myCommonDataPersistor = commonDataPersistor;
+    myStatisticsCollector = statisticsCollector;
+    myPacer = pacer;
+    final long checkingInterval = Math.max(1, TeamCityProperties.getLong(CHECKING_INTERVAL, DEFAULT_CHECKING_INTERVAL)) * Dates.ONE_MINUTE;
+    myTask = executor.scheduleAtFixedRate(this, checkingInterval, checkingInterval, TimeUnit.MILLISECONDS);
+    server.addListener(this);
+  }
+
+  @Override
+  public void serverShutdown() {
+    myTask.cancel(true);
+  }
+
+  public void run() {
+    try {
+      if (!TeamCityProperties.getBoolean(PRE_COLLECTING_ENABLED)) return;
+      if (!mySettingsPersistor.getSettings().isReportingEnabled()) return;
+      final long reportingPeriod = TeamCityProperties.getLong(REPORTING_PERIOD, DEFAULT_REPORTING_PERIOD) * Dates.ONE_MINUTE;
+      if (myStatisticsCollector.isCollectingNow() ||
+          !isExpiredAtNextReport(myStatisticsCollector.getSnapshot(), myCommonDataPersistor.getLastReportingDate(), Dates.now().getTime(), reportingPeriod)) return;
+      if (!isGoodMomentForCollecting()) return;
+
+      LOG.info("Collecting usage statistics in advance of reporting");
+      myStatisticsCollector.forceAsynchronousCollectingNow();
+    }
+    catch (final Throwable e) {
+      LOG.infoAndDebugDetails("Error scheduling usage statistics collecting: ", e);
+    }
+  }
+
+  /**
+   * The next report is due the reporting period after the last one, or now if nothing was reported yet.
+   * The snapshot expires the reporting period after it was collected, as in {@link UsageStatisticsReportingScheduler}.
+   */
+  static boolean isExpiredAtNextReport(@Nullable final UsageStatisticsSnapshot snapshot,
+                                       @Nullable final Date lastReportingDate,
+                                       final long now,
+                                       final long reportingPeriod) {
+    if (snapshot == null) return true;
+    final long nextReportTime = lastReportingDate == null ? now : Math.max(now, lastReportingDate.getTime() + reportingPeriod);
+    return snapshot.getFinishDate().getTime() + reportingPeriod < nextReportTime;
+  }
+
+  private boolean isGoodMomentForCollecting() {
+    final String window = TeamCityProperties.getProperty(COLLECTING_WINDOW);
+    if (StringUtil.isNotEmpty(window)) {
+      final Boolean insideWindow = isInsideWindow(window, Calendar.getInstance());
+      if (insideWindow != null) return insideWindow;
+      LOG.warn("Invalid usage statistics collecting window \"" + window + "\" is ignored, expected format is HH:mm-HH:mm with hours 0-23 and minutes 0-59");
+    }
+    return myServer.getRunningBuilds().isEmpty() &&
+           myPacer.getServerPressure() * 100 <= TeamCityProperties.getInteger(MAX_SERVER_PRESSURE, DEFAULT_MAX_SERVER_PRESSURE);
+  }
+
+  /**
+   * @return null if the window cannot be parsed or its times are out of range
+   */
+  @Nullable
+  static Boolean isInsideWindow(@NotNull final String window, @NotNull final Calendar now) {
+    final Matcher matcher = WINDOW_PATTERN.matcher(window.trim());
+    if (!matcher.matches()) return null;
+    final int start = parseTime(matcher.group(1), matcher.group(2));
+    final int end = parseTime(matcher.group(3), matcher.group(4));
+    if (start < 0 || end < 0) return null;
+    final int current = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+    if (start <= end) {
+      return start <= current && current < end;
+    }
+    return current >= start || current < end; // the window spans midnight
+  }
+
+  /**
+   * @return minutes since midnight or -1 if the time is out of range
+   */
+  private static int parseTime(@NotNull final String hours, @NotNull final String minutes) {
+    final int h = Integer.parseInt(hours);
+    final int m = Integer.parseInt(minutes);
+    if (h > 23 || m > 59) return -1;
+    return h * 60 + m;
+  }
+}
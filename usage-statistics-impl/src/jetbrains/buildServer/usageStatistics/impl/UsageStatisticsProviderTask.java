@@ -0,0 +1,228 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import jetbrains.buildServer.usageStatistics.AsyncUsageStatisticsProvider;
+import jetbrains.buildServer.usageStatistics.CancellableUsageStatisticsProvider;
+import jetbrains.buildServer.usageStatistics.CompactUsageStatistics;
+import jetbrains.buildServer.usageStatistics.UsageStatisticIdDictionary;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsProvider;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsProviderStatus;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsPublisher;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Collects statistics with one provider on a worker thread. The task is finished either by the provider
+ * or by the collector when the provider deadline is exceeded, whichever happens first.
+ * An {@link AsyncUsageStatisticsProvider} occupies the worker thread only while it is starting, the task is finished
+ * when its future is completed. Synchronous providers are treated as asynchronous ones completed on return.
+ */
+class UsageStatisticsProviderTask implements Runnable {
+  @NotNull private static final Logger LOG = Logger.getInstance(UsageStatisticsProviderTask.class.getName());
+
+  @NotNull private final UsageStatisticsProvider myProvider;
+  @NotNull private final UsageStatisticsCollectingPacer myPacer;
+  @NotNull private final Runnable myOnFinish;
+
+  @NotNull private final UsageStatisticIdDictionary myDictionary;
+  @NotNull private final CompactUsageStatistics.Builder myStatistics;
+  @NotNull private final AtomicReference<UsageStatisticsProviderStatus> myStatus = new AtomicReference<UsageStatisticsProviderStatus>();
+  @NotNull private final CountDownLatch myFinished = new CountDownLatch(1);
+  private volatile boolean myWorkerRunning = false;
+  @Nullable private volatile CompletableFuture<?> myProviderFuture = null;
+
+  UsageStatisticsProviderTask(@NotNull final UsageStatisticsProvider provider,
+                              @NotNull final UsageStatisticIdDictionary dictionary,
+                              @NotNull final UsageStatisticsCollectingPacer pacer,
+                              @NotNull final Runnable onFinish) {
+    myProvider = provider;
+    myDictionary = dictionary;
+    myStatistics = new CompactUsageStatistics.Builder(dictionary);
+    myPacer = pacer;
+    myOnFinish = onFinish;
+  }
+
+  @NotNull
+  UsageStatisticsProvider getProvider() {
+    return myProvider;
+  }
+
+  public void run() {
+    myWorkerRunning = true;
+    try {
+      doRun();
+    }
+    finally {
+      myWorkerRunning = false;
+    }
+  }
+
+  private void doRun() {
+    try {
+      NamedThreadFactory.executeWithNewThreadName("Collecting usage statistics with provider " + getProviderName(), new Runnable() {
+        public void run() {
+          final UsageStatisticsPublisher publisher = createPublisher();
+          if (myProvider instanceof AsyncUsageStatisticsProvider) {
+            myProviderFuture = ((AsyncUsageStatisticsProvider)myProvider).acceptAsynchronously(publisher);
+          }
+          else {
+            myProvider.accept(publisher);
+          }
+        }
+      });
+    }
+    catch (final Throwable e) {
+      providerFinished(e, true);
+      return;
+    }
+
+    final CompletableFuture<?> future = myProviderFuture;
+    if (future == null) {
+      providerFinished(null, true);
+      return;
+    }
+    if (myStatus.get() != null) {
+      future.cancel(true); // timed out while the provider was starting
+    }
+    future.whenComplete((result, e) -> providerFinished(e, false));
+  }
+
+  /**
+   * @param pause false for an asynchronous provider, its future can be completed by a thread which must not be blocked,
+   *              the load of such providers is limited by the number of them in flight instead
+   */
+  private void providerFinished(@Nullable final Throwable error, final boolean pause) {
+    final UsageStatisticsProviderStatus status = error == null ? UsageStatisticsProviderStatus.COLLECTED : UsageStatisticsProviderStatus.FAILED;
+    if (error != null && myStatus.get() == null) {
+      LOG.warnAndDebugDetails("Usage statistics provider " + getProviderName() + " failed", error);
+    }
+
+    if (!myStatus.compareAndSet(null, status)) return;
+    if (pause) {
+      try {
+        myPacer.pause();
+      }
+      catch (final InterruptedException ignore) {}
+    }
+    finish();
+  }
+
+  @NotNull
+  private UsageStatisticsPublisher createPublisher() {
+    return new UsageStatisticsPublisher() {
+      public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
+        if (myStatus.get() == null) {
+          myStatistics.publishStatistic(id, value);
+        }
+      }
+
+      @Override
+      public void publishInt(@NotNull final String id, final int value) {
+        if (myStatus.get() == null) {
+          myStatistics.publishInt(id, value);
+        }
+      }
+
+      @Override
+      public void publishLong(@NotNull final String id, final long value) {
+        if (myStatus.get() == null) {
+          myStatistics.publishLong(id, value);
+        }
+      }
+
+      @Override
+      public void publishDouble(@NotNull final String id, final double value) {
+        if (myStatus.get() == null) {
+          myStatistics.publishDouble(id, value);
+        }
+      }
+
+      @Override
+      public void publishFlag(@NotNull final String id, final boolean value) {
+        if (myStatus.get() == null) {
+          myStatistics.publishFlag(id, value);
+        }
+      }
+    };
+  }
+
+  /**
+   * Abandons the provider if it is still running.
+   *
+   * @return true if the provider was abandoned, false if it has already finished
+   */
+  boolean timeOut(final long timeout) {
+    if (!myStatus.compareAndSet(null, UsageStatisticsProviderStatus.TIMED_OUT)) return false;
+    LOG.warn("Usage statistics provider " + getProviderName() + " did not finish in " + timeout + " ms, its results are ignored");
+    if (myProvider instanceof CancellableUsageStatisticsProvider) {
+      try {
+        ((CancellableUsageStatisticsProvider)myProvider).cancel();
+      }
+      catch (final Throwable e) {
+        LOG.warnAndDebugDetails("Failed to cancel usage statistics provider " + getProviderName(), e);
+      }
+    }
+    final CompletableFuture<?> future = myProviderFuture;
+    if (future != null) {
+      future.cancel(true);
+    }
+    finish();
+    return true;
+  }
+
+  /**
+   * @return true if the worker thread is still executing the provider or the future of an asynchronous provider is not completed,
+   * e.g. when the provider has timed out and ignores cancellation
+   */
+  boolean isProviderRunning() {
+    final CompletableFuture<?> future = myProviderFuture;
+    return myWorkerRunning || future != null && !future.isDone();
+  }
+
+  void await() {
+    while (true) {
+      try {
+        myFinished.await();
+        return;
+      }
+      catch (final InterruptedException ignore) {}
+    }
+  }
+
+  /**
+   * Must be called after {@link #await()}.
+   */
+  @NotNull
+  UsageStatisticsProviderStatus getStatus() {
+    return myStatus.get();
+  }
+
+  /**
+   * Must be called after {@link #await()}, the values published by a timed out provider are ignored.
+   */
+  @NotNull
+  CompactUsageStatistics getStatistics() {
+    if (myStatus.get() == UsageStatisticsProviderStatus.TIMED_OUT) {
+      return CompactUsageStatistics.empty(myDictionary);
+    }
+    return myStatistics.build();
+  }
+
+  @NotNull
+  String getProviderName() {
+    return myProvider.getClass().getSimpleName();
+  }
+
+  private void finish() {
+    try {
+      myOnFinish.run();
+    }
+    finally {
+      myFinished.countDown();
+    }
+  }
+}
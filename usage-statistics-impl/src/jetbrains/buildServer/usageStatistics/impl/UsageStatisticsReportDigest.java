@@ -0,0 +1,164 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Hashes of the values sent in the last acknowledged report, used to send only the changed values next time.
+ * A value of up to 7 UTF-8 bytes is kept in its hash as is, a longer value is hashed with SHA-256,
+ * so a changed value is not mistaken for the reported one.
+ * The digest is kept in its own binary file, as it has an entry for every reported statistic.
+ */
+public class UsageStatisticsReportDigest {
+  @NotNull private static final Logger LOG = Logger.getInstance(UsageStatisticsReportDigest.class.getName());
+
+  private static final int MAGIC = 0x54435544; // "TCUD"
+  private static final int VERSION = 1;
+  private static final int MIN_ENTRY_SIZE = 2 + 8; // empty id and the hash
+  private static final int MAX_INLINED_LENGTH = 7;
+
+  @NotNull private final Date myReportDate;
+  @NotNull private final Date myFullReportDate;
+  @NotNull private final Map<String, Long> myValueHashes;
+
+  public UsageStatisticsReportDigest(@NotNull final Date reportDate,
+                                     @NotNull final Date fullReportDate,
+                                     @NotNull final Map<String, Long> valueHashes) {
+    myReportDate = reportDate;
+    myFullReportDate = fullReportDate;
+    myValueHashes = Collections.unmodifiableMap(valueHashes);
+  }
+
+  /**
+   * @return date of the report the digest was made for
+   */
+  @NotNull
+  public Date getReportDate() {
+    return myReportDate;
+  }
+
+  /**
+   * @return date of the last report with all the values, the following reports contain changes only
+   */
+  @NotNull
+  public Date getFullReportDate() {
+    return myFullReportDate;
+  }
+
+  /**
+   * @return map: statistic id -> value hash
+   */
+  @NotNull
+  public Map<String, Long> getValueHashes() {
+    return myValueHashes;
+  }
+
+  public boolean isChanged(@NotNull final String id, final long valueHash) {
+    final Long hash = myValueHashes.get(id);
+    return hash == null || hash != valueHash;
+  }
+
+  /**
+   * @return the short value itself with its length in the highest byte, or the first 63 bits of the SHA-256 digest
+   * of the longer value with the highest bit set
+   */
+  public static long hash(@NotNull final String value) {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length <= MAX_INLINED_LENGTH) {
+      long result = (long)bytes.length << 56;
+      for (int i = 0; i < bytes.length; i++) {
+        result |= (bytes[i] & 0xFFL) << (8 * i);
+      }
+      return result;
+    }
+    final byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+    }
+    catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // every Java platform supports SHA-256
+    }
+    long result = 0;
+    for (int i = 0; i < 8; i++) {
+      result = result << 8 | digest[i] & 0xFFL;
+    }
+    return result | Long.MIN_VALUE;
+  }
+
+  /**
+   * Writes the digest to a temporary file which is synced to the disk and then replaces the digest file.
+   */
+  void writeTo(@NotNull final File file) throws IOException {
+    final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+    try {
+      FileUtil.createParentDirs(tempFile);
+      final FileOutputStream fileOut = new FileOutputStream(tempFile);
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(myReportDate.getTime());
+        out.writeLong(myFullReportDate.getTime());
+        out.writeInt(myValueHashes.size());
+        for (final Map.Entry<String, Long> entry : myValueHashes.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeLong(entry.getValue());
+        }
+        out.flush();
+        fileOut.getFD().sync();
+      }
+      finally {
+        out.close();
+      }
+      if (!FileUtil.rename(tempFile, file)) {
+        throw new IOException("Failed to rename \"" + tempFile.getAbsolutePath() + "\"");
+      }
+    }
+    catch (final IOException e) {
+      FileUtil.delete(tempFile);
+      throw e;
+    }
+  }
+
+  /**
+   * @return null if there is no digest file or it is malformed, so the next report is full
+   */
+  @Nullable
+  static UsageStatisticsReportDigest readFrom(@NotNull final File file) {
+    if (!file.isFile()) return null;
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Unsupported file format");
+        final Date reportDate = new Date(in.readLong());
+        final Date fullReportDate = new Date(in.readLong());
+        final int count = in.readInt();
+        if (count < 0 || count > file.length() / MIN_ENTRY_SIZE) {
+          throw new IOException("Corrupt file: invalid number of values " + count);
+        }
+        final Map<String, Long> valueHashes = new HashMap<String, Long>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+          valueHashes.put(in.readUTF(), in.readLong());
+        }
+        return new UsageStatisticsReportDigest(reportDate, fullReportDate, valueHashes);
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (final IOException e) {
+      LOG.warnAndDebugDetails("Failed to read the last usage statistics report digest from the \"" + file.getAbsolutePath() + "\" file, the next report is full", e);
+      return null;
+    }
+  }
+}
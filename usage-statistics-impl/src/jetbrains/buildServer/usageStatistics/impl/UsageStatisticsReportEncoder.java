@@ -0,0 +1,42 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Encodes the reported statistics into the request body. The encoder is selected by the
+ * {@code teamcity.usageStatistics.reporting.encoder} property.
+ */
+public interface UsageStatisticsReportEncoder {
+  /**
+   * @return encoder id used in the selecting property
+   */
+  @NotNull
+  String getId();
+
+  /**
+   * @return content type of the request body or null for the default form content type
+   */
+  @Nullable
+  String getContentType();
+
+  /**
+   * Starts encoding a report into the specified stream. The stream is closed by the caller.
+   */
+  @NotNull
+  Encoding startEncoding(@NotNull OutputStream out) throws IOException;
+
+  interface Encoding {
+    void writeStatistic(@NotNull String id, @NotNull String value) throws IOException;
+
+    /**
+     * Writes the id of the statistic which was reported before but is not present anymore,
+     * called after all the statistics are written.
+     */
+    void writeRemoved(@NotNull String id) throws IOException;
+
+    void finish() throws IOException;
+  }
+}
@@ -0,0 +1,226 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.ServerResponsibility;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.Dates;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the encoded report which was not accepted by the statistics server, so it can be sent again
+ * with an exponential backoff instead of collecting and encoding the statistics again.
+ * Only the latest failed report is kept.
+ */
+public class UsageStatisticsReportOutbox {
+  @NotNull private static final Logger LOG = Logger.getInstance(UsageStatisticsReportOutbox.class.getName());
+
+  @NotNull private static final String INITIAL_RETRY_DELAY = "teamcity.usageStatistics.reporting.retry.initial.delay.minutes";
+  private static final int DEFAULT_INITIAL_RETRY_DELAY = 5;
+  @NotNull private static final String MAX_RETRY_DELAY = "teamcity.usageStatistics.reporting.retry.max.delay.minutes";
+  private static final int DEFAULT_MAX_RETRY_DELAY = 12 * 60; // 12 hours
+  @NotNull private static final String MAX_REPORT_AGE = "teamcity.usageStatistics.reporting.retry.max.age.hours";
+  private static final int DEFAULT_MAX_REPORT_AGE = 3 * 24; // 3 days
+  private static final double JITTER = 0.2;
+
+  private static final int MAGIC = 0x5443554F; // "TCUO"
+  private static final int VERSION = 2;
+
+  @NotNull private final File myFile;
+  @NotNull private final ServerResponsibility myServerResponsibility;
+
+  public UsageStatisticsReportOutbox(@NotNull final ServerPaths serverPaths,
+                                     @NotNull final ServerResponsibility serverResponsibility) {
+    myFile = new File(new File(serverPaths.getPluginDataDirectory(), "usage-statistics"), "pendingReport.bin");
+    myServerResponsibility = serverResponsibility;
+  }
+
+  /**
+   * @return the pending report or null if there is none, too old report is dropped
+   */
+  @Nullable
+  public synchronized Entry get() {
+    return read(true);
+  }
+
+  /**
+   * Reads the header of the pending report only, so the scheduler does not load the report body on every wake-up.
+   * @return the next attempt date of the pending report or null if there is none, too old report is dropped
+   */
+  @Nullable
+  public synchronized Date getNextAttemptDate() {
+    final Entry entry = read(false);
+    return entry == null ? null : entry.getNextAttemptDate();
+  }
+
+  /**
+   * @param withBody false to skip the report body, the entry gets an empty body then
+   */
+  @Nullable
+  private Entry read(final boolean withBody) {
+    if (!myFile.isFile()) return null;
+    final Entry entry;
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Unsupported file format");
+        final Date creationDate = new Date(in.readLong());
+        final int attempts = in.readInt();
+        final Date nextAttemptDate = new Date(in.readLong());
+        final boolean compressed = in.readBoolean();
+        final String contentType = in.readUTF();
+        final int length = in.readInt();
+        if (length < 0 || length > myFile.length()) { // the body cannot be longer than the whole file
+          throw new IOException("Corrupt file: invalid report length " + length);
+        }
+        final byte[] body = new byte[withBody ? length : 0];
+        in.readFully(body);
+        entry = new Entry(creationDate, attempts, nextAttemptDate, compressed, contentType.isEmpty() ? null : contentType, body);
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (final IOException e) {
+      LOG.warnAndDebugDetails("Failed to read pending usage statistics report from the \"" + myFile.getAbsolutePath() + "\" file", e);
+      remove();
+      return null;
+    }
+
+    final long maxAge = TeamCityProperties.getLong(MAX_REPORT_AGE, DEFAULT_MAX_REPORT_AGE) * Dates.ONE_HOUR;
+    if (Dates.now().getTime() - entry.getCreationDate().getTime() > maxAge) {
+      LOG.info("Pending usage statistics report created at " + entry.getCreationDate() + " is too old, dropping it");
+      remove();
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Replaces the pending report with a new one, which is going to be sent again after the initial delay.
+   */
+  public synchronized void add(@NotNull final byte[] body, final boolean compressed, @Nullable final String contentType) {
+    save(new Entry(Dates.now(), 1, new Date(Dates.now().getTime() + getRetryDelay(1)), compressed, contentType, body));
+  }
+
+  /**
+   * Postpones the next attempt to send the report after one more failure.
+   */
+  public synchronized void postpone(@NotNull final Entry entry) {
+    final int attempts = entry.getAttempts() + 1;
+    save(new Entry(entry.getCreationDate(), attempts, new Date(Dates.now().getTime() + getRetryDelay(attempts)), entry.isCompressed(), entry.getContentType(), entry.getBody()));
+  }
+
+  public synchronized void remove() {
+    FileUtil.delete(myFile);
+  }
+
+  /**
+   * Writes the report to a temporary file which is synced to the disk and then replaces the pending report file.
+   */
+  private void save(@NotNull final Entry entry) {
+    if (!myServerResponsibility.canWriteToConfigDirectory()) return;
+    final File tempFile = new File(myFile.getParentFile(), myFile.getName() + ".tmp");
+    try {
+      FileUtil.createParentDirs(tempFile);
+      final FileOutputStream fileOut = new FileOutputStream(tempFile);
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(entry.getCreationDate().getTime());
+        out.writeInt(entry.getAttempts());
+        out.writeLong(entry.getNextAttemptDate().getTime());
+        out.writeBoolean(entry.isCompressed());
+        out.writeUTF(entry.getContentType() == null ? "" : entry.getContentType());
+        out.writeInt(entry.getBody().length);
+        out.write(entry.getBody());
+        out.flush();
+        fileOut.getFD().sync();
+      }
+      finally {
+        out.close();
+      }
+      if (!FileUtil.rename(tempFile, myFile)) {
+        throw new IOException("Failed to rename \"" + tempFile.getAbsolutePath() + "\"");
+      }
+    }
+    catch (final IOException e) {
+      LOG.warnAndDebugDetails("Failed to save pending usage statistics report to the \"" + myFile.getAbsolutePath() + "\" file", e);
+      FileUtil.delete(tempFile);
+    }
+  }
+
+  /**
+   * @return initial delay doubled after every failed attempt, limited by the maximum delay, with a random jitter
+   */
+  private static long getRetryDelay(final int attempts) {
+    final long initialDelay = Math.max(1, TeamCityProperties.getLong(INITIAL_RETRY_DELAY, DEFAULT_INITIAL_RETRY_DELAY)) * Dates.ONE_MINUTE;
+    final long maxDelay = Math.max(initialDelay, TeamCityProperties.getLong(MAX_RETRY_DELAY, DEFAULT_MAX_RETRY_DELAY) * Dates.ONE_MINUTE);
+    final long delay = Math.min(maxDelay, initialDelay << Math.min(attempts - 1, 30));
+    final double jitter = 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+    return Math.round(delay * jitter);
+  }
+
+  public static class Entry {
+    @NotNull private final Date myCreationDate;
+    private final int myAttempts;
+    @NotNull private final Date myNextAttemptDate;
+    private final boolean myCompressed;
+    @Nullable private final String myContentType;
+    @NotNull private final byte[] myBody;
+
+    Entry(@NotNull final Date creationDate,
+          final int attempts,
+          @NotNull final Date nextAttemptDate,
+          final boolean compressed,
+          @Nullable final String contentType,
+          @NotNull final byte[] body) {
+      myCreationDate = creationDate;
+      myAttempts = attempts;
+      myNextAttemptDate = nextAttemptDate;
+      myCompressed = compressed;
+      myContentType = contentType;
+      myBody = body;
+    }
+
+    @NotNull
+    public Date getCreationDate() {
+      return myCreationDate;
+    }
+
+    /**
+     * @return number of failed attempts to send the report
+     */
+    public int getAttempts() {
+      return myAttempts;
+    }
+
+    @NotNull
+    public Date getNextAttemptDate() {
+      return myNextAttemptDate;
+    }
+
+    public boolean isCompressed() {
+      return myCompressed;
+    }
+
+    /**
+     * @return content type of the body, null for the default form content type
+     */
+    @Nullable
+    public String getContentType() {
+      return myContentType;
+    }
+
+    @NotNull
+    public byte[] getBody() {
+      return myBody;
+    }
+  }
+}
@@ -2,22 +2,31 @@
 package jetbrains.buildServer.usageStatistics.impl;
 
 import com.intellij.openapi.diagnostic.Logger;
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import jetbrains.buildServer.serverSide.ServerResponsibility;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsCollector;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsPublisher;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsReporter;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsSnapshot;
 import jetbrains.buildServer.util.Dates;
 import jetbrains.buildServer.util.HTTPRequestBuilder;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.XmlUtil;
-import jetbrains.buildServer.web.util.WebUtil;
 import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -25,48 +34,210 @@ import org.jetbrains.annotations.Nullable;
 public class UsageStatisticsReporterImpl implements UsageStatisticsReporter {
   @NotNull private static final Logger LOG = Logger.getInstance(UsageStatisticsReporterImpl.class.getName());
 
+  @NotNull private static final String COMPRESSION_ENABLED = "teamcity.usageStatistics.reporting.compression.enabled";
+  private static final int UNSUPPORTED_MEDIA_TYPE = 415;
+  @NotNull private static final String DELTA_REPORTING_ENABLED = "teamcity.usageStatistics.reporting.delta.enabled";
+  @NotNull private static final String FULL_REPORT_PERIOD = "teamcity.usageStatistics.reporting.delta.fullReportPeriod.days";
+  private static final int DEFAULT_FULL_REPORT_PERIOD = 7;
+  @NotNull private static final String ENCODER = "teamcity.usageStatistics.reporting.encoder";
+  @NotNull private static final String DEFAULT_ENCODER = "form";
+
   @NotNull private final UsageStatisticsCollector myStatisticsCollector;
   @NotNull private final UsageStatisticsCommonDataPersistor myCommonDataPersistor;
   @NotNull private final HTTPRequestBuilder.RequestHandler myRequestHandler;
   @NotNull private final ServerResponsibility myServerResponsibility;
+  @NotNull private final UsageStatisticsReportOutbox myOutbox;
+  @NotNull private final List<UsageStatisticsReportEncoder> myEncoders;
+  @NotNull private final ScheduledExecutorService myExecutor;
+  private volatile boolean myCompressionRejected = false; // the statistics server does not accept gzipped requests
 
   public UsageStatisticsReporterImpl(@NotNull final UsageStatisticsCollector statisticsCollector,
                                      @NotNull final UsageStatisticsCommonDataPersistor commonDataPersistor,
                                      @NotNull final HTTPRequestBuilder.RequestHandler requestHandler,
-                                     @NotNull final ServerResponsibility serverResponsibility) {
+                                     @NotNull final ServerResponsibility serverResponsibility,
+                                     @NotNull final UsageStatisticsReportOutbox outbox,
+                                     @NotNull final List<UsageStatisticsReportEncoder> encoders,
+                                     @NotNull final ScheduledExecutorService executor) {
     myStatisticsCollector = statisticsCollector;
     myCommonDataPersistor = commonDataPersistor;
     myRequestHandler = requestHandler;
     myServerResponsibility = serverResponsibility;
+    myOutbox = outbox;
+    myEncoders = encoders;
+    myExecutor = executor;
   }
 
-  public boolean reportStatistics(final long statisticsExpirationPeriod) {
-    if (!myStatisticsCollector.isStatisticsCollected() || collectedStatisticsExpired(statisticsExpirationPeriod)) {
-      myStatisticsCollector.collectStatisticsAndWait();
+  @NotNull
+  public CompletableFuture<Boolean> reportStatistics(final long statisticsExpirationPeriod) {
+    if (myServerResponsibility.canReportUsageStatistics()) {
+      final UsageStatisticsReportOutbox.Entry pendingReport = myOutbox.get();
+      if (pendingReport != null) {
+        return CompletableFuture.completedFuture(resendPendingReport(pendingReport));
+      }
     }
-    return doReportStatistics(createDataString(collectStatistics()));
-  }
 
-  private boolean collectedStatisticsExpired(final long statisticsExpirationPeriod) {
-    return Dates.now().getTime() > myStatisticsCollector.getLastCollectingFinishDate().getTime() + statisticsExpirationPeriod;
+    final UsageStatisticsSnapshot snapshot = myStatisticsCollector.getSnapshot();
+    if (snapshot != null && !collectedStatisticsExpired(snapshot, statisticsExpirationPeriod)) {
+      return CompletableFuture.completedFuture(reportSnapshot(snapshot));
+    }
+    // the report is sent from the executor once the collecting finishes, no thread waits for it
+    return myStatisticsCollector.collectStatisticsAsynchronously().thenApplyAsync(this::reportSnapshot, myExecutor);
   }
 
-  private boolean doReportStatistics(@NotNull final String data) {
+  private boolean reportSnapshot(@NotNull final UsageStatisticsSnapshot snapshot) {
     if (!myServerResponsibility.canReportUsageStatistics()) {
       LOG.debug("Server is not responsible for sending statistics");
       return true;
     }
+
+    // the values are hashed for the digest of the delta reporting only
+    final boolean deltaReporting = TeamCityProperties.getBoolean(DELTA_REPORTING_ENABLED);
+    final UsageStatisticsReportDigest deltaBase = deltaReporting ? getDeltaBase() : null;
+    final Map<String, Long> valueHashes = deltaReporting ? new HashMap<String, Long>() : null;
+    final UsageStatisticsReportEncoder encoder = getEncoder();
+    final boolean compress = !myCompressionRejected && TeamCityProperties.getBoolean(COMPRESSION_ENABLED);
+    boolean reported;
+    try {
+      byte[] body = createRequestBody(snapshot, deltaBase, valueHashes, encoder, compress);
+      boolean compressed = compress;
+      reported = doReportStatistics(body, compressed, encoder.getContentType());
+      if (!reported && compressed && myCompressionRejected) {
+        LOG.info("Usage statistics server does not accept compressed data, sending it uncompressed");
+        body = createRequestBody(snapshot, deltaBase, valueHashes, encoder, false);
+        compressed = false;
+        reported = doReportStatistics(body, compressed, encoder.getContentType());
+      }
+      if (!reported) {
+        myOutbox.add(body, compressed, encoder.getContentType());
+      }
+    }
+    catch (final IOException e) {
+      LOG.warnAndDebugDetails("Cannot encode usage statistics", e);
+      reported = false;
+    }
+
+    updateReportDigest(reported, deltaBase, valueHashes);
+    return reported;
+  }
+
+  /**
+   * Sends the already encoded report which was not accepted last time, if its backoff delay has passed.
+   */
+  private boolean resendPendingReport(@NotNull final UsageStatisticsReportOutbox.Entry pendingReport) {
+    if (Dates.now().before(pendingReport.getNextAttemptDate())) {
+      LOG.debug("Next attempt to send pending usage statistics report is scheduled at " + pendingReport.getNextAttemptDate());
+      return false;
+    }
+
+    boolean reported;
+    try {
+      final boolean compressed = pendingReport.isCompressed() && !myCompressionRejected;
+      final byte[] body = pendingReport.isCompressed() && !compressed ? decompress(pendingReport.getBody()) : pendingReport.getBody();
+      reported = doReportStatistics(body, compressed, pendingReport.getContentType());
+      if (!reported && compressed && myCompressionRejected) {
+        reported = doReportStatistics(decompress(body), false, pendingReport.getContentType());
+      }
+    }
+    catch (final IOException e) {
+      LOG.warnAndDebugDetails("Cannot decode pending usage statistics report, dropping it", e);
+      myOutbox.remove();
+      return false;
+    }
+
+    if (reported) {
+      LOG.info("Pending usage statistics report was sent after " + pendingReport.getAttempts() + " failed attempt(s)");
+      myOutbox.remove();
+    }
+    else {
+      myOutbox.postpone(pendingReport);
+    }
+    return reported;
+  }
+
+  @NotNull
+  private static byte[] decompress(@NotNull final byte[] data) throws IOException {
+    final ByteArrayOutputStream result = new ByteArrayOutputStream(data.length * 4);
+    final GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+    try {
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        result.write(buffer, 0, read);
+      }
+    }
+    finally {
+      in.close();
+    }
+    return result.toByteArray();
+  }
+
+  /**
+   * @return digest of the report to send the changes against or null if all the values should be sent
+   */
+  @Nullable
+  private UsageStatisticsReportDigest getDeltaBase() {
+    final UsageStatisticsReportDigest digest = myCommonDataPersistor.getLastReportDigest();
+    if (digest == null) return null;
+    final long fullReportPeriod = TeamCityProperties.getLong(FULL_REPORT_PERIOD, DEFAULT_FULL_REPORT_PERIOD) * Dates.ONE_DAY;
+    return Dates.now().getTime() - digest.getFullReportDate().getTime() < fullReportPeriod ? digest : null;
+  }
+
+  private void updateReportDigest(final boolean reported, @Nullable final UsageStatisticsReportDigest deltaBase, @Nullable final Map<String, Long> valueHashes) {
+    if (valueHashes == null) {
+      if (myCommonDataPersistor.getLastReportDigest() != null) {
+        myCommonDataPersistor.setLastReportDigest(null);
+      }
+      return;
+    }
+    if (reported) {
+      final Date now = Dates.now();
+      myCommonDataPersistor.setLastReportDigest(new UsageStatisticsReportDigest(now, deltaBase == null ? now : deltaBase.getFullReportDate(), valueHashes));
+    }
+    else if (myCommonDataPersistor.getLastReportDigest() != null) {
+      myCommonDataPersistor.setLastReportDigest(null); // the statistics server may have lost the base report, the next report is full
+    }
+  }
+
+  private static boolean collectedStatisticsExpired(@NotNull final UsageStatisticsSnapshot snapshot, final long statisticsExpirationPeriod) {
+    return Dates.now().getTime() > snapshot.getFinishDate().getTime() + statisticsExpirationPeriod;
+  }
+
+  @NotNull
+  private UsageStatisticsReportEncoder getEncoder() {
+    final String encoderId = TeamCityProperties.getProperty(ENCODER, DEFAULT_ENCODER);
+    UsageStatisticsReportEncoder defaultEncoder = null;
+    for (final UsageStatisticsReportEncoder encoder : myEncoders) {
+      if (encoder.getId().equals(encoderId)) return encoder;
+      if (encoder.getId().equals(DEFAULT_ENCODER)) {
+        defaultEncoder = encoder;
+      }
+    }
+    LOG.warn("Unknown usage statistics report encoder \"" + encoderId + "\", using \"" + DEFAULT_ENCODER + "\"");
+    return defaultEncoder != null ? defaultEncoder : new FormUsageStatisticsReportEncoder();
+  }
+
+  private boolean doReportStatistics(@NotNull final byte[] data, final boolean compressed, @Nullable final String contentType) {
     try {
       final AtomicReference<String> result = new AtomicReference<>();
       String serverUrl = TeamCityProperties.getProperty("teamcity.usageStatistics.server.url", "https://teamcity-stats.services.jetbrains.com/report.html");
-      final HTTPRequestBuilder.Request post =
+      final HTTPRequestBuilder requestBuilder =
         new HTTPRequestBuilder(serverUrl)
           .allowNonSecureConnection(true)
           .withDomainCheck(TeamCityProperties.getBooleanOrTrue("teamcity.usageStatistics.server.checkDomain"))
           .withMethod("POST")
-          .withData(data.getBytes("UTF-8"))
+          .withData(data);
+      if (contentType != null) {
+        requestBuilder.withHeader("Content-Type", contentType);
+      }
+      if (compressed) {
+        requestBuilder.withHeader("Content-Encoding", "gzip");
+      }
+      final HTTPRequestBuilder.Request post =
+        requestBuilder
           .onErrorResponse((state, text) -> {
-            if (state == 404) {
+            if (compressed && state == UNSUPPORTED_MEDIA_TYPE) {
+              myCompressionRejected = true;
+            } else if (state == 404) {
               LOG.info("Cannot send usage statistics to \"" + serverUrl + "\": server unavailable");
             } else {
               if (text != null) {
@@ -111,7 +282,6 @@ public class UsageStatisticsReporterImpl implements UsageStatisticsReporter {
       }
 
       return true;
-    } catch (UnsupportedEncodingException ignore) {
     } catch (URISyntaxException e) {
       LOG.info("Cannot send usage statistics: " + e.getMessage());
     }
@@ -119,32 +289,157 @@ public class UsageStatisticsReporterImpl implements UsageStatisticsReporter {
     return false;
   }
 
+  /**
+   * Encodes the statistics right into the (optionally gzipped) request body, without intermediate copies of the whole data.
+   */
   @NotNull
-  private static String createDataString(@NotNull final Map<String, String> statistics) {
-    final StringBuilder sb = new StringBuilder();
-    for (final Map.Entry<String, String> entry : statistics.entrySet()) {
-      sb.append('&').append(WebUtil.encode(entry.getKey())).append('=').append(WebUtil.encode(entry.getValue()));
+  private byte[] createRequestBody(@NotNull final UsageStatisticsSnapshot snapshot,
+                                   @Nullable final UsageStatisticsReportDigest deltaBase,
+                                   @Nullable final Map<String, Long> valueHashes,
+                                   @NotNull final UsageStatisticsReportEncoder encoder,
+                                   final boolean compress) throws IOException {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final OutputStream out = compress ? new GZIPOutputStream(body) : body;
+    try {
+      final UsageStatisticsReportEncoder.Encoding encoding = encoder.startEncoding(out);
+      writeStatistics(snapshot, myCommonDataPersistor.getLastReportingDate(), deltaBase, valueHashes, encoding);
+      encoding.finish();
+    }
+    finally {
+      out.close();
     }
-    return sb.length() == 0 ? "" : sb.substring(1);
+    return body.toByteArray();
   }
 
-  @NotNull
-  private Map<String, String> collectStatistics() {
-    final Map<String, String> myStatistics = new HashMap<String, String>();
+  /**
+   * Every statistic is written once, the last published value wins, as when the statistics were collected into a map.
+   * The report's own values, like {@code jb.collectingFinishDate}, replace the published values with the same ids.
+   *
+   * @param deltaBase   if not null, only the values changed since the base report are written, removed values are written as {@code jb.removed},
+   *                    requires the value hashes
+   * @param valueHashes if not null, filled with the hashes of all the statistics values, the values are not hashed otherwise
+   */
+  static void writeStatistics(@NotNull final UsageStatisticsSnapshot snapshot,
+                              @Nullable final Date lastReportingDate,
+                              @Nullable final UsageStatisticsReportDigest deltaBase,
+                              @Nullable final Map<String, Long> valueHashes,
+                              @NotNull final UsageStatisticsReportEncoder.Encoding encoding) throws IOException {
+    final Map<String, String> reportValues = new LinkedHashMap<String, String>();
+    reportValues.put("jb.collectingFinishDate", String.valueOf(snapshot.getFinishDate().getTime()));
+    if (lastReportingDate != null) {
+      reportValues.put("jb.previousReportDate", String.valueOf(lastReportingDate.getTime()));
+    }
+    if (deltaBase == null) {
+      if (TeamCityProperties.getBoolean(DELTA_REPORTING_ENABLED)) {
+        reportValues.put("jb.reportType", "full");
+      }
+    }
+    else {
+      reportValues.put("jb.reportType", "delta");
+      reportValues.put("jb.deltaBaseDate", String.valueOf(deltaBase.getReportDate().getTime()));
+    }
 
-    myStatisticsCollector.publishCollectedStatistics(new UsageStatisticsPublisher() {
-      public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
-        myStatistics.put(id, String.valueOf(value));
+    if (valueHashes != null) {
+      valueHashes.clear();
+    }
+    else if (deltaBase != null) {
+      throw new IllegalArgumentException("Delta report requires the value hashes");
+    }
+    final ReportWriter report = new ReportWriter(encoding);
+    snapshot.publishLastValues(new StatisticVisitor() {
+      @Override
+      void visit(@NotNull final String id, @NotNull final String value) {
+        if (reportValues.containsKey(id)) return;
+        if (valueHashes == null) {
+          report.writeStatistic(id, value);
+          return;
+        }
+        final long hash = UsageStatisticsReportDigest.hash(value);
+        valueHashes.put(id, hash);
+        if (deltaBase == null || deltaBase.isChanged(id, hash)) {
+          report.writeStatistic(id, value);
+        }
       }
     });
 
-    myStatistics.put("jb.collectingFinishDate", String.valueOf(myStatisticsCollector.getLastCollectingFinishDate().getTime()));
+    for (final Map.Entry<String, String> reportValue : reportValues.entrySet()) {
+      report.writeStatistic(reportValue.getKey(), reportValue.getValue());
+    }
+    if (deltaBase != null) {
+      for (final String id : deltaBase.getValueHashes().keySet()) {
+        if (!valueHashes.containsKey(id)) {
+          report.writeRemoved(id);
+        }
+      }
+    }
 
-    final Date lastReportingDate = myCommonDataPersistor.getLastReportingDate();
-    if (lastReportingDate != null) {
-      myStatistics.put("jb.previousReportDate", String.valueOf(lastReportingDate.getTime()));
+    report.rethrowError();
+  }
+
+  /**
+   * Converts the published values to the strings they are reported as.
+   */
+  private static abstract class StatisticVisitor implements UsageStatisticsPublisher {
+    abstract void visit(@NotNull String id, @NotNull String value);
+
+    public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
+      visit(id, String.valueOf(value));
+    }
+
+    @Override
+    public void publishInt(@NotNull final String id, final int value) {
+      visit(id, Integer.toString(value));
+    }
+
+    @Override
+    public void publishLong(@NotNull final String id, final long value) {
+      visit(id, Long.toString(value));
+    }
+
+    @Override
+    public void publishDouble(@NotNull final String id, final double value) {
+      visit(id, Double.toString(value));
+    }
+
+    @Override
+    public void publishFlag(@NotNull final String id, final boolean value) {
+      visit(id, Boolean.toString(value));
+    }
+  }
+
+  /**
+   * Remembers the first encoding error, so the encoding can be driven by a {@link UsageStatisticsPublisher}.
+   */
+  private static class ReportWriter {
+    @NotNull private final UsageStatisticsReportEncoder.Encoding myEncoding;
+    @Nullable private IOException myError = null;
+
+    ReportWriter(@NotNull final UsageStatisticsReportEncoder.Encoding encoding) {
+      myEncoding = encoding;
+    }
+
+    void writeStatistic(@NotNull final String id, @NotNull final String value) {
+      if (myError != null) return;
+      try {
+        myEncoding.writeStatistic(id, value);
+      }
+      catch (final IOException e) {
+        myError = e;
+      }
     }
 
-    return myStatistics;
+    void writeRemoved(@NotNull final String id) {
+      if (myError != null) return;
+      try {
+        myEncoding.writeRemoved(id);
+      }
+      catch (final IOException e) {
+        myError = e;
+      }
+    }
+
+    void rethrowError() throws IOException {
+      if (myError != null) throw myError;
+    }
   }
 }
\ No newline at end of file
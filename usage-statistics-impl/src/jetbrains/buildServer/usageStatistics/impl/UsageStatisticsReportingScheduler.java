@@ -1,66 +1,209 @@
-
 package jetbrains.buildServer.usageStatistics.impl;
 
 import com.intellij.openapi.diagnostic.Logger;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsCollector;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsReporter;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsSnapshot;
 import jetbrains.buildServer.util.Dates;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+/**
+ * Schedules a single task for the time the next report is due: the next attempt of the pending report if there is one,
+ * otherwise the reporting period after the last report. Nothing is scheduled while the reporting is disabled,
+ * the task is rescheduled on every settings change.
+ * If the statistics would be expired by the deadline, their collecting is started a bit earlier, so the report does not wait for it.
+ */
 public class UsageStatisticsReportingScheduler extends BuildServerAdapter implements Runnable {
   @NotNull private static final Logger LOG = Logger.getInstance(UsageStatisticsReportingScheduler.class.getName());
 
   @NotNull private static final String REPORTING_PERIOD = "teamcity.usageStatistics.reporting.period.minutes";
   private static final int DEFAULT_REPORTING_PERIOD = 24 * 60; // day
+  private static final long MIN_DELAY = Dates.ONE_MINUTE;
+  @NotNull private static final String COLLECTING_LEAD = "teamcity.usageStatistics.reporting.collectingLead.minutes";
+  private static final int DEFAULT_COLLECTING_LEAD = 30;
 
-  @NotNull private final UsageStatisticsSettingsPersistor mySettingsPersistor;
+  @NotNull private final ScheduledExecutorService myExecutor;
+  @NotNull private final UsageStatisticsCollector myStatisticsCollector;
   @NotNull private final UsageStatisticsCommonDataPersistor myCommonDataPersistor;
   @NotNull private final UsageStatisticsReporter myStatisticsReporter;
-  @NotNull private final ScheduledFuture<?> myTask;
+  @NotNull private final UsageStatisticsReportOutbox myOutbox;
+  @NotNull private final Object myLock = new Object();
+  @Nullable private ScheduledFuture<?> myTask = null; // guarded by myLock
+  @Nullable private ScheduledFuture<?> myCollectingTask = null; // guarded by myLock
+  private boolean myRunning = false; // guarded by myLock
+  private boolean myShutdown = false; // guarded by myLock
+  private volatile boolean myReportingEnabled;
 
   public UsageStatisticsReportingScheduler(@NotNull final SBuildServer server,
                                            @NotNull final ScheduledExecutorService executor,
+                                           @NotNull final UsageStatisticsCollector statisticsCollector,
                                            @NotNull final UsageStatisticsSettingsPersistor settingsPersistor,
                                            @NotNull final UsageStatisticsCommonDataPersistor commonDataPersistor,
-                                           @NotNull final UsageStatisticsReporter statisticsReporter) {
-    mySettingsPersistor = settingsPersistor;
+                                           @NotNull final UsageStatisticsReporter statisticsReporter,
+                                           @NotNull final UsageStatisticsReportOutbox outbox) {
+    myExecutor = executor;
+    myStatisticsCollector = statisticsCollector;
     myCommonDataPersistor = commonDataPersistor;
     myStatisticsReporter = statisticsReporter;
-    final long checkingInterval = Math.max(Dates.ONE_MINUTE, getReportingPeriod() / 100);
-    myTask = executor.scheduleAtFixedRate(this, checkingInterval, checkingInterval, TimeUnit.MILLISECONDS);
+    myOutbox = outbox;
+    myReportingEnabled = settingsPersistor.getSettings().isReportingEnabled();
+    settingsPersistor.addSettingsListener(settings -> {
+      myReportingEnabled = settings.isReportingEnabled();
+      reschedule(false);
+    });
     server.addListener(this);
+    reschedule(false);
+  }
+
+  @Override
+  public void serverStartup() {
+    reschedule(false); // the last reporting date is loaded now
   }
 
   @Override
   public void serverShutdown() {
-    myTask.cancel(true);
+    synchronized (myLock) {
+      myShutdown = true;
+      cancelTasks(true);
+    }
   }
 
   public void run() {
+    synchronized (myLock) {
+      if (myShutdown) return;
+      myTask = null;
+      myRunning = true;
+    }
+    CompletableFuture<Boolean> report = CompletableFuture.completedFuture(null); // null result: the report is not due yet
     try {
-      if (mySettingsPersistor.loadSettings().isReportingEnabled()) {
+      if (myReportingEnabled) {
         final Date lastReportingDate = myCommonDataPersistor.getLastReportingDate();
         final long reportingPeriod = getReportingPeriod();
-        if (lastReportingDate == null || Dates.now().after(Dates.after(lastReportingDate, reportingPeriod))) {
-          if (myStatisticsReporter.reportStatistics(reportingPeriod)) {
-            myCommonDataPersistor.setLastReportingDate(Dates.now());
-            LOG.debug("Usage statistics was successfully reported to JetBrains.");
-          }
+        final Date nextAttemptDate = myOutbox.getNextAttemptDate();
+        if (nextAttemptDate != null ? !Dates.now().before(nextAttemptDate)
+                                  : lastReportingDate == null || Dates.now().after(Dates.after(lastReportingDate, reportingPeriod))) {
+          report = myStatisticsReporter.reportStatistics(reportingPeriod);
         }
       }
     }
     catch (final Throwable e) {
-      LOG.infoAndDebugDetails("Error collecting/reporting usage statistics: ", e);
+      report = new CompletableFuture<Boolean>();
+      report.completeExceptionally(e);
+    }
+    report.whenComplete((reported, error) -> reportFinished(reported, error));
+  }
+
+  private void reportFinished(@Nullable final Boolean reported, @Nullable final Throwable error) {
+    boolean failed = false;
+    try {
+      if (error != null) {
+        failed = true;
+        LOG.infoAndDebugDetails("Error collecting/reporting usage statistics: ", error);
+      }
+      else if (Boolean.TRUE.equals(reported)) {
+        myCommonDataPersistor.setLastReportingDate(Dates.now());
+        LOG.debug("Usage statistics was successfully reported to JetBrains.");
+      }
+      else if (reported != null) {
+        failed = true;
+      }
+    }
+    finally {
+      synchronized (myLock) {
+        myRunning = false;
+      }
+      reschedule(failed);
+    }
+  }
+
+  private void startCollectingIfExpiredBy(final long deadline) {
+    try {
+      if (isExpiredBy(myStatisticsCollector.getSnapshot(), deadline)) {
+        LOG.debug("Starting usage statistics collecting ahead of the reporting");
+        myStatisticsCollector.forceAsynchronousCollectingNow();
+      }
+    }
+    catch (final Throwable e) {
+      LOG.infoAndDebugDetails("Error starting usage statistics collecting: ", e);
+    }
+  }
+
+  private boolean isExpiredBy(@Nullable final UsageStatisticsSnapshot snapshot, final long time) {
+    return snapshot == null || snapshot.getFinishDate().getTime() + getReportingPeriod() < time;
+  }
+
+  private void reschedule(final boolean afterFailure) {
+    synchronized (myLock) {
+      if (myShutdown || myRunning) return; // the running task reschedules itself when finished
+      cancelTasks(false);
+      if (!myReportingEnabled) {
+        LOG.debug("Usage statistics reporting is disabled, nothing is scheduled");
+        return;
+      }
+      final long delay = getDelay(afterFailure);
+      LOG.debug("Next usage statistics reporting is scheduled in " + delay / Dates.ONE_SECOND + " seconds");
+      myTask = myExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+
+      final long deadline = Dates.now().getTime() + delay;
+      if (isExpiredBy(myStatisticsCollector.getSnapshot(), deadline)) {
+        final long collectingDelay = delay - getCollectingLead();
+        if (collectingDelay > 0) {
+          myCollectingTask = myExecutor.schedule(() -> startCollectingIfExpiredBy(deadline), collectingDelay, TimeUnit.MILLISECONDS);
+        }
+        // otherwise the collecting is started by the report itself
+      }
+    }
+  }
+
+  private void cancelTasks(final boolean mayInterruptIfRunning) {
+    if (myTask != null) {
+      myTask.cancel(mayInterruptIfRunning);
+      myTask = null;
+    }
+    if (myCollectingTask != null) {
+      myCollectingTask.cancel(mayInterruptIfRunning);
+      myCollectingTask = null;
     }
   }
 
+  private long getDelay(final boolean afterFailure) {
+    final long now = Dates.now().getTime();
+    final long retryInterval = getRetryInterval();
+
+    final Date lastReportingDate = myCommonDataPersistor.getLastReportingDate();
+    long deadline = lastReportingDate == null ? now : lastReportingDate.getTime() + getReportingPeriod();
+
+    final Date nextAttemptDate = myOutbox.getNextAttemptDate();
+    if (nextAttemptDate != null) {
+      deadline = nextAttemptDate.getTime(); // the pending report is sent instead of a new one, not before its backoff delay
+    }
+    if (afterFailure) {
+      deadline = Math.max(deadline, now + retryInterval);
+    }
+
+    // jitter spreads the reports of the servers started at the same time
+    return Math.max(MIN_DELAY, deadline - now) + ThreadLocalRandom.current().nextLong(retryInterval);
+  }
+
   private long getReportingPeriod() {
     return TeamCityProperties.getLong(REPORTING_PERIOD, DEFAULT_REPORTING_PERIOD) * Dates.ONE_MINUTE;
   }
-}
\ No newline at end of file
+
+  private long getCollectingLead() {
+    return TeamCityProperties.getLong(COLLECTING_LEAD, DEFAULT_COLLECTING_LEAD) * Dates.ONE_MINUTE;
+  }
+
+  private long getRetryInterval() {
+    return Math.max(MIN_DELAY, getReportingPeriod() / 100);
+  }
+}
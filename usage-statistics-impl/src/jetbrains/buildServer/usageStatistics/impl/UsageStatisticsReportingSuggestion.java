@@ -52,6 +52,6 @@ public class UsageStatisticsReportingSuggestion extends AdminBeforeContentExtens
 
   @Override
   public void fillModel(@NotNull final Map<String, Object> model, @NotNull final HttpServletRequest request) {
-    model.put("showSuggestion", !myDataPersistor.wasReportingSuggestionConsidered() && !mySettingsPersistor.loadSettings().isReportingEnabled());
+    model.put("showSuggestion", !myDataPersistor.wasReportingSuggestionConsidered() && !mySettingsPersistor.getSettings().isReportingEnabled());
   }
 }
\ No newline at end of file
@@ -0,0 +1,66 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.usageStatistics.CacheableUsageStatisticsProvider;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsProvider;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsProviderStatus;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsSnapshot;
+import jetbrains.buildServer.util.Dates;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the results of {@link CacheableUsageStatisticsProvider}s until they expire or are invalidated.
+ * <p>
+ * The cache is disabled unless {@code teamcity.usageStatistics.resultCache.enabled} is set: results are
+ * only invalidated on configuration reload and plugin load, so a cached value may lag behind other changes
+ * for up to the provider's time to live.
+ */
+class UsageStatisticsResultCache {
+  @NotNull private static final String RESULT_CACHE_ENABLED = "teamcity.usageStatistics.resultCache.enabled";
+
+  @NotNull private final Map<UsageStatisticsProvider, CachedResult> myResults = new ConcurrentHashMap<UsageStatisticsProvider, CachedResult>();
+
+  @Nullable
+  UsageStatisticsSnapshot.ProviderResult get(@NotNull final UsageStatisticsProvider provider) {
+    if (!isEnabled()) return null;
+    final CachedResult cachedResult = myResults.get(provider);
+    if (cachedResult == null) return null;
+    if (cachedResult.myExpirationTime <= Dates.now().getTime()) {
+      myResults.remove(provider, cachedResult);
+      return null;
+    }
+    return cachedResult.myResult;
+  }
+
+  void put(@NotNull final UsageStatisticsProvider provider, @NotNull final UsageStatisticsSnapshot.ProviderResult result) {
+    if (!(provider instanceof CacheableUsageStatisticsProvider) || result.getStatus() != UsageStatisticsProviderStatus.COLLECTED) return;
+    final long timeToLive = ((CacheableUsageStatisticsProvider)provider).getResultTimeToLive();
+    if (timeToLive <= 0) return;
+    myResults.put(provider, new CachedResult(result, Dates.now().getTime() + timeToLive));
+  }
+
+  void invalidate(@NotNull final Class<? extends UsageStatisticsProvider> providerClass) {
+    myResults.keySet().removeIf(providerClass::isInstance);
+  }
+
+  void invalidateAll() {
+    myResults.clear();
+  }
+
+  private static boolean isEnabled() {
+    return TeamCityProperties.getBoolean(RESULT_CACHE_ENABLED);
+  }
+
+  private static class CachedResult {
+    @NotNull private final UsageStatisticsSnapshot.ProviderResult myResult;
+    private final long myExpirationTime;
+
+    CachedResult(@NotNull final UsageStatisticsSnapshot.ProviderResult result, final long expirationTime) {
+      myResult = result;
+      myExpirationTime = expirationTime;
+    }
+  }
+}
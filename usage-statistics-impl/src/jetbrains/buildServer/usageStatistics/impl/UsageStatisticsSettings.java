@@ -1,14 +1,27 @@
 
 package jetbrains.buildServer.usageStatistics.impl;
 
-public class UsageStatisticsSettings {
-  private boolean myIsReportingEnabled = false;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable, so the cached instance can be shared between threads.
+ */
+public final class UsageStatisticsSettings {
+  @NotNull
+  public static final UsageStatisticsSettings DEFAULT = new UsageStatisticsSettings(false);
+
+  private final boolean myIsReportingEnabled;
+
+  public UsageStatisticsSettings(boolean reportingEnabled) {
+    myIsReportingEnabled = reportingEnabled;
+  }
 
   public boolean isReportingEnabled() {
     return myIsReportingEnabled;
   }
 
-  public void setReportingEnabled(boolean reportingEnabled) {
-    myIsReportingEnabled = reportingEnabled;
+  @NotNull
+  public UsageStatisticsSettings withReportingEnabled(boolean reportingEnabled) {
+    return reportingEnabled == myIsReportingEnabled ? this : new UsageStatisticsSettings(reportingEnabled);
   }
 }
\ No newline at end of file
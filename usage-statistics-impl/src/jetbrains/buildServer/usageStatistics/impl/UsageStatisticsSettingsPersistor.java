@@ -4,6 +4,9 @@ package jetbrains.buildServer.usageStatistics.impl;
 import com.intellij.openapi.diagnostic.Logger;
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import jetbrains.buildServer.configuration.FileWatcher;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.serverSide.impl.FileWatcherFactory;
@@ -26,16 +29,32 @@ public class UsageStatisticsSettingsPersistor {
   private final FileWatcher myFileWatcher;
   @NotNull
   private final File myConfigFile;
+  @NotNull
+  private final List<Consumer<UsageStatisticsSettings>> myListeners = new CopyOnWriteArrayList<>();
+  @NotNull
+  private volatile UsageStatisticsSettings mySettings; // refreshed when the file is changed or the settings are saved
 
   public UsageStatisticsSettingsPersistor(@NotNull ServerPaths serverPaths,
                                           @NotNull FileWatcherFactory fileWatcherFactory,
                                           @NotNull SettingsPersister settingsPersister) {
     myConfigFile = new File(serverPaths.getConfigDir(), "usage-statistics-config.xml");
+    mySettings = loadSettings();
     myFileWatcher = fileWatcherFactory.createFileWatcher(myConfigFile);
-    myFileWatcher.registerListener(requestor -> loadSettings());
+    myFileWatcher.registerListener(requestor -> {
+      mySettings = loadSettings();
+      fireSettingsChanged(mySettings);
+    });
     mySettingsPersister = settingsPersister;
   }
 
+  /**
+   * @return cached settings, the file is not read
+   */
+  @NotNull
+  public UsageStatisticsSettings getSettings() {
+    return mySettings;
+  }
+
   public void saveSettings(@NotNull UsageStatisticsSettings settings) {
     Element element = new Element("usage-statistics-settings");
     element.setAttribute(REPORTING_ENABLED, String.valueOf(settings.isReportingEnabled()));
@@ -43,13 +62,33 @@ public class UsageStatisticsSettingsPersistor {
       mySettingsPersister.scheduleSaveDocument("Save usage statistics settings", myFileWatcher, new Document(element));
     } catch (IOException e) {
       LOG.warnAndDebugDetails("Failed to save usage statistics settings into file \"" + myConfigFile.getAbsolutePath() + "\"", e);
+      return;
+    }
+    mySettings = settings;
+    fireSettingsChanged(settings);
+  }
+
+  /**
+   * Registers a listener notified when the settings are saved or the settings file is changed on the disk.
+   */
+  public void addSettingsListener(@NotNull Consumer<UsageStatisticsSettings> listener) {
+    myListeners.add(listener);
+  }
+
+  private void fireSettingsChanged(@NotNull UsageStatisticsSettings settings) {
+    for (Consumer<UsageStatisticsSettings> listener : myListeners) {
+      try {
+        listener.accept(settings);
+      } catch (Exception e) {
+        LOG.warnAndDebugDetails("Error while processing usage statistics settings change", e);
+      }
     }
   }
 
   @NotNull
-  public UsageStatisticsSettings loadSettings() {
+  private UsageStatisticsSettings loadSettings() {
     if (!myConfigFile.exists() || !myConfigFile.canRead()) {
-      return new UsageStatisticsSettings();
+      return UsageStatisticsSettings.DEFAULT;
     }
 
     Element element;
@@ -57,18 +96,15 @@ public class UsageStatisticsSettingsPersistor {
       element = FileUtil.parseDocument(myConfigFile);
     } catch (Exception e) {
       LOG.warnAndDebugDetails("Failed to load usage statistics settings from file \"" + myConfigFile.getAbsolutePath() + "\"", e);
-      return new UsageStatisticsSettings();
+      return UsageStatisticsSettings.DEFAULT;
     }
 
     String reportingEnabled = element.getAttributeValue(REPORTING_ENABLED);
     if (reportingEnabled == null) {
-      return new UsageStatisticsSettings();
+      return UsageStatisticsSettings.DEFAULT;
     }
 
-    UsageStatisticsSettings settings = new UsageStatisticsSettings();
-    settings.setReportingEnabled(Boolean.parseBoolean(reportingEnabled));
-
-    return settings;
+    return new UsageStatisticsSettings(Boolean.parseBoolean(reportingEnabled));
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,328 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.ServerResponsibility;
+import jetbrains.buildServer.usageStatistics.CompactUsageStatistics;
+import jetbrains.buildServer.usageStatistics.UsageStatisticIdDictionary;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsProviderStatus;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsPublisher;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsSnapshot;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the last collected snapshot in a gzipped binary file, so the statistics are available right after the server restart.
+ * Strings, primitive wrappers and {@code null} keep their types. Any other value is stored as its string form
+ * and is loaded back as a {@link String}, so consumers of a loaded snapshot must not depend on the class of such values.
+ */
+public class UsageStatisticsSnapshotPersistor {
+  @NotNull private static final Logger LOG = Logger.getInstance(UsageStatisticsSnapshotPersistor.class.getName());
+
+  private static final int MAGIC = 0x54435553; // "TCUS"
+  private static final int VERSION = 2; // 2 added the SHORT, BYTE, CHARACTER and OTHER kinds
+  private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+  private static final int MAX_COUNT = 10 * 1000 * 1000;
+
+  private static final byte NULL = 0;
+  private static final byte INTEGER = 1;
+  private static final byte LONG = 2;
+  private static final byte BOOLEAN = 3;
+  private static final byte DOUBLE = 4;
+  private static final byte FLOAT = 5;
+  private static final byte STRING = 6;
+  private static final byte SHORT = 7;
+  private static final byte BYTE = 8;
+  private static final byte CHARACTER = 9;
+  private static final byte OTHER = 10; // the string form of a value of any other type
+
+  @NotNull private final File myFile;
+  @NotNull private final ServerResponsibility myServerResponsibility;
+
+  public UsageStatisticsSnapshotPersistor(@NotNull final ServerPaths serverPaths,
+                                          @NotNull final ServerResponsibility serverResponsibility) {
+    myFile = new File(new File(serverPaths.getPluginDataDirectory(), "usage-statistics"), "lastSnapshot.bin");
+    myServerResponsibility = serverResponsibility;
+  }
+
+  /**
+   * Writes the snapshot to a temporary file which is synced to the disk and then replaces the snapshot file.
+   */
+  public synchronized void save(@NotNull final UsageStatisticsSnapshot snapshot) {
+    if (!myServerResponsibility.canWriteToConfigDirectory()) return;
+    final File tempFile = new File(myFile.getParentFile(), myFile.getName() + ".tmp");
+    try {
+      FileUtil.createParentDirs(tempFile);
+      final FileOutputStream fileOut = new FileOutputStream(tempFile);
+      final GZIPOutputStream gzipOut = new GZIPOutputStream(fileOut);
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(gzipOut));
+      try {
+        write(out, snapshot);
+        out.flush();
+        gzipOut.finish();
+        fileOut.getFD().sync();
+      }
+      finally {
+        out.close();
+      }
+      if (!FileUtil.rename(tempFile, myFile)) {
+        throw new IOException("Failed to rename \"" + tempFile.getAbsolutePath() + "\"");
+      }
+    }
+    catch (final IOException e) {
+      LOG.warnAndDebugDetails("Failed to save usage statistics to the \"" + myFile.getAbsolutePath() + "\" file", e);
+      FileUtil.delete(tempFile);
+    }
+  }
+
+  /**
+   * @return the saved snapshot marked as stale, with generation 0, or null if there is no saved snapshot
+   */
+  @Nullable
+  public UsageStatisticsSnapshot load() {
+    if (!myFile.isFile()) return null;
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(myFile))));
+      try {
+        return read(in);
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (final Exception e) {
+      LOG.warnAndDebugDetails("Failed to load usage statistics from the \"" + myFile.getAbsolutePath() + "\" file", e);
+      return null;
+    }
+  }
+
+  private static void write(@NotNull final DataOutputStream out, @NotNull final UsageStatisticsSnapshot snapshot) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(snapshot.getStartDate().getTime());
+    out.writeLong(snapshot.getFinishDate().getTime());
+    out.writeInt(snapshot.getProviderResults().size());
+    for (final UsageStatisticsSnapshot.ProviderResult result : snapshot.getProviderResults()) {
+      writeString(out, result.getProviderName());
+      writeString(out, result.getStatus().name());
+      out.writeInt(result.getStatistics().size());
+      final StatisticsWriter writer = new StatisticsWriter(out);
+      result.getStatistics().publish(writer);
+      writer.rethrowError();
+    }
+  }
+
+  @NotNull
+  private static UsageStatisticsSnapshot read(@NotNull final DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Unsupported file format");
+    }
+    final int version = in.readInt();
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported file format");
+    }
+    final Date startDate = new Date(in.readLong());
+    final Date finishDate = new Date(in.readLong());
+    final int resultsCount = readCount(in);
+    final UsageStatisticIdDictionary dictionary = new UsageStatisticIdDictionary();
+    final List<UsageStatisticsSnapshot.ProviderResult> results = new ArrayList<UsageStatisticsSnapshot.ProviderResult>(resultsCount);
+    for (int i = 0; i < resultsCount; i++) {
+      final String providerName = readString(in);
+      final UsageStatisticsProviderStatus status = UsageStatisticsProviderStatus.valueOf(readString(in));
+      final int size = readCount(in);
+      final CompactUsageStatistics.Builder builder = new CompactUsageStatistics.Builder(dictionary);
+      for (int j = 0; j < size; j++) {
+        readStatistic(in, builder);
+      }
+      results.add(new UsageStatisticsSnapshot.ProviderResult(providerName, status, builder.build()));
+    }
+    return new UsageStatisticsSnapshot(0, startDate, finishDate, results, true);
+  }
+
+  private static void writeValue(@NotNull final DataOutputStream out, @Nullable final Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    }
+    else if (value instanceof Integer) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer)value);
+    }
+    else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long)value);
+    }
+    else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean)value);
+    }
+    else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double)value);
+    }
+    else if (value instanceof Float) {
+      out.writeByte(FLOAT);
+      out.writeFloat((Float)value);
+    }
+    else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String)value);
+    }
+    else if (value instanceof Short) {
+      out.writeByte(SHORT);
+      out.writeShort((Short)value);
+    }
+    else if (value instanceof Byte) {
+      out.writeByte(BYTE);
+      out.writeByte((Byte)value);
+    }
+    else if (value instanceof Character) {
+      out.writeByte(CHARACTER);
+      out.writeChar((Character)value);
+    }
+    else {
+      out.writeByte(OTHER);
+      writeString(out, String.valueOf(value));
+    }
+  }
+
+  private static void readStatistic(@NotNull final DataInputStream in, @NotNull final UsageStatisticsPublisher publisher) throws IOException {
+    final String id = readString(in);
+    final byte kind = in.readByte();
+    switch (kind) {
+      case NULL: publisher.publishStatistic(id, null); break;
+      case INTEGER: publisher.publishInt(id, in.readInt()); break;
+      case LONG: publisher.publishLong(id, in.readLong()); break;
+      case BOOLEAN: publisher.publishFlag(id, in.readBoolean()); break;
+      case DOUBLE: publisher.publishDouble(id, in.readDouble()); break;
+      case FLOAT: publisher.publishStatistic(id, in.readFloat()); break;
+      case STRING: publisher.publishStatistic(id, readString(in)); break;
+      case SHORT: publisher.publishStatistic(id, in.readShort()); break;
+      case BYTE: publisher.publishStatistic(id, in.readByte()); break;
+      case CHARACTER: publisher.publishStatistic(id, in.readChar()); break;
+      case OTHER: publisher.publishStatistic(id, readString(in)); break;
+      default: throw new IOException("Unknown value kind: " + kind);
+    }
+  }
+
+  private static void writeString(@NotNull final DataOutputStream out, @NotNull final String value) throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  @NotNull
+  private static String readString(@NotNull final DataInputStream in) throws IOException {
+    final int length = in.readInt();
+    if (length < 0 || length > MAX_STRING_LENGTH) {
+      throw new IOException("Corrupt file: invalid string length " + length);
+    }
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int readCount(@NotNull final DataInputStream in) throws IOException {
+    final int count = in.readInt();
+    if (count < 0 || count > MAX_COUNT) {
+      throw new IOException("Corrupt file: invalid count " + count);
+    }
+    return count;
+  }
+
+  /**
+   * Writes the published statistics, primitive values are written without boxing. The first error is kept till {@link #rethrowError()}.
+   */
+  private static class StatisticsWriter implements UsageStatisticsPublisher {
+    @NotNull private final DataOutputStream myOut;
+    @Nullable private IOException myError = null;
+
+    StatisticsWriter(@NotNull final DataOutputStream out) {
+      myOut = out;
+    }
+
+    public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
+      if (!startStatistic(id)) return;
+      try {
+        writeValue(myOut, value);
+      }
+      catch (final IOException e) {
+        myError = e;
+      }
+    }
+
+    @Override
+    public void publishInt(@NotNull final String id, final int value) {
+      if (!startStatistic(id)) return;
+      try {
+        myOut.writeByte(INTEGER);
+        myOut.writeInt(value);
+      }
+      catch (final IOException e) {
+        myError = e;
+      }
+    }
+
+    @Override
+    public void publishLong(@NotNull final String id, final long value) {
+      if (!startStatistic(id)) return;
+      try {
+        myOut.writeByte(LONG);
+        myOut.writeLong(value);
+      }
+      catch (final IOException e) {
+        myError = e;
+      }
+    }
+
+    @Override
+    public void publishDouble(@NotNull final String id, final double value) {
+      if (!startStatistic(id)) return;
+      try {
+        myOut.writeByte(DOUBLE);
+        myOut.writeDouble(value);
+      }
+      catch (final IOException e) {
+        myError = e;
+      }
+    }
+
+    @Override
+    public void publishFlag(@NotNull final String id, final boolean value) {
+      if (!startStatistic(id)) return;
+      try {
+        myOut.writeByte(BOOLEAN);
+        myOut.writeBoolean(value);
+      }
+      catch (final IOException e) {
+        myError = e;
+      }
+    }
+
+    /**
+     * @return false if the statistic must not be written because of a previous error
+     */
+    private boolean startStatistic(@NotNull final String id) {
+      if (myError != null) return false;
+      try {
+        writeString(myOut, id);
+        return true;
+      }
+      catch (final IOException e) {
+        myError = e;
+        return false;
+      }
+    }
+
+    void rethrowError() throws IOException {
+      if (myError != null) throw myError;
+    }
+  }
+}
@@ -109,7 +109,7 @@ public class CloudUsageStatisticsProvider extends BaseDefaultUsageStatisticsProv
                          final int count) {
     final String agentsCountId = makeId(cloudCode, paramName);
     presentationManager.applyPresentation(agentsCountId, String.format("%s %s", cloudDisplayName, paramDisplayName), myGroupName, null, null);
-    publisher.publishStatistic(agentsCountId, count);
+    publisher.publishInt(agentsCountId, count);
   }
 
   @NotNull
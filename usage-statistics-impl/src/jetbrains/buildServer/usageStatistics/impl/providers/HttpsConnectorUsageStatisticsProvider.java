@@ -20,7 +20,7 @@ public class HttpsConnectorUsageStatisticsProvider extends BaseDefaultUsageStati
   @Override
   protected void accept(@NotNull UsageStatisticsPublisher publisher, @NotNull UsageStatisticsPresentationManager presentationManager) {
     final String statId = makeId("enabled");
-    publisher.publishStatistic(statId, myHttpsConfigurator.isEnabled() ? 1 : 0);
+    publisher.publishInt(statId, myHttpsConfigurator.isEnabled() ? 1 : 0);
     presentationManager.applyPresentation(
       statId,
       "HTTPS connector is in use",
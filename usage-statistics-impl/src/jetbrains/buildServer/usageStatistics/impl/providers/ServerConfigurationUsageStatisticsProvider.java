@@ -166,7 +166,7 @@ public class ServerConfigurationUsageStatisticsProvider extends BaseDefaultUsage
                                                 return String.format("%dMb", statisticValue);
                                               }
                                             }, null);
-    publisher.publishStatistic(maxMemoryId, Runtime.getRuntime().maxMemory() / MEGABYTE);
+    publisher.publishLong(maxMemoryId, Runtime.getRuntime().maxMemory() / MEGABYTE);
   }
 
   private void publishLicenseTypeAndMode(@NotNull final UsageStatisticsPublisher publisher, @NotNull final UsageStatisticsPresentationManager presentationManager) {
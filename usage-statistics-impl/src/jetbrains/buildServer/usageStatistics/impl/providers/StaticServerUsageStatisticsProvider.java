@@ -65,19 +65,19 @@ public class StaticServerUsageStatisticsProvider extends BaseDefaultUsageStatist
     final int allRegisteredAgentsNumber = registeredAgents.size();
 
     presentationManager.applyPresentation(allRegisteredAgentNumberId, "Connected agents (all)", myGroupName, null, null);
-    publisher.publishStatistic(allRegisteredAgentNumberId, allRegisteredAgentsNumber);
+    publisher.publishInt(allRegisteredAgentNumberId, allRegisteredAgentsNumber);
 
     presentationManager.applyPresentation(authorizedRegisteredAgentNumberId, "Connected agents (authorized only)", myGroupName, new PercentageFormatter(allRegisteredAgentsNumber), "Authorized agents count (% of all connected agents)");
-    publisher.publishStatistic(authorizedRegisteredAgentNumberId, authorizedAgents);
+    publisher.publishInt(authorizedRegisteredAgentNumberId, authorizedAgents);
 
     presentationManager.applyPresentation(unidirectionalRegisteredAgentsNumberId, "Connected agents (unidirectional connection)", myGroupName, new PercentageFormatter(allRegisteredAgentsNumber), "Unidirectional agents count (% of all connected agents)");
-    publisher.publishStatistic(unidirectionalRegisteredAgentsNumberId, pollingAgents);
+    publisher.publishInt(unidirectionalRegisteredAgentsNumberId, pollingAgents);
   }
 
   private void publishNumberOfAgentPools(@NotNull final UsageStatisticsPublisher publisher, @NotNull final UsageStatisticsPresentationManager presentationManager) {
     final String agentPoolsId = makeId("agentPools");
     presentationManager.applyPresentation(agentPoolsId, "Agent pools", myGroupName, null, null);
-    publisher.publishStatistic(agentPoolsId, myAgentPoolManager.getAllAgentPools().size());
+    publisher.publishInt(agentPoolsId, myAgentPoolManager.getAllAgentPools().size());
   }
 
   private void publishNumberOfBuildTypes(@NotNull final UsageStatisticsPublisher publisher, @NotNull final UsageStatisticsPresentationManager presentationManager) {
@@ -88,13 +88,13 @@ public class StaticServerUsageStatisticsProvider extends BaseDefaultUsageStatist
     final int buildTypeNumber = myServer.getProjectManager().getNumberOfBuildTypes();
 
     presentationManager.applyPresentation(buildTypeNumberId, "Build configurations", myGroupName, null, null);
-    publisher.publishStatistic(buildTypeNumberId, buildTypeNumber);
+    publisher.publishInt(buildTypeNumberId, buildTypeNumber);
 
     final List<SBuildType> activeBuildTypes = myServer.getProjectManager().getActiveBuildTypes();
     final int activeBuildTypeNumber = activeBuildTypes.size();
 
     presentationManager.applyPresentation(activeBuildTypeNumberId, "Active build configurations", myGroupName, new PercentageFormatter(buildTypeNumber), "Build configuration count (% of all build configurations)");
-    publisher.publishStatistic(activeBuildTypeNumberId, activeBuildTypeNumber);
+    publisher.publishInt(activeBuildTypeNumberId, activeBuildTypeNumber);
 
     int multiVcsRootBuildTypeNumber = 0;
     for (SBuildType buildType : activeBuildTypes) {
@@ -104,7 +104,7 @@ public class StaticServerUsageStatisticsProvider extends BaseDefaultUsageStatist
     }
 
     presentationManager.applyPresentation(multiVcsRootBuildTypeNumberId, "Active build configurations with several VCS roots", myGroupName, new PercentageFormatter(activeBuildTypeNumber), "Build configuration count (% of all active build configurations)");
-    publisher.publishStatistic(multiVcsRootBuildTypeNumberId, multiVcsRootBuildTypeNumber);
+    publisher.publishInt(multiVcsRootBuildTypeNumberId, multiVcsRootBuildTypeNumber);
   }
 
   private void publishNumberOfDependencies(@NotNull final UsageStatisticsPublisher publisher, @NotNull final UsageStatisticsPresentationManager presentationManager) {
@@ -118,10 +118,10 @@ public class StaticServerUsageStatisticsProvider extends BaseDefaultUsageStatist
     }
 
     presentationManager.applyPresentation(snapshotDependencyNumberId, "Snapshot dependencies", myGroupName, null, null);
-    publisher.publishStatistic(snapshotDependencyNumberId, snapshotDependencies);
+    publisher.publishInt(snapshotDependencyNumberId, snapshotDependencies);
 
     presentationManager.applyPresentation(artifactDependencyNumberId, "Artifact dependencies", myGroupName, null, null);
-    publisher.publishStatistic(artifactDependencyNumberId, artifactDependencies);
+    publisher.publishInt(artifactDependencyNumberId, artifactDependencies);
   }
 
   private void publishNumberOfProjects(@NotNull final UsageStatisticsPublisher publisher, @NotNull final UsageStatisticsPresentationManager presentationManager) {
@@ -131,16 +131,16 @@ public class StaticServerUsageStatisticsProvider extends BaseDefaultUsageStatist
     final int projectNumber = myServer.getProjectManager().getNumberOfProjects();
 
     presentationManager.applyPresentation(projectNumberId, "Projects", myGroupName, null, null);
-    publisher.publishStatistic(projectNumberId, projectNumber);
+    publisher.publishInt(projectNumberId, projectNumber);
 
     presentationManager.applyPresentation(archivedProjectNumberId, "Archived projects", myGroupName, new PercentageFormatter(projectNumber), "Project count (% of all projects)");
-    publisher.publishStatistic(archivedProjectNumberId, myServer.getProjectManager().getArchivedProjects().size());
+    publisher.publishInt(archivedProjectNumberId, myServer.getProjectManager().getArchivedProjects().size());
   }
 
   private void publishNumberOfUserGroups(@NotNull final UsageStatisticsPublisher publisher, @NotNull final UsageStatisticsPresentationManager presentationManager) {
     final String userGroupNumberId = makeId("userGroupNumber");
     presentationManager.applyPresentation(userGroupNumberId, "User groups", myGroupName, null, null);
-    publisher.publishStatistic(userGroupNumberId, myUserGroupManager.getUserGroups().size());
+    publisher.publishInt(userGroupNumberId, myUserGroupManager.getUserGroups().size());
   }
 
   private void publishNumberOfUsers(@NotNull final UsageStatisticsPublisher publisher, @NotNull final UsageStatisticsPresentationManager presentationManager) {
@@ -152,6 +152,6 @@ public class StaticServerUsageStatisticsProvider extends BaseDefaultUsageStatist
   private void publishNumberOfVcsRoots(@NotNull final UsageStatisticsPublisher publisher, @NotNull final UsageStatisticsPresentationManager presentationManager) {
     final String vcsRootNumberId = makeId("vcsRootNumber");
     presentationManager.applyPresentation(vcsRootNumberId, "VCS roots", myGroupName, null, null);
-    publisher.publishStatistic(vcsRootNumberId, myServer.getVcsManager().getAllRegisteredVcsRoots().size());
+    publisher.publishInt(vcsRootNumberId, myServer.getVcsManager().getAllRegisteredVcsRoots().size());
   }
 }
\ No newline at end of file
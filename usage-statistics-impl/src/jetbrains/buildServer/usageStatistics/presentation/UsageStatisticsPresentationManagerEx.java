@@ -3,14 +3,14 @@ package jetbrains.buildServer.usageStatistics.presentation;
 
 import com.intellij.openapi.util.Pair;
 import java.util.LinkedHashMap;
-import jetbrains.buildServer.usageStatistics.UsageStatisticsCollector;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsSnapshot;
 import org.jetbrains.annotations.NotNull;
 
 public interface UsageStatisticsPresentationManagerEx extends UsageStatisticsPresentationManager {
   /**
-   * @param collector
+   * @param snapshot collected statistics
    * @return map: group name -> (jsp page path, group)
    */
   @NotNull
-  LinkedHashMap<String, Pair<String, UsageStatisticsGroup>> groupStatistics(@NotNull UsageStatisticsCollector collector);
+  LinkedHashMap<String, Pair<String, UsageStatisticsGroup>> groupStatistics(@NotNull UsageStatisticsSnapshot snapshot);
 }
\ No newline at end of file
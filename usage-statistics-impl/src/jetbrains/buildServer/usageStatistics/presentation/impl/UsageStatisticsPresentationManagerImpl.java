@@ -8,8 +8,7 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import jetbrains.buildServer.ExtensionHolder;
-import jetbrains.buildServer.usageStatistics.UsageStatisticsCollector;
-import jetbrains.buildServer.usageStatistics.UsageStatisticsPublisher;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsSnapshot;
 import jetbrains.buildServer.usageStatistics.presentation.*;
 import jetbrains.buildServer.util.MultiMap;
 import jetbrains.buildServer.util.positioning.PositionAware;
@@ -49,9 +48,9 @@ public class UsageStatisticsPresentationManagerImpl implements UsageStatisticsPr
   }
 
   @NotNull
-  public LinkedHashMap<String, Pair<String, UsageStatisticsGroup>> groupStatistics(@NotNull final UsageStatisticsCollector collector) {
+  public LinkedHashMap<String, Pair<String, UsageStatisticsGroup>> groupStatistics(@NotNull final UsageStatisticsSnapshot snapshot) {
     final MultiMap<String, UsageStatisticPresentation> groupedStatistics = new MultiMap<>(); // group name -> collection of statistics
-    collector.publishCollectedStatistics((id, value) -> groupedStatistics.putValue(getGroupName(id), getPresentationFactory(id).createFor(value)));
+    snapshot.publishStatistics((id, value) -> groupedStatistics.putValue(getGroupName(id), getPresentationFactory(id).createFor(value)));
     groupedStatistics.values().forEach(list -> list.sort(Comparator.comparing(UsageStatisticPresentation::getDisplayName)));
 
     final PositionAwareCollection<Pair<String, GroupInfo>> groupInfos = new PositionAwareCollection<Pair<String, GroupInfo>>();
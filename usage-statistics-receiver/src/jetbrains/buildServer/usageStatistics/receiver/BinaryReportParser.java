@@ -0,0 +1,93 @@
+package jetbrains.buildServer.usageStatistics.receiver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Parses the compact binary encoding: "TCSB", version and tagged records with varint numbers,
+ * ids are defined once, front-coded against the previously defined id, and referenced by index.
+ */
+public class BinaryReportParser implements ReportParser {
+  @NotNull static final String CONTENT_TYPE = "application/x-teamcity-usage-statistics";
+  private static final byte[] MAGIC = {'T', 'C', 'S', 'B'};
+  private static final int VERSION = 1;
+
+  private static final int END = 0;
+  private static final int DEFINE_ID = 1;
+  private static final int STATISTIC = 2;
+  private static final int REMOVED = 3;
+
+  private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+  public void parse(@NotNull final InputStream stream, @NotNull final Visitor visitor) throws IOException {
+    final InputStream in = new BufferedInputStream(stream);
+    for (final byte b : MAGIC) {
+      if (in.read() != b) throw new IOException("Not a binary usage statistics report");
+    }
+    final int version = readVarInt(in);
+    if (version != VERSION) throw new IOException("Unsupported binary report version: " + version);
+
+    final List<String> ids = new ArrayList<String>();
+    String lastDefinedId = "";
+    while (true) {
+      final int tag = in.read();
+      switch (tag) {
+        case END:
+          if (in.read() != -1) throw new IOException("Unexpected data after the end of the report");
+          return;
+        case DEFINE_ID:
+          final int prefixLength = readVarInt(in);
+          if (prefixLength > lastDefinedId.length()) throw new IOException("Invalid id prefix length: " + prefixLength);
+          lastDefinedId = lastDefinedId.substring(0, prefixLength) + readString(in);
+          ids.add(lastDefinedId);
+          break;
+        case STATISTIC:
+          visitor.statistic(getId(ids, readVarInt(in)), readString(in));
+          break;
+        case REMOVED:
+          visitor.removed(getId(ids, readVarInt(in)));
+          break;
+        case -1:
+          throw new IOException("Unexpected end of the binary report");
+        default:
+          throw new IOException("Unknown record tag: " + tag);
+      }
+    }
+  }
+
+  @NotNull
+  private static String getId(@NotNull final List<String> ids, final int index) throws IOException {
+    if (index >= ids.size()) throw new IOException("Undefined id index: " + index);
+    return ids.get(index);
+  }
+
+  @NotNull
+  private static String readString(@NotNull final InputStream in) throws IOException {
+    final int length = readVarInt(in);
+    if (length > MAX_STRING_LENGTH) throw new IOException("String is too long: " + length);
+    final byte[] bytes = new byte[length];
+    int read = 0;
+    while (read < length) {
+      final int count = in.read(bytes, read, length - read);
+      if (count == -1) throw new IOException("Unexpected end of the binary report");
+      read += count;
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int readVarInt(@NotNull final InputStream in) throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      final int b = in.read();
+      if (b == -1) throw new IOException("Unexpected end of the binary report");
+      result |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return result;
+    }
+    throw new IOException("Malformed varint");
+  }
+}
@@ -0,0 +1,308 @@
+package jetbrains.buildServer.usageStatistics.receiver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Append-only columnar store of received reports. Reports are queued and appended by a single writer thread in batches,
+ * every file is flushed once per batch. The queue is bounded: when it is full, new reports are rejected.
+ * <p>
+ * Files of the store directory:
+ * <pre>
+ * ids.dict     length-prefixed UTF-8 statistic ids, the index of an id is its position in the file
+ * id.col       int id index of every received statistic
+ * value.col    length-prefixed UTF-8 value of every received statistic
+ * removed.col  int id index of every removed statistic
+ * reports.col  per report: received time, remote address, statistics count, removed count and the end offsets of
+ *              id.col, value.col and removed.col after the report
+ * </pre>
+ * reports.col is written last, so after a crash the other files are truncated to the offsets of the last complete report.
+ * A queued report can be withdrawn until the writer takes it, so a report whose sender has stopped waiting is not stored twice.
+ * After a write error the store stops accepting reports, so the columns are never appended after a partially written batch.
+ */
+public class ColumnarReportStore implements Closeable {
+  @NotNull private static final Logger LOG = Logger.getLogger(ColumnarReportStore.class.getName());
+
+  @NotNull private final BlockingQueue<PendingReport> myQueue;
+  private final int myMaxBatchSize;
+  @NotNull private final Map<String, Integer> myDictionary = new HashMap<String, Integer>();
+  @NotNull private final Column myIdsDictionary;
+  @NotNull private final Column myIdColumn;
+  @NotNull private final Column myValueColumn;
+  @NotNull private final Column myRemovedColumn;
+  @NotNull private final Column myReports;
+  @NotNull private final Thread myWriter;
+  private volatile boolean myClosed = false;
+
+  public ColumnarReportStore(@NotNull final File directory, final int queueCapacity, final int maxBatchSize) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create directory \"" + directory.getAbsolutePath() + "\"");
+    myQueue = new ArrayBlockingQueue<PendingReport>(queueCapacity);
+    myMaxBatchSize = maxBatchSize;
+
+    final long[] ends = recover(new File(directory, "reports.col"));
+    myIdColumn = new Column(new File(directory, "id.col"), ends[0]);
+    myValueColumn = new Column(new File(directory, "value.col"), ends[1]);
+    myRemovedColumn = new Column(new File(directory, "removed.col"), ends[2]);
+    myReports = new Column(new File(directory, "reports.col"), ends[3]);
+    myIdsDictionary = new Column(new File(directory, "ids.dict"), loadDictionary(new File(directory, "ids.dict")));
+
+    myWriter = new Thread(this::writeReports, "Usage statistics store writer");
+    myWriter.start();
+  }
+
+  /**
+   * @return future completed when the report is written, null if the queue is full and the report should be retried later
+   */
+  @Nullable
+  public CompletableFuture<Void> offer(@NotNull final ReceivedReport report) {
+    if (myClosed) return null;
+    final PendingReport pending = new PendingReport(report);
+    return myQueue.offer(pending) ? pending : null;
+  }
+
+  /**
+   * Removes the report from the queue unless the writer has already taken it, the future is cancelled then.
+   *
+   * @param written future returned by {@link #offer(ReceivedReport)}
+   * @return false if the report is being written or has been written
+   */
+  public boolean withdraw(@NotNull final CompletableFuture<Void> written) {
+    final PendingReport pending = (PendingReport)written;
+    if (!pending.take()) return false;
+    myQueue.remove(pending);
+    pending.cancel(false);
+    return true;
+  }
+
+  public int getQueueSize() {
+    return myQueue.size();
+  }
+
+  public void close() throws IOException {
+    myClosed = true;
+    try {
+      myWriter.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    myIdsDictionary.close();
+    myIdColumn.close();
+    myValueColumn.close();
+    myRemovedColumn.close();
+    myReports.close();
+  }
+
+  private void writeReports() {
+    final List<PendingReport> batch = new ArrayList<PendingReport>(myMaxBatchSize);
+    while (!myClosed || !myQueue.isEmpty()) {
+      try {
+        final PendingReport first = myQueue.poll(1, TimeUnit.SECONDS);
+        if (first == null) continue;
+        batch.add(first);
+        myQueue.drainTo(batch, myMaxBatchSize - 1);
+        batch.removeIf(report -> !report.take()); // withdrawn
+        writeBatch(batch);
+        for (final PendingReport report : batch) {
+          report.complete(null);
+        }
+      } catch (final InterruptedException e) {
+        break;
+      } catch (final Throwable e) {
+        LOG.log(Level.SEVERE, "Failed to write " + batch.size() + " report(s), the store is closed", e);
+        myClosed = true;
+        myQueue.drainTo(batch);
+        for (final PendingReport report : batch) {
+          report.completeExceptionally(e);
+        }
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void writeBatch(@NotNull final List<PendingReport> batch) throws IOException {
+    for (final PendingReport pending : batch) {
+      final ReceivedReport report = pending.myReport;
+      for (final String id : report.getIds()) {
+        myIdColumn.myOut.writeInt(getIndex(id));
+      }
+      for (final String value : report.getValues()) {
+        writeString(myValueColumn.myOut, value);
+      }
+      for (final String id : report.getRemovedIds()) {
+        myRemovedColumn.myOut.writeInt(getIndex(id));
+      }
+      final DataOutputStream out = myReports.myOut;
+      out.writeLong(report.getReceivedTime());
+      writeString(out, report.getRemoteAddress());
+      out.writeInt(report.getIds().size());
+      out.writeInt(report.getRemovedIds().size());
+      out.writeLong(myIdColumn.getOffset());
+      out.writeLong(myValueColumn.getOffset());
+      out.writeLong(myRemovedColumn.getOffset());
+    }
+    myIdsDictionary.myOut.flush();
+    myIdColumn.myOut.flush();
+    myValueColumn.myOut.flush();
+    myRemovedColumn.myOut.flush();
+    myReports.myOut.flush();
+  }
+
+  private int getIndex(@NotNull final String id) throws IOException {
+    final Integer index = myDictionary.get(id);
+    if (index != null) return index;
+    writeString(myIdsDictionary.myOut, id);
+    final int newIndex = myDictionary.size();
+    myDictionary.put(id, newIndex);
+    return newIndex;
+  }
+
+  /**
+   * Finds the last complete report in reports.col, the files are truncated to its offsets when opened.
+   *
+   * @return end offsets of id.col, value.col, removed.col and reports.col
+   */
+  @NotNull
+  private static long[] recover(@NotNull final File reportsFile) throws IOException {
+    final long[] ends = new long[4];
+    if (!reportsFile.isFile()) return ends;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(reportsFile)))) {
+      long offset = 0;
+      while (true) {
+        try {
+          in.readLong();
+          final int remoteAddressLength = in.readInt();
+          in.skipBytes(remoteAddressLength);
+          in.readInt();
+          in.readInt();
+          final long idEnd = in.readLong();
+          final long valueEnd = in.readLong();
+          final long removedEnd = in.readLong();
+          offset += 8 + 4 + remoteAddressLength + 4 + 4 + 8 + 8 + 8;
+          ends[0] = idEnd;
+          ends[1] = valueEnd;
+          ends[2] = removedEnd;
+          ends[3] = offset;
+        } catch (final EOFException e) {
+          break;
+        }
+      }
+    }
+    return ends;
+  }
+
+  /**
+   * @return length of the complete part of the dictionary file
+   */
+  private long loadDictionary(@NotNull final File file) throws IOException {
+    if (!file.isFile()) return 0;
+    long offset = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        try {
+          final String id = readString(in);
+          myDictionary.put(id, myDictionary.size());
+          offset += 4 + id.getBytes(StandardCharsets.UTF_8).length;
+        } catch (final EOFException e) {
+          break;
+        }
+      }
+    }
+    return offset;
+  }
+
+  private static void writeString(@NotNull final DataOutputStream out, @NotNull final String value) throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  @NotNull
+  private static String readString(@NotNull final DataInputStream in) throws IOException {
+    final byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Completed when the report is written.
+   */
+  private static class PendingReport extends CompletableFuture<Void> {
+    @NotNull private final ReceivedReport myReport;
+    @NotNull private final AtomicBoolean myTaken = new AtomicBoolean(false);
+
+    PendingReport(@NotNull final ReceivedReport report) {
+      myReport = report;
+    }
+
+    /**
+     * @return true if the report is taken by the caller, either to be written or to be withdrawn
+     */
+    boolean take() {
+      return myTaken.compareAndSet(false, true);
+    }
+  }
+
+  /**
+   * Append-only file truncated to the specified length on opening.
+   */
+  private static class Column implements Closeable {
+    @NotNull private final DataOutputStream myOut;
+    private long myOffset;
+
+    Column(@NotNull final File file, final long length) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        if (raf.length() != length) {
+          LOG.info("Truncating \"" + file.getAbsolutePath() + "\" from " + raf.length() + " to " + length + " bytes");
+          raf.setLength(length);
+        }
+      }
+      myOffset = length;
+      myOut = new DataOutputStream(new FilterOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024)) {
+        @Override
+        public void write(final int b) throws IOException {
+          out.write(b);
+          myOffset++;
+        }
+
+        @Override
+        public void write(@NotNull final byte[] b, final int off, final int len) throws IOException {
+          out.write(b, off, len);
+          myOffset += len;
+        }
+      });
+    }
+
+    long getOffset() {
+      return myOffset;
+    }
+
+    public void close() throws IOException {
+      myOut.close();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package jetbrains.buildServer.usageStatistics.receiver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Parses an URL-encoded form byte by byte, percent escapes are decoded on the fly. {@code jb.removed} fields are reported as removed ids.
+ */
+public class FormReportParser implements ReportParser {
+  @NotNull static final String CONTENT_TYPE = "application/x-www-form-urlencoded";
+  @NotNull private static final String REMOVED_FIELD = "jb.removed";
+  private static final int MAX_TOKEN_LENGTH = 1024 * 1024;
+
+  public void parse(@NotNull final InputStream in, @NotNull final Visitor visitor) throws IOException {
+    final ByteArrayOutputStream token = new ByteArrayOutputStream();
+    String name = null;
+    while (true) {
+      int b = in.read();
+      if (b == -1 || b == '&') {
+        if (name != null || token.size() > 0) {
+          final String value = decode(token);
+          if (name == null) {
+            name = value; // a field without '='
+            emit(visitor, name, "");
+          }
+          else {
+            emit(visitor, name, value);
+          }
+        }
+        if (b == -1) return;
+        name = null;
+        continue;
+      }
+      if (b == '=' && name == null) {
+        name = decode(token);
+        continue;
+      }
+      if (b == '+') {
+        b = ' ';
+      }
+      else if (b == '%') {
+        b = (hexDigit(in.read()) << 4) | hexDigit(in.read());
+      }
+      if (token.size() >= MAX_TOKEN_LENGTH) throw new IOException("Form field is too long");
+      token.write(b);
+    }
+  }
+
+  private static void emit(@NotNull final Visitor visitor, @NotNull final String name, @NotNull final String value) throws IOException {
+    if (REMOVED_FIELD.equals(name)) {
+      visitor.removed(value);
+    }
+    else {
+      visitor.statistic(name, value);
+    }
+  }
+
+  @NotNull
+  private static String decode(@NotNull final ByteArrayOutputStream token) {
+    final String result = new String(token.toByteArray(), StandardCharsets.UTF_8);
+    token.reset();
+    return result;
+  }
+
+  private static int hexDigit(final int c) throws IOException {
+    final int digit = Character.digit(c, 16);
+    if (c == -1 || digit == -1) throw new IOException(describe(c) + " is not a hex digit of a percent escape");
+    return digit;
+  }
+
+  @NotNull
+  private static String describe(final int c) {
+    return c == -1 ? "End of data" : "'" + (char)c + "'";
+  }
+}
@@ -0,0 +1,140 @@
+package jetbrains.buildServer.usageStatistics.receiver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Streaming parser of <code>{"statistics": {"id": "value", ...}, "removed": ["id", ...]}</code>.
+ * Only string values are accepted, unknown top-level members are skipped if they are strings.
+ */
+public class JsonReportParser implements ReportParser {
+  @NotNull static final String CONTENT_TYPE = "application/json";
+  private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+  public void parse(@NotNull final InputStream in, @NotNull final Visitor visitor) throws IOException {
+    new Parser(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), visitor).parseReport();
+  }
+
+  private static class Parser {
+    @NotNull private final Reader myReader;
+    @NotNull private final Visitor myVisitor;
+    private int myNext = -2; // not read yet
+
+    Parser(@NotNull final Reader reader, @NotNull final Visitor visitor) {
+      myReader = reader;
+      myVisitor = visitor;
+    }
+
+    void parseReport() throws IOException {
+      expect('{');
+      if (!tryConsume('}')) {
+        do {
+          final String member = readString();
+          expect(':');
+          if ("statistics".equals(member)) {
+            parseStatistics();
+          }
+          else if ("removed".equals(member)) {
+            parseRemoved();
+          }
+          else {
+            readString();
+          }
+        } while (tryConsume(','));
+        expect('}');
+      }
+      if (peek() != -1) throw error("end of data");
+    }
+
+    private void parseStatistics() throws IOException {
+      expect('{');
+      if (tryConsume('}')) return;
+      do {
+        final String id = readString();
+        expect(':');
+        myVisitor.statistic(id, readString());
+      } while (tryConsume(','));
+      expect('}');
+    }
+
+    private void parseRemoved() throws IOException {
+      expect('[');
+      if (tryConsume(']')) return;
+      do {
+        myVisitor.removed(readString());
+      } while (tryConsume(','));
+      expect(']');
+    }
+
+    @NotNull
+    private String readString() throws IOException {
+      expect('"');
+      final StringBuilder result = new StringBuilder();
+      while (true) {
+        int c = read();
+        if (c == -1) throw error("'\"'");
+        if (c == '"') return result.toString();
+        if (c == '\\') {
+          c = read();
+          switch (c) {
+            case '"': case '\\': case '/': break;
+            case 'b': c = '\b'; break;
+            case 'f': c = '\f'; break;
+            case 'n': c = '\n'; break;
+            case 'r': c = '\r'; break;
+            case 't': c = '\t'; break;
+            case 'u':
+              c = 0;
+              for (int i = 0; i < 4; i++) {
+                final int digit = Character.digit(read(), 16);
+                if (digit == -1) throw error("hex digit");
+                c = (c << 4) | digit;
+              }
+              break;
+            default: throw error("escape sequence");
+          }
+        }
+        if (result.length() >= MAX_STRING_LENGTH) throw new IOException("JSON string is too long");
+        result.append((char)c);
+      }
+    }
+
+    private void expect(final char c) throws IOException {
+      if (!tryConsume(c)) throw error("'" + c + "'");
+    }
+
+    private boolean tryConsume(final char c) throws IOException {
+      if (peek() != c) return false;
+      myNext = -2;
+      return true;
+    }
+
+    private int peek() throws IOException {
+      if (myNext == -2) {
+        do {
+          myNext = myReader.read();
+        } while (myNext == ' ' || myNext == '\t' || myNext == '\n' || myNext == '\r');
+      }
+      return myNext;
+    }
+
+    private int read() throws IOException {
+      if (myNext != -2) {
+        final int result = myNext;
+        myNext = -2;
+        return result;
+      }
+      return myReader.read();
+    }
+
+    @NotNull
+    private static IOException error(@NotNull final String expected) {
+      return new IOException("Malformed JSON report: " + expected + " expected");
+    }
+  }
+}
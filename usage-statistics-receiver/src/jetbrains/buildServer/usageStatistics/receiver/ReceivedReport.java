@@ -0,0 +1,58 @@
+package jetbrains.buildServer.usageStatistics.receiver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Parsed report waiting to be appended to the store.
+ */
+public class ReceivedReport implements ReportParser.Visitor {
+  private final long myReceivedTime;
+  @NotNull private final String myRemoteAddress;
+  @NotNull private final List<String> myIds = new ArrayList<String>();
+  @NotNull private final List<String> myValues = new ArrayList<String>();
+  @NotNull private final List<String> myRemovedIds = new ArrayList<String>();
+
+  public ReceivedReport(final long receivedTime, @NotNull final String remoteAddress) {
+    myReceivedTime = receivedTime;
+    myRemoteAddress = remoteAddress;
+  }
+
+  public void statistic(@NotNull final String id, @NotNull final String value) {
+    myIds.add(id);
+    myValues.add(value);
+  }
+
+  public void removed(@NotNull final String id) {
+    myRemovedIds.add(id);
+  }
+
+  public long getReceivedTime() {
+    return myReceivedTime;
+  }
+
+  @NotNull
+  public String getRemoteAddress() {
+    return myRemoteAddress;
+  }
+
+  /**
+   * @return ids of the statistics in the report order, see {@link #getValues()}
+   */
+  @NotNull
+  public List<String> getIds() {
+    return Collections.unmodifiableList(myIds);
+  }
+
+  @NotNull
+  public List<String> getValues() {
+    return Collections.unmodifiableList(myValues);
+  }
+
+  @NotNull
+  public List<String> getRemovedIds() {
+    return Collections.unmodifiableList(myRemovedIds);
+  }
+}
@@ -0,0 +1,41 @@
+package jetbrains.buildServer.usageStatistics.receiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Streaming parser of a report body, the counterpart of the server side report encoders.
+ * Parsed values are passed to the visitor one by one, the whole body is never kept in memory.
+ */
+public interface ReportParser {
+  void parse(@NotNull InputStream in, @NotNull Visitor visitor) throws IOException;
+
+  interface Visitor {
+    void statistic(@NotNull String id, @NotNull String value) throws IOException;
+
+    void removed(@NotNull String id) throws IOException;
+  }
+
+  /**
+   * @param contentType value of the Content-Type header, may contain parameters
+   * @return parser for the content type or null if the content type is not supported
+   */
+  @Nullable
+  static ReportParser forContentType(@Nullable final String contentType) {
+    final String mimeType = contentType == null ? "" : contentType.split(";", 2)[0].trim().toLowerCase();
+    switch (mimeType) {
+      case "":
+      case "application/octet-stream": // the form encoder does not set the content type
+      case FormReportParser.CONTENT_TYPE:
+        return new FormReportParser();
+      case JsonReportParser.CONTENT_TYPE:
+        return new JsonReportParser();
+      case BinaryReportParser.CONTENT_TYPE:
+        return new BinaryReportParser();
+      default:
+        return null;
+    }
+  }
+}
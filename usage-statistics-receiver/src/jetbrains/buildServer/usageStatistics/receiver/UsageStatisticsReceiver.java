@@ -0,0 +1,307 @@
+package jetbrains.buildServer.usageStatistics.receiver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Standalone receiver of usage statistics reports, speaks the same protocol as the JetBrains statistics server:
+ * a report is POSTed as a form (or JSON, or the compact binary encoding), optionally gzipped, and the answer is
+ * an XML document with an {@code <ok/>}, {@code <ignored/>} or {@code <error/>} element.
+ * <p>
+ * Point the servers to it with {@code teamcity.usageStatistics.server.url=http://host:port/report.html}.
+ * Bodies are parsed while they are read. Accepted reports are appended to a {@link ColumnarReportStore} and acknowledged
+ * once written. When too many requests are being processed, the store queue is full or the report is not written in time,
+ * the receiver answers 503 and does not store the report, so the servers keep it and retry it later with their own backoff.
+ * <p>
+ * {@code --response ignored|error} and {@code --reject-gzip} make the receiver a stand-in for testing the reporter.
+ */
+public class UsageStatisticsReceiver {
+  @NotNull private static final Logger LOG = Logger.getLogger(UsageStatisticsReceiver.class.getName());
+
+  private static final int SERVICE_UNAVAILABLE = 503;
+  private static final long STORE_TIMEOUT_SECONDS = 30;
+
+  @NotNull private final Options myOptions;
+  @NotNull private final ColumnarReportStore myStore;
+  @NotNull private final Semaphore myRequestPermits;
+  @NotNull private final ExecutorService myExecutor;
+  @NotNull private final HttpServer myServer;
+
+  public UsageStatisticsReceiver(@NotNull final Options options) throws IOException {
+    myOptions = options;
+    myStore = new ColumnarReportStore(options.myDirectory, options.myQueueCapacity, options.myBatchSize);
+    myRequestPermits = new Semaphore(options.myMaxConcurrentRequests);
+    myExecutor = Executors.newFixedThreadPool(options.myThreads);
+    myServer = HttpServer.create(new InetSocketAddress(options.myPort), options.myMaxConcurrentRequests);
+    myServer.createContext("/", this::handle);
+    myServer.setExecutor(myExecutor);
+  }
+
+  public void start() {
+    myServer.start();
+    LOG.info("Receiving usage statistics on port " + myServer.getAddress().getPort() + ", storing to \"" + myOptions.myDirectory.getAbsolutePath() + "\"");
+  }
+
+  public int getPort() {
+    return myServer.getAddress().getPort();
+  }
+
+  public void stop() throws IOException {
+    myServer.stop(1);
+    myExecutor.shutdown();
+    myStore.close();
+  }
+
+  private void handle(@NotNull final HttpExchange exchange) throws IOException {
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        exchange.getResponseHeaders().set("Allow", "POST");
+        respond(exchange, 405, null);
+        return;
+      }
+      if (!myRequestPermits.tryAcquire()) {
+        respondUnavailable(exchange, "too many concurrent requests");
+        return;
+      }
+      try {
+        handleReport(exchange);
+      } finally {
+        myRequestPermits.release();
+      }
+    } catch (final Throwable e) {
+      LOG.log(Level.WARNING, "Failed to process a report from " + exchange.getRemoteAddress(), e);
+      if (exchange.getResponseCode() == -1) {
+        respond(exchange, 500, null);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void handleReport(@NotNull final HttpExchange exchange) throws IOException, InterruptedException {
+    final String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+    final boolean gzipped = "gzip".equalsIgnoreCase(contentEncoding);
+    if (contentEncoding != null && !gzipped && !"identity".equalsIgnoreCase(contentEncoding) || gzipped && myOptions.myRejectGzip) {
+      respond(exchange, 415, "Unsupported content encoding: " + contentEncoding);
+      return;
+    }
+    final String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    final ReportParser parser = ReportParser.forContentType(contentType);
+    if (parser == null) {
+      respond(exchange, 415, "Unsupported content type: " + contentType);
+      return;
+    }
+
+    final ReceivedReport report = new ReceivedReport(System.currentTimeMillis(), exchange.getRemoteAddress().getAddress().getHostAddress());
+    try {
+      InputStream in = new LimitedInputStream(exchange.getRequestBody(), myOptions.myMaxBodySize);
+      if (gzipped) {
+        in = new LimitedInputStream(new GZIPInputStream(in), myOptions.myMaxBodySize); // protects from the decompression bombs
+      }
+      parser.parse(new BufferedInputStream(in), report);
+    } catch (final BodyTooLargeException e) {
+      respond(exchange, 413, e.getMessage());
+      return;
+    } catch (final IOException e) {
+      respondXml(exchange, "<error>" + escape(e.getMessage()) + "</error>");
+      return;
+    }
+
+    switch (myOptions.myResponse) {
+      case "ignored":
+        respondXml(exchange, "<ignored>Reports are ignored by the receiver settings</ignored>");
+        return;
+      case "error":
+        respondXml(exchange, "<error>Reports are rejected by the receiver settings</error>");
+        return;
+    }
+
+    final CompletableFuture<Void> written = myStore.offer(report);
+    if (written == null) {
+      respondUnavailable(exchange, "store queue is full");
+      return;
+    }
+    try {
+      try {
+        written.get(STORE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      } catch (final TimeoutException e) {
+        if (myStore.withdraw(written)) { // not stored, so the retried report is not stored twice
+          respondUnavailable(exchange, "report was not stored in " + STORE_TIMEOUT_SECONDS + " seconds");
+          return;
+        }
+        written.get(); // is being written right now
+      }
+    } catch (final ExecutionException e) {
+      LOG.log(Level.WARNING, "Report from " + report.getRemoteAddress() + " was not stored", e);
+      respond(exchange, 500, "Report was not stored");
+      return;
+    }
+    respondXml(exchange, "<ok/>");
+  }
+
+  private static void respondUnavailable(@NotNull final HttpExchange exchange, @NotNull final String reason) throws IOException {
+    LOG.fine("Rejecting a report from " + exchange.getRemoteAddress() + ": " + reason);
+    respond(exchange, SERVICE_UNAVAILABLE, "Receiver is overloaded: " + reason);
+  }
+
+  private static void respondXml(@NotNull final HttpExchange exchange, @NotNull final String result) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+    respond(exchange, 200, "<response>" + result + "</response>");
+  }
+
+  private static void respond(@NotNull final HttpExchange exchange, final int code, @Nullable final String body) throws IOException {
+    final byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+    if (bytes.length > 0) {
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    }
+  }
+
+  @NotNull
+  private static String escape(@Nullable final String text) {
+    if (text == null) return "";
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  public static void main(@NotNull final String[] args) throws IOException {
+    final Options options;
+    try {
+      options = Options.parse(args);
+    } catch (final IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(Options.USAGE);
+      System.exit(1);
+      return;
+    }
+    final UsageStatisticsReceiver receiver = new UsageStatisticsReceiver(options);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        receiver.stop();
+      } catch (final IOException e) {
+        LOG.log(Level.WARNING, "Failed to close the store", e);
+      }
+    }));
+    receiver.start();
+  }
+
+  public static class Options {
+    @NotNull static final String USAGE =
+      "Usage: UsageStatisticsReceiver [--port 8080] [--dir usage-statistics-data] [--threads 8] [--max-requests 64]\n" +
+      "                               [--queue 1024] [--batch 256] [--max-body-mb 16] [--response ok|ignored|error] [--reject-gzip]";
+
+    private int myPort = 8080;
+    @NotNull private File myDirectory = new File("usage-statistics-data");
+    private int myThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private int myMaxConcurrentRequests = 64;
+    private int myQueueCapacity = 1024;
+    private int myBatchSize = 256;
+    private long myMaxBodySize = 16 * 1024 * 1024;
+    @NotNull private String myResponse = "ok";
+    private boolean myRejectGzip = false;
+
+    @NotNull
+    public static Options parse(@NotNull final String[] args) {
+      final Options options = new Options();
+      for (int i = 0; i < args.length; i++) {
+        final String arg = args[i];
+        if ("--reject-gzip".equals(arg)) {
+          options.myRejectGzip = true;
+          continue;
+        }
+        if (i + 1 == args.length) throw new IllegalArgumentException("Missing value of " + arg);
+        final String value = args[++i];
+        switch (arg) {
+          case "--port": options.myPort = parseInt(arg, value); break;
+          case "--dir": options.myDirectory = new File(value); break;
+          case "--threads": options.myThreads = parseInt(arg, value); break;
+          case "--max-requests": options.myMaxConcurrentRequests = parseInt(arg, value); break;
+          case "--queue": options.myQueueCapacity = parseInt(arg, value); break;
+          case "--batch": options.myBatchSize = parseInt(arg, value); break;
+          case "--max-body-mb": options.myMaxBodySize = parseInt(arg, value) * 1024L * 1024L; break;
+          case "--response":
+            if (!"ok".equals(value) && !"ignored".equals(value) && !"error".equals(value)) {
+              throw new IllegalArgumentException("Unknown response: " + value);
+            }
+            options.myResponse = value;
+            break;
+          default: throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+      }
+      return options;
+    }
+
+    private static int parseInt(@NotNull final String option, @NotNull final String value) {
+      try {
+        final int result = Integer.parseInt(value);
+        if (result < 0 || result == 0 && !"--port".equals(option)) throw new NumberFormatException();
+        return result;
+      } catch (final NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid value of " + option + ": " + value);
+      }
+    }
+  }
+
+  private static class BodyTooLargeException extends IOException {
+    BodyTooLargeException(final long limit) {
+      super("Report is larger than " + limit + " bytes");
+    }
+  }
+
+  private static class LimitedInputStream extends FilterInputStream {
+    private final long myLimit;
+    private long myRead = 0;
+
+    LimitedInputStream(@NotNull final InputStream in, final long limit) {
+      super(in);
+      myLimit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b != -1) count(1);
+      return b;
+    }
+
+    @Override
+    public int read(@NotNull final byte[] b, final int off, final int len) throws IOException {
+      final int count = super.read(b, off, len);
+      if (count > 0) count(count);
+      return count;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      final long skipped = super.skip(n);
+      count(skipped);
+      return skipped;
+    }
+
+    private void count(final long bytes) throws BodyTooLargeException {
+      myRead += bytes;
+      if (myRead > myLimit) throw new BodyTooLargeException(myLimit);
+    }
+  }
+}
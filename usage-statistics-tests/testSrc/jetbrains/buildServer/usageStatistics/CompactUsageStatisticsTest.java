@@ -0,0 +1,93 @@
+
+package jetbrains.buildServer.usageStatistics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class CompactUsageStatisticsTest {
+
+  public void values_should_be_published_back_in_order_with_original_types() {
+    final Object object = new Object();
+    final List<Object> values = Arrays.asList(1, 2L, true, 1.5, 2.5f, "text", null, object, Integer.MIN_VALUE, Long.MAX_VALUE);
+
+    final CompactUsageStatistics.Builder builder = new CompactUsageStatistics.Builder(new UsageStatisticIdDictionary());
+    for (int i = 0; i < values.size(); i++) {
+      builder.publishStatistic("id" + i, values.get(i));
+    }
+    final CompactUsageStatistics statistics = builder.build();
+
+    final List<String> publishedIds = new ArrayList<String>();
+    final List<Object> publishedValues = new ArrayList<Object>();
+    statistics.publish(new UsageStatisticsPublisher() {
+      public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
+        publishedIds.add(id);
+        publishedValues.add(value);
+      }
+    });
+
+    Assert.assertEquals(statistics.size(), values.size());
+    for (int i = 0; i < values.size(); i++) {
+      Assert.assertEquals(publishedIds.get(i), "id" + i);
+      Assert.assertEquals(publishedValues.get(i), values.get(i));
+      if (values.get(i) != null) {
+        Assert.assertEquals(publishedValues.get(i).getClass(), values.get(i).getClass());
+      }
+    }
+  }
+
+  public void typed_values_should_be_published_back_through_typed_methods() {
+    final CompactUsageStatistics.Builder builder = new CompactUsageStatistics.Builder(new UsageStatisticIdDictionary());
+    builder.publishInt("int", 1);
+    builder.publishLong("long", 2L);
+    builder.publishFlag("flag", true);
+    builder.publishDouble("double", 1.5);
+    builder.publishStatistic("boxed", 3);
+
+    final List<String> published = new ArrayList<String>();
+    builder.build().publish(new UsageStatisticsPublisher() {
+      public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
+        published.add("object " + id + "=" + value);
+      }
+
+      @Override
+      public void publishInt(@NotNull final String id, final int value) {
+        published.add("int " + id + "=" + value);
+      }
+
+      @Override
+      public void publishLong(@NotNull final String id, final long value) {
+        published.add("long " + id + "=" + value);
+      }
+
+      @Override
+      public void publishFlag(@NotNull final String id, final boolean value) {
+        published.add("flag " + id + "=" + value);
+      }
+
+      @Override
+      public void publishDouble(@NotNull final String id, final double value) {
+        published.add("double " + id + "=" + value);
+      }
+    });
+
+    Assert.assertEquals(published, Arrays.asList("int int=1", "long long=2", "flag flag=true", "double double=1.5", "int boxed=3"));
+  }
+
+  public void dictionary_should_be_shared_between_statistics() {
+    final UsageStatisticIdDictionary dictionary = new UsageStatisticIdDictionary();
+    for (int i = 0; i < 2; i++) {
+      final CompactUsageStatistics.Builder builder = new CompactUsageStatistics.Builder(dictionary);
+      for (int j = 0; j < 1000; j++) {
+        builder.publishStatistic("id" + j, j);
+      }
+      Assert.assertEquals(builder.build().size(), 1000);
+    }
+    Assert.assertEquals(dictionary.size(), 1000);
+  }
+}
@@ -0,0 +1,367 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
+import jetbrains.buildServer.usageStatistics.*;
+import jetbrains.buildServer.usageStatistics.presentation.impl.UsageStatisticsPresentationManagerImpl;
+import jetbrains.buildServer.util.Dates;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class UsageStatisticsCollectorImplTest extends BaseServerTestCase {
+  private BlockingProvider myProvider;
+  private UsageStatisticsCollectorImpl myCollector;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myProvider = new BlockingProvider();
+    myServer.registerExtension(UsageStatisticsProvider.class, "blocking", myProvider);
+    myCollector = new UsageStatisticsCollectorImpl(myServer, new UsageStatisticsPresentationManagerImpl(myServer),
+                                                   new UsageStatisticsCollectingPacer(myServer),
+                                                   new UsageStatisticsSnapshotPersistor(myFixture.getServerPaths(), myFixture.getServerResponsibility()));
+  }
+
+  @AfterMethod
+  public void stopCollector() {
+    myProvider.release();
+    myCollector.serverShutdown();
+  }
+
+  public void full_collecting_should_not_be_satisfied_by_running_refresh() throws Exception {
+    myCollector.collectStatisticsAndWait();
+    final UsageStatisticsSnapshot collected = myCollector.getSnapshot();
+    Assert.assertNotNull(collected);
+
+    myProvider.block();
+    Assert.assertTrue(myCollector.forceAsynchronousProviderRefresh(BlockingProvider.class.getName()));
+    Assert.assertTrue(myProvider.awaitEntered());
+
+    final CompletableFuture<UsageStatisticsSnapshot> future = myCollector.collectStatisticsAsynchronously();
+    myProvider.release();
+    final UsageStatisticsSnapshot snapshot = future.get(30, TimeUnit.SECONDS);
+
+    // the refresh publishes the next generation, the requested full collecting the one after it
+    Assert.assertEquals(snapshot.getGeneration(), collected.getGeneration() + 2);
+    Assert.assertTrue(snapshot.getStartDate().getTime() >= collected.getFinishDate().getTime());
+  }
+
+  public void collecting_and_waiting_should_wait_for_full_collecting() throws Exception {
+    myCollector.collectStatisticsAndWait();
+    final long generation = myCollector.getSnapshot().getGeneration();
+
+    myProvider.block();
+    Assert.assertTrue(myCollector.forceAsynchronousProviderRefresh(BlockingProvider.class.getSimpleName()));
+    Assert.assertTrue(myProvider.awaitEntered());
+
+    new Thread(myProvider::release).start();
+    myCollector.collectStatisticsAndWait();
+    Assert.assertEquals(myCollector.getSnapshot().getGeneration(), generation + 2);
+  }
+
+  public void providers_should_run_in_parallel() {
+    setInternalProperty("teamcity.usageStatistics.collecting.parallelism", "2");
+    final CyclicBarrier barrier = new CyclicBarrier(2); // is passed only if both providers are running at the same time
+    myServer.registerExtension(UsageStatisticsProvider.class, "first", new BarrierProvider("first", barrier) {});
+    myServer.registerExtension(UsageStatisticsProvider.class, "second", new BarrierProvider("second", barrier) {});
+
+    myCollector.collectStatisticsAndWait();
+
+    final Map<String, Object> values = getValues(myCollector.getSnapshot());
+    Assert.assertEquals(values.get("first"), Boolean.TRUE);
+    Assert.assertEquals(values.get("second"), Boolean.TRUE);
+  }
+
+  public void timed_out_provider_should_be_cancelled_and_marked() {
+    setInternalProperty("teamcity.usageStatistics.provider.timeout.seconds", "1");
+    final HangingProvider provider = new HangingProvider();
+    myServer.registerExtension(UsageStatisticsProvider.class, "hanging", provider);
+
+    myCollector.collectStatisticsAndWait();
+
+    final UsageStatisticsSnapshot snapshot = myCollector.getSnapshot();
+    Assert.assertEquals(snapshot.getProviderStatuses().get(HangingProvider.class.getName()), UsageStatisticsProviderStatus.TIMED_OUT);
+    Assert.assertEquals(snapshot.getProviderStatuses().get(BlockingProvider.class.getName()), UsageStatisticsProviderStatus.COLLECTED);
+    final Map<String, Object> values = getValues(snapshot);
+    Assert.assertEquals(values.get("jb.usageStatistics.timedOut[HangingProvider]"), Boolean.TRUE);
+    Assert.assertFalse(values.containsKey("hanging"));
+    Assert.assertEquals(provider.myCancelled.getCount(), 0);
+  }
+
+  public void asynchronous_provider_should_not_occupy_worker() {
+    setInternalProperty("teamcity.usageStatistics.provider.timeout.seconds", "30");
+    final AsyncProvider asyncProvider = new AsyncProvider();
+    // the only worker completes the asynchronous provider, it would time out if it was waiting for the worker
+    myServer.registerExtension(UsageStatisticsProvider.class, "completing", new UsageStatisticsProvider() {
+      public void accept(@NotNull final UsageStatisticsPublisher publisher) {
+        asyncProvider.myPublisher.publishInt("async", 1);
+        asyncProvider.myFuture.complete(null);
+        publisher.publishInt("sync", 1);
+      }
+    });
+    myServer.registerExtension(UsageStatisticsProvider.class, "async", asyncProvider);
+
+    myCollector.collectStatisticsAndWait();
+
+    final UsageStatisticsSnapshot snapshot = myCollector.getSnapshot();
+    Assert.assertEquals(snapshot.getProviderStatuses().get(AsyncProvider.class.getName()), UsageStatisticsProviderStatus.COLLECTED);
+    final Map<String, Object> values = getValues(snapshot);
+    Assert.assertEquals(values.get("async"), 1);
+    Assert.assertEquals(values.get("sync"), 1);
+  }
+
+  public void asynchronous_provider_future_should_be_cancelled_on_timeout() {
+    setInternalProperty("teamcity.usageStatistics.provider.timeout.seconds", "1");
+    final AsyncProvider provider = new AsyncProvider();
+    myServer.registerExtension(UsageStatisticsProvider.class, "async", provider);
+
+    myCollector.collectStatisticsAndWait();
+
+    Assert.assertEquals(myCollector.getSnapshot().getProviderStatuses().get(AsyncProvider.class.getName()), UsageStatisticsProviderStatus.TIMED_OUT);
+    Assert.assertTrue(provider.myFuture.isCancelled());
+  }
+
+  public void cached_result_should_be_reused_until_invalidated() {
+    setInternalProperty("teamcity.usageStatistics.resultCache.enabled", "true");
+    final CacheableProvider provider = new CacheableProvider(Dates.ONE_HOUR);
+    myServer.registerExtension(UsageStatisticsProvider.class, "cacheable", provider);
+
+    myCollector.collectStatisticsAndWait();
+    myCollector.collectStatisticsAndWait();
+    Assert.assertEquals(provider.myCalls.get(), 1);
+    Assert.assertEquals(getValues(myCollector.getSnapshot()).get("cacheable"), 1);
+
+    myCollector.invalidateCachedStatistics(CacheableProvider.class);
+    myCollector.collectStatisticsAndWait();
+    Assert.assertEquals(provider.myCalls.get(), 2);
+    Assert.assertEquals(getValues(myCollector.getSnapshot()).get("cacheable"), 2);
+  }
+
+  public void expired_result_should_be_collected_again() throws InterruptedException {
+    setInternalProperty("teamcity.usageStatistics.resultCache.enabled", "true");
+    final CacheableProvider provider = new CacheableProvider(1);
+    myServer.registerExtension(UsageStatisticsProvider.class, "cacheable", provider);
+
+    myCollector.collectStatisticsAndWait();
+    Thread.sleep(10);
+    myCollector.collectStatisticsAndWait();
+
+    Assert.assertEquals(provider.myCalls.get(), 2);
+  }
+
+  public void provider_refresh_should_replace_its_result_only() {
+    final CountingProvider first = new CountingProvider("first") {};
+    final CountingProvider second = new CountingProvider("second") {};
+    myServer.registerExtension(UsageStatisticsProvider.class, "first", first);
+    myServer.registerExtension(UsageStatisticsProvider.class, "second", second);
+    myCollector.collectStatisticsAndWait();
+    final UsageStatisticsSnapshot collected = myCollector.getSnapshot();
+
+    Assert.assertTrue(myCollector.forceAsynchronousProviderRefresh(first.getClass().getName()));
+    final UsageStatisticsSnapshot refreshed = myCollector.waitForSnapshot(collected.getGeneration());
+
+    final Map<String, Object> values = getValues(refreshed);
+    Assert.assertEquals(values.get("first"), 2);
+    Assert.assertEquals(values.get("second"), 1);
+    // a manual refresh does not postpone the statistics expiration
+    Assert.assertEquals(refreshed.getStartDate(), collected.getStartDate());
+    Assert.assertEquals(refreshed.getFinishDate(), collected.getFinishDate());
+  }
+
+  public void refresh_of_unknown_provider_should_be_rejected() {
+    Assert.assertFalse(myCollector.forceAsynchronousProviderRefresh("UnknownProvider"));
+    Assert.assertFalse(myCollector.forceAsynchronousGroupRefresh("unknown group"));
+  }
+
+  public void rolling_tick_should_run_stalest_providers() {
+    setInternalProperty("teamcity.usageStatistics.rolling.enabled", "true");
+    setInternalProperty("teamcity.usageStatistics.rolling.tick.seconds", "1");
+    setInternalProperty("teamcity.usageStatistics.rolling.freshness.seconds", "0");
+    setInternalProperty("teamcity.usageStatistics.rolling.providers.per.tick", "1");
+    final CountingProvider first = new CountingProvider("first") {};
+    final CountingProvider second = new CountingProvider("second") {};
+    myServer.registerExtension(UsageStatisticsProvider.class, "first", first);
+    myServer.registerExtension(UsageStatisticsProvider.class, "second", second);
+    myCollector.collectStatisticsAndWait();
+    final UsageStatisticsSnapshot collected = myCollector.getSnapshot();
+
+    final UsageStatisticsSnapshot rolled = myCollector.waitForSnapshot(collected.getGeneration());
+
+    Assert.assertEquals(first.myCalls.get() + second.myCalls.get() + myProvider.myCalls.get(), 4); // one provider per tick
+    Assert.assertTrue(rolled.getFinishDate().getTime() >= collected.getFinishDate().getTime());
+  }
+
+  public void rolling_snapshot_should_stay_stale_until_all_loaded_results_are_replaced() {
+    setInternalProperty("teamcity.usageStatistics.rolling.enabled", "true");
+    setInternalProperty("teamcity.usageStatistics.rolling.tick.seconds", "1");
+    setInternalProperty("teamcity.usageStatistics.rolling.freshness.seconds", "3600");
+    setInternalProperty("teamcity.usageStatistics.rolling.providers.per.tick", "1");
+    myCollector.serverShutdown(); // the collector thread has already started waiting for the default tick
+    myCollector = new UsageStatisticsCollectorImpl(myServer, new UsageStatisticsPresentationManagerImpl(myServer),
+                                                   new UsageStatisticsCollectingPacer(myServer),
+                                                   new UsageStatisticsSnapshotPersistor(myFixture.getServerPaths(), myFixture.getServerResponsibility()));
+    final CountingProvider first = new CountingProvider("first") {};
+    final CountingProvider second = new CountingProvider("second") {};
+    myServer.registerExtension(UsageStatisticsProvider.class, "first", first);
+    myServer.registerExtension(UsageStatisticsProvider.class, "second", second);
+    final Date loadedStart = new Date(Dates.now().getTime() - 3 * Dates.ONE_DAY);
+    final Date loadedFinish = new Date(loadedStart.getTime() + Dates.ONE_MINUTE);
+    final List<UsageStatisticsSnapshot.ProviderResult> loadedResults = new ArrayList<UsageStatisticsSnapshot.ProviderResult>();
+    for (final Object provider : Arrays.asList(myProvider, first, second)) {
+      loadedResults.add(new UsageStatisticsSnapshot.ProviderResult(provider.getClass().getName(), UsageStatisticsProviderStatus.COLLECTED,
+                                                                   CompactUsageStatistics.empty(new UsageStatisticIdDictionary())));
+    }
+    new UsageStatisticsSnapshotPersistor(myFixture.getServerPaths(), myFixture.getServerResponsibility())
+      .save(new UsageStatisticsSnapshot(1, loadedStart, loadedFinish, loadedResults));
+    final long startupTime = Dates.now().getTime();
+    myCollector.serverStartup();
+
+    UsageStatisticsSnapshot snapshot = myCollector.waitForSnapshot(-1);
+    while (snapshot.isStale()) {
+      // some results are still those loaded from the disk
+      Assert.assertTrue(first.myCalls.get() + second.myCalls.get() + myProvider.myCalls.get() < 3);
+      Assert.assertEquals(snapshot.getStartDate(), loadedStart);
+      Assert.assertEquals(snapshot.getFinishDate(), loadedFinish);
+      snapshot = myCollector.waitForSnapshot(snapshot.getGeneration());
+    }
+
+    Assert.assertEquals(first.myCalls.get() + second.myCalls.get() + myProvider.myCalls.get(), 3);
+    Assert.assertTrue(snapshot.getStartDate().getTime() >= startupTime);
+    Assert.assertTrue(snapshot.getFinishDate().getTime() > snapshot.getStartDate().getTime()); // one provider per tick
+    Assert.assertTrue(snapshot.getFinishDate().getTime() <= Dates.now().getTime());
+  }
+
+  @NotNull
+  private static Map<String, Object> getValues(@NotNull final UsageStatisticsSnapshot snapshot) {
+    final Map<String, Object> result = new HashMap<String, Object>();
+    snapshot.publishStatistics(new UsageStatisticsPublisher() {
+      public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
+        result.put(id, value);
+      }
+    });
+    return result;
+  }
+
+  private static class CountingProvider implements UsageStatisticsProvider {
+    @NotNull private final String myId;
+    @NotNull final AtomicInteger myCalls = new AtomicInteger();
+
+    CountingProvider(@NotNull final String id) {
+      myId = id;
+    }
+
+    public void accept(@NotNull final UsageStatisticsPublisher publisher) {
+      publisher.publishInt(myId, myCalls.incrementAndGet());
+    }
+  }
+
+  private static class CacheableProvider extends CountingProvider implements CacheableUsageStatisticsProvider {
+    private final long myTimeToLive;
+
+    CacheableProvider(final long timeToLive) {
+      super("cacheable");
+      myTimeToLive = timeToLive;
+    }
+
+    public long getResultTimeToLive() {
+      return myTimeToLive;
+    }
+  }
+
+  private static class BarrierProvider implements UsageStatisticsProvider {
+    @NotNull private final String myId;
+    @NotNull private final CyclicBarrier myBarrier;
+
+    BarrierProvider(@NotNull final String id, @NotNull final CyclicBarrier barrier) {
+      myId = id;
+      myBarrier = barrier;
+    }
+
+    public void accept(@NotNull final UsageStatisticsPublisher publisher) {
+      boolean passed;
+      try {
+        myBarrier.await(10, TimeUnit.SECONDS);
+        passed = true;
+      }
+      catch (final Exception e) {
+        passed = false;
+      }
+      publisher.publishFlag(myId, passed);
+    }
+  }
+
+  private static class HangingProvider implements CancellableUsageStatisticsProvider {
+    @NotNull private final CountDownLatch myCancelled = new CountDownLatch(1);
+
+    public void accept(@NotNull final UsageStatisticsPublisher publisher) {
+      try {
+        myCancelled.await(30, TimeUnit.SECONDS);
+      }
+      catch (final InterruptedException ignore) {}
+      publisher.publishFlag("hanging", true);
+    }
+
+    public void cancel() {
+      myCancelled.countDown();
+    }
+  }
+
+  private static class AsyncProvider implements AsyncUsageStatisticsProvider {
+    @NotNull private final CompletableFuture<Void> myFuture = new CompletableFuture<Void>();
+    private volatile UsageStatisticsPublisher myPublisher;
+
+    @NotNull
+    public CompletableFuture<?> acceptAsynchronously(@NotNull final UsageStatisticsPublisher publisher) {
+      myPublisher = publisher;
+      return myFuture;
+    }
+  }
+
+  private static class BlockingProvider implements UsageStatisticsProvider {
+    @NotNull private final AtomicInteger myCalls = new AtomicInteger();
+    private volatile CountDownLatch myEntered = new CountDownLatch(0);
+    private volatile CountDownLatch myReleased = new CountDownLatch(0);
+
+    void block() {
+      myEntered = new CountDownLatch(1);
+      myReleased = new CountDownLatch(1);
+    }
+
+    boolean awaitEntered() throws InterruptedException {
+      return myEntered.await(30, TimeUnit.SECONDS);
+    }
+
+    void release() {
+      try {
+        Thread.sleep(100); // let the collecting request come first
+      }
+      catch (final InterruptedException ignore) {}
+      myReleased.countDown();
+    }
+
+    public void accept(@NotNull final UsageStatisticsPublisher publisher) {
+      myEntered.countDown();
+      try {
+        myReleased.await(30, TimeUnit.SECONDS);
+      }
+      catch (final InterruptedException ignore) {}
+      publisher.publishStatistic("calls", myCalls.incrementAndGet());
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsSnapshot;
+import jetbrains.buildServer.util.Dates;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class UsageStatisticsPreCollectingSchedulerTest {
+  private static final long PERIOD = Dates.ONE_DAY;
+  private static final long NOW = 100 * Dates.ONE_DAY;
+
+  public void window_should_contain_its_start_but_not_its_end() {
+    Assert.assertEquals(UsageStatisticsPreCollectingScheduler.isInsideWindow("01:30-03:00", time(1, 30)), Boolean.TRUE);
+    Assert.assertEquals(UsageStatisticsPreCollectingScheduler.isInsideWindow("01:30-03:00", time(2, 59)), Boolean.TRUE);
+    Assert.assertEquals(UsageStatisticsPreCollectingScheduler.isInsideWindow("01:30-03:00", time(3, 0)), Boolean.FALSE);
+    Assert.assertEquals(UsageStatisticsPreCollectingScheduler.isInsideWindow("01:30-03:00", time(1, 29)), Boolean.FALSE);
+  }
+
+  public void window_may_span_midnight() {
+    Assert.assertEquals(UsageStatisticsPreCollectingScheduler.isInsideWindow("23:00 - 2:00", time(23, 30)), Boolean.TRUE);
+    Assert.assertEquals(UsageStatisticsPreCollectingScheduler.isInsideWindow("23:00 - 2:00", time(1, 0)), Boolean.TRUE);
+    Assert.assertEquals(UsageStatisticsPreCollectingScheduler.isInsideWindow("23:00 - 2:00", time(12, 0)), Boolean.FALSE);
+  }
+
+  public void invalid_window_should_be_rejected() {
+    Assert.assertNull(UsageStatisticsPreCollectingScheduler.isInsideWindow("25:99-03:00", time(1, 0)));
+    Assert.assertNull(UsageStatisticsPreCollectingScheduler.isInsideWindow("01:00-24:00", time(1, 0)));
+    Assert.assertNull(UsageStatisticsPreCollectingScheduler.isInsideWindow("01:60-03:00", time(1, 0)));
+    Assert.assertNull(UsageStatisticsPreCollectingScheduler.isInsideWindow("1-3", time(1, 0)));
+  }
+
+  public void missing_snapshot_should_be_collected() {
+    Assert.assertTrue(UsageStatisticsPreCollectingScheduler.isExpiredAtNextReport(null, null, NOW, PERIOD));
+  }
+
+  public void snapshot_valid_at_next_report_should_not_be_collected_again() {
+    // reported an hour ago, the next report is in 23 hours, the snapshot collected 30 minutes ago is still valid then
+    final Date lastReportingDate = new Date(NOW - Dates.ONE_HOUR);
+    Assert.assertFalse(UsageStatisticsPreCollectingScheduler.isExpiredAtNextReport(snapshot(NOW - 30 * Dates.ONE_MINUTE), lastReportingDate, NOW, PERIOD));
+  }
+
+  public void snapshot_expired_at_next_report_should_be_collected() {
+    // the snapshot collected before the last report expires an hour before the next one
+    final Date lastReportingDate = new Date(NOW - Dates.ONE_HOUR);
+    Assert.assertTrue(UsageStatisticsPreCollectingScheduler.isExpiredAtNextReport(snapshot(NOW - 2 * Dates.ONE_HOUR), lastReportingDate, NOW, PERIOD));
+  }
+
+  public void overdue_report_should_be_checked_against_now() {
+    Assert.assertFalse(UsageStatisticsPreCollectingScheduler.isExpiredAtNextReport(snapshot(NOW - Dates.ONE_HOUR), null, NOW, PERIOD));
+    Assert.assertTrue(UsageStatisticsPreCollectingScheduler.isExpiredAtNextReport(snapshot(NOW - 2 * PERIOD), new Date(NOW - 3 * PERIOD), NOW, PERIOD));
+  }
+
+  @NotNull
+  private static UsageStatisticsSnapshot snapshot(final long finishTime) {
+    return new UsageStatisticsSnapshot(1, new Date(finishTime - Dates.ONE_MINUTE), new Date(finishTime),
+                                       Collections.<UsageStatisticsSnapshot.ProviderResult>emptyList());
+  }
+
+  @NotNull
+  private static Calendar time(final int hours, final int minutes) {
+    final Calendar calendar = Calendar.getInstance();
+    calendar.set(Calendar.HOUR_OF_DAY, hours);
+    calendar.set(Calendar.MINUTE, minutes);
+    return calendar;
+  }
+}
@@ -0,0 +1,77 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class UsageStatisticsReportDigestTest {
+
+  public void values_with_equal_string_hash_codes_should_have_different_hashes() {
+    Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+    Assert.assertNotEquals(UsageStatisticsReportDigest.hash("Aa"), UsageStatisticsReportDigest.hash("BB"));
+    Assert.assertEquals("AaAaAaAaAaAa".hashCode(), "BBBBBBBBBBBB".hashCode());
+    Assert.assertNotEquals(UsageStatisticsReportDigest.hash("AaAaAaAaAaAa"), UsageStatisticsReportDigest.hash("BBBBBBBBBBBB"));
+  }
+
+  public void short_values_should_not_collide() {
+    Assert.assertNotEquals(UsageStatisticsReportDigest.hash(""), UsageStatisticsReportDigest.hash("\u0000"));
+    Assert.assertNotEquals(UsageStatisticsReportDigest.hash("1"), UsageStatisticsReportDigest.hash("10"));
+    Assert.assertNotEquals(UsageStatisticsReportDigest.hash("1234567"), UsageStatisticsReportDigest.hash("12345678"));
+  }
+
+  public void changed_value_should_be_detected() {
+    final Map<String, Long> hashes = new HashMap<String, Long>();
+    hashes.put("id", UsageStatisticsReportDigest.hash("Aa"));
+    final UsageStatisticsReportDigest digest = new UsageStatisticsReportDigest(new Date(2), new Date(1), hashes);
+
+    Assert.assertFalse(digest.isChanged("id", UsageStatisticsReportDigest.hash("Aa")));
+    Assert.assertTrue(digest.isChanged("id", UsageStatisticsReportDigest.hash("BB")));
+    Assert.assertTrue(digest.isChanged("other", UsageStatisticsReportDigest.hash("Aa")));
+  }
+
+  public void digest_should_be_read_back() throws IOException {
+    final Map<String, Long> hashes = new HashMap<String, Long>();
+    hashes.put("jb.short", UsageStatisticsReportDigest.hash("1"));
+    hashes.put("jb.long value", UsageStatisticsReportDigest.hash("a long value with spaces"));
+    final File file = createTempFile();
+    new UsageStatisticsReportDigest(new Date(2), new Date(1), hashes).writeTo(file);
+
+    final UsageStatisticsReportDigest digest = UsageStatisticsReportDigest.readFrom(file);
+    Assert.assertNotNull(digest);
+    Assert.assertEquals(digest.getReportDate(), new Date(2));
+    Assert.assertEquals(digest.getFullReportDate(), new Date(1));
+    Assert.assertEquals(digest.getValueHashes(), hashes);
+  }
+
+  public void malformed_digest_should_be_dropped() throws IOException {
+    final File file = createTempFile();
+    final DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+    try {
+      out.writeInt(0x54435544);
+      out.writeInt(1);
+      out.writeLong(2);
+      out.writeLong(1);
+      out.writeInt(Integer.MAX_VALUE);
+    }
+    finally {
+      out.close();
+    }
+
+    Assert.assertNull(UsageStatisticsReportDigest.readFrom(file));
+  }
+
+  @NotNull
+  private static File createTempFile() throws IOException {
+    final File file = File.createTempFile("digest", ".bin");
+    file.deleteOnExit();
+    return file;
+  }
+}
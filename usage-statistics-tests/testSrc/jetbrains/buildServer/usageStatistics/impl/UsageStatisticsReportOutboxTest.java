@@ -0,0 +1,105 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
+import jetbrains.buildServer.util.Dates;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class UsageStatisticsReportOutboxTest extends BaseServerTestCase {
+  private UsageStatisticsReportOutbox myOutbox;
+  private File myFile;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myOutbox = createOutbox();
+    myFile = new File(new File(myFixture.getServerPaths().getPluginDataDirectory(), "usage-statistics"), "pendingReport.bin");
+  }
+
+  public void pending_report_should_survive_restart() {
+    final byte[] body = {1, 2, 3};
+    myOutbox.add(body, true, "application/json");
+
+    final UsageStatisticsReportOutbox.Entry entry = createOutbox().get();
+    Assert.assertNotNull(entry);
+    Assert.assertEquals(entry.getBody(), body);
+    Assert.assertTrue(entry.isCompressed());
+    Assert.assertEquals(entry.getContentType(), "application/json");
+    Assert.assertEquals(entry.getAttempts(), 1);
+  }
+
+  public void retry_delay_should_grow_exponentially_up_to_limit() {
+    setInternalProperty("teamcity.usageStatistics.reporting.retry.initial.delay.minutes", "10");
+    setInternalProperty("teamcity.usageStatistics.reporting.retry.max.delay.minutes", "30");
+
+    long start = Dates.now().getTime();
+    myOutbox.add(new byte[0], false, null);
+    UsageStatisticsReportOutbox.Entry entry = myOutbox.get();
+    assertDelay(entry, start, 10);
+
+    final long[] expectedDelays = {20, 30, 30};
+    for (final long expectedDelay : expectedDelays) {
+      start = Dates.now().getTime();
+      myOutbox.postpone(entry);
+      final UsageStatisticsReportOutbox.Entry postponed = myOutbox.get();
+      Assert.assertEquals(postponed.getAttempts(), entry.getAttempts() + 1);
+      Assert.assertEquals(postponed.getCreationDate(), entry.getCreationDate());
+      assertDelay(postponed, start, expectedDelay);
+      entry = postponed;
+    }
+  }
+
+  public void removed_report_should_not_be_returned() {
+    myOutbox.add(new byte[]{1}, false, null);
+    myOutbox.remove();
+    Assert.assertNull(myOutbox.get());
+  }
+
+  public void next_attempt_date_should_be_read_without_body() {
+    Assert.assertNull(myOutbox.getNextAttemptDate());
+    myOutbox.add(new byte[]{1, 2, 3}, false, null);
+
+    final UsageStatisticsReportOutbox.Entry entry = myOutbox.get();
+    Assert.assertNotNull(entry);
+    Assert.assertEquals(createOutbox().getNextAttemptDate(), entry.getNextAttemptDate());
+  }
+
+  public void file_with_invalid_length_should_be_dropped() throws IOException {
+    myFile.getParentFile().mkdirs();
+    final DataOutputStream out = new DataOutputStream(new FileOutputStream(myFile));
+    try {
+      out.writeInt(0x5443554F);
+      out.writeInt(2);
+      out.writeLong(Dates.now().getTime());
+      out.writeInt(1);
+      out.writeLong(Dates.now().getTime());
+      out.writeBoolean(false);
+      out.writeUTF("");
+      out.writeInt(Integer.MAX_VALUE);
+    }
+    finally {
+      out.close();
+    }
+
+    Assert.assertNull(myOutbox.get());
+    Assert.assertFalse(myFile.exists());
+  }
+
+  private static void assertDelay(final UsageStatisticsReportOutbox.Entry entry, final long start, final long expectedMinutes) {
+    final long delay = entry.getNextAttemptDate().getTime() - start;
+    final long expected = expectedMinutes * Dates.ONE_MINUTE;
+    Assert.assertTrue(delay >= expected * 0.8 - Dates.ONE_SECOND && delay <= expected * 1.2 + Dates.ONE_SECOND,
+                      "delay " + delay + " ms, expected about " + expected + " ms");
+  }
+
+  private UsageStatisticsReportOutbox createOutbox() {
+    return new UsageStatisticsReportOutbox(myFixture.getServerPaths(), myFixture.getServerResponsibility());
+  }
+}
@@ -0,0 +1,121 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import jetbrains.buildServer.usageStatistics.CompactUsageStatistics;
+import jetbrains.buildServer.usageStatistics.UsageStatisticIdDictionary;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsProviderStatus;
+import jetbrains.buildServer.usageStatistics.UsageStatisticsSnapshot;
+import jetbrains.buildServer.usageStatistics.receiver.FormReportParser;
+import jetbrains.buildServer.usageStatistics.receiver.ReceivedReport;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class UsageStatisticsReporterImplTest {
+
+  public void last_published_value_should_win() throws IOException {
+    final CompactUsageStatistics.Builder first = new CompactUsageStatistics.Builder(new UsageStatisticIdDictionary());
+    first.publishInt("jb.a", 1);
+    first.publishStatistic("jb.b", "first");
+    first.publishInt("jb.a", 2);
+    final CompactUsageStatistics.Builder second = new CompactUsageStatistics.Builder(new UsageStatisticIdDictionary());
+    second.publishStatistic("jb.b", "second");
+    second.publishLong("jb.collectingFinishDate", 1L);
+
+    final UsageStatisticsSnapshot snapshot = new UsageStatisticsSnapshot(1, new Date(1000), new Date(2000), Arrays.asList(
+      new UsageStatisticsSnapshot.ProviderResult("first", UsageStatisticsProviderStatus.COLLECTED, first.build()),
+      new UsageStatisticsSnapshot.ProviderResult("second", UsageStatisticsProviderStatus.COLLECTED, second.build())));
+
+    final Map<String, Long> valueHashes = new HashMap<String, Long>();
+    final ReceivedReport report = writeAndParse(snapshot, new Date(500), valueHashes);
+
+    Assert.assertEquals(report.getIds(), Arrays.asList("jb.a", "jb.b", "jb.collectingFinishDate", "jb.previousReportDate"));
+    Assert.assertEquals(report.getValues(), Arrays.asList("2", "second", "2000", "500"));
+    Assert.assertEquals(valueHashes.keySet(), new HashSet<String>(Arrays.asList("jb.a", "jb.b")));
+    Assert.assertEquals(valueHashes.get("jb.b"), Long.valueOf(UsageStatisticsReportDigest.hash("second")));
+  }
+
+  public void statistics_without_duplicates_should_be_written_in_order() throws IOException {
+    final CompactUsageStatistics.Builder builder = new CompactUsageStatistics.Builder(new UsageStatisticIdDictionary());
+    builder.publishFlag("jb.c", true);
+    builder.publishDouble("jb.a", 1.5);
+    builder.publishStatistic("jb.b", null);
+    final UsageStatisticsSnapshot snapshot = new UsageStatisticsSnapshot(1, new Date(1000), new Date(2000), Collections.singletonList(
+      new UsageStatisticsSnapshot.ProviderResult("provider", UsageStatisticsProviderStatus.COLLECTED, builder.build())));
+
+    final ReceivedReport report = writeAndParse(snapshot, null, new HashMap<String, Long>());
+
+    Assert.assertEquals(report.getIds(), Arrays.asList("jb.c", "jb.a", "jb.b", "jb.collectingFinishDate"));
+    Assert.assertEquals(report.getValues(), Arrays.asList("true", "1.5", "null", "2000"));
+  }
+
+  public void skipped_values_should_not_shift_later_values() throws IOException {
+    final CompactUsageStatistics.Builder builder = new CompactUsageStatistics.Builder(new UsageStatisticIdDictionary());
+    builder.publishStatistic("jb.a", "first");
+    builder.publishInt("jb.b", 1);
+    builder.publishStatistic("jb.a", "second");
+    builder.publishStatistic("jb.c", "third");
+    final UsageStatisticsSnapshot snapshot = new UsageStatisticsSnapshot(1, new Date(1000), new Date(2000), Collections.singletonList(
+      new UsageStatisticsSnapshot.ProviderResult("provider", UsageStatisticsProviderStatus.COLLECTED, builder.build())));
+
+    // no hashes are computed for a report which is not a delta
+    final ReceivedReport report = writeAndParse(snapshot, null, null, null);
+
+    Assert.assertEquals(report.getIds(), Arrays.asList("jb.b", "jb.a", "jb.c", "jb.collectingFinishDate"));
+    Assert.assertEquals(report.getValues(), Arrays.asList("1", "second", "third", "2000"));
+  }
+
+  public void delta_should_contain_changed_values_only() throws IOException {
+    // "Aa" and "BB" as well as the longer values have equal String.hashCode()
+    final Map<String, Long> reportedHashes = new HashMap<String, Long>();
+    reportedHashes.put("jb.short", UsageStatisticsReportDigest.hash("Aa"));
+    reportedHashes.put("jb.long", UsageStatisticsReportDigest.hash("AaAaAaAaAaAa"));
+    reportedHashes.put("jb.same", UsageStatisticsReportDigest.hash("value"));
+    reportedHashes.put("jb.removed", UsageStatisticsReportDigest.hash("1"));
+    final UsageStatisticsReportDigest deltaBase = new UsageStatisticsReportDigest(new Date(500), new Date(100), reportedHashes);
+
+    final CompactUsageStatistics.Builder builder = new CompactUsageStatistics.Builder(new UsageStatisticIdDictionary());
+    builder.publishStatistic("jb.short", "BB");
+    builder.publishStatistic("jb.long", "BBBBBBBBBBBB");
+    builder.publishStatistic("jb.same", "value");
+    final UsageStatisticsSnapshot snapshot = new UsageStatisticsSnapshot(1, new Date(1000), new Date(2000), Collections.singletonList(
+      new UsageStatisticsSnapshot.ProviderResult("provider", UsageStatisticsProviderStatus.COLLECTED, builder.build())));
+
+    final ReceivedReport report = writeAndParse(snapshot, null, deltaBase, new HashMap<String, Long>());
+
+    Assert.assertEquals(report.getIds(), Arrays.asList("jb.short", "jb.long", "jb.collectingFinishDate", "jb.reportType", "jb.deltaBaseDate"));
+    Assert.assertEquals(report.getValues(), Arrays.asList("BB", "BBBBBBBBBBBB", "2000", "delta", "500"));
+    Assert.assertEquals(report.getRemovedIds(), Collections.singletonList("jb.removed"));
+  }
+
+  @NotNull
+  private static ReceivedReport writeAndParse(@NotNull final UsageStatisticsSnapshot snapshot,
+                                              final Date lastReportingDate,
+                                              @NotNull final Map<String, Long> valueHashes) throws IOException {
+    return writeAndParse(snapshot, lastReportingDate, null, valueHashes);
+  }
+
+  @NotNull
+  private static ReceivedReport writeAndParse(@NotNull final UsageStatisticsSnapshot snapshot,
+                                              final Date lastReportingDate,
+                                              final UsageStatisticsReportDigest deltaBase,
+                                              final Map<String, Long> valueHashes) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final UsageStatisticsReportEncoder.Encoding encoding = new FormUsageStatisticsReportEncoder().startEncoding(out);
+    UsageStatisticsReporterImpl.writeStatistics(snapshot, lastReportingDate, deltaBase, valueHashes, encoding);
+    encoding.finish();
+
+    final ReceivedReport report = new ReceivedReport(0, "");
+    new FormReportParser().parse(new ByteArrayInputStream(out.toByteArray()), report);
+    return report;
+  }
+}
@@ -0,0 +1,246 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
+import jetbrains.buildServer.serverSide.impl.FileWatcherFactory;
+import jetbrains.buildServer.serverSide.impl.persisting.SettingsPersister;
+import jetbrains.buildServer.usageStatistics.presentation.impl.UsageStatisticsPresentationManagerImpl;
+import jetbrains.buildServer.util.Dates;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class UsageStatisticsReportingSchedulerTest extends BaseServerTestCase {
+  private static final long PERIOD = 1000 * Dates.ONE_MINUTE;
+  private static final long RETRY_INTERVAL = PERIOD / 100;
+
+  private RecordingExecutor myExecutor;
+  private UsageStatisticsCollectorImpl myCollector;
+  private UsageStatisticsSettingsPersistor mySettingsPersistor;
+  private UsageStatisticsCommonDataPersistor myCommonDataPersistor;
+  private UsageStatisticsReportOutbox myOutbox;
+  private CompletableFuture<Boolean> myReportResult;
+  private UsageStatisticsReportingScheduler myScheduler;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    setInternalProperty("teamcity.usageStatistics.reporting.period.minutes", String.valueOf(PERIOD / Dates.ONE_MINUTE));
+    myExecutor = new RecordingExecutor();
+    myCollector = new UsageStatisticsCollectorImpl(myServer, new UsageStatisticsPresentationManagerImpl(myServer),
+                                                   new UsageStatisticsCollectingPacer(myServer),
+                                                   new UsageStatisticsSnapshotPersistor(myFixture.getServerPaths(), myFixture.getServerResponsibility()));
+    mySettingsPersistor = new UsageStatisticsSettingsPersistor(myFixture.getServerPaths(),
+                                                               myFixture.getSingletonService(FileWatcherFactory.class),
+                                                               myFixture.getSingletonService(SettingsPersister.class));
+    myCommonDataPersistor = new UsageStatisticsCommonDataPersistor(myFixture.getEventDispatcher(), myFixture.getServerPaths(), myFixture.getServerResponsibility());
+    myOutbox = new UsageStatisticsReportOutbox(myFixture.getServerPaths(), myFixture.getServerResponsibility());
+    myReportResult = CompletableFuture.completedFuture(Boolean.TRUE);
+  }
+
+  @AfterMethod
+  public void stopScheduler() {
+    if (myScheduler != null) {
+      myScheduler.serverShutdown();
+    }
+    myCollector.serverShutdown();
+    myExecutor.shutdownNow();
+  }
+
+  public void nothing_should_be_scheduled_while_reporting_is_disabled() {
+    startScheduler();
+    Assert.assertNull(myExecutor.getReportDelay());
+  }
+
+  public void enabling_reporting_should_schedule_report() {
+    startScheduler();
+    enableReporting();
+
+    assertDelay(myExecutor.getReportDelay(), 0);
+  }
+
+  public void report_should_be_scheduled_after_reporting_period() {
+    myCommonDataPersistor.setLastReportingDate(new Date(Dates.now().getTime() - 100 * Dates.ONE_MINUTE));
+    enableReporting();
+    startScheduler();
+
+    assertDelay(myExecutor.getReportDelay(), PERIOD - 100 * Dates.ONE_MINUTE);
+  }
+
+  public void pending_report_should_be_sent_before_reporting_period() {
+    setInternalProperty("teamcity.usageStatistics.reporting.retry.initial.delay.minutes", "100");
+    myCommonDataPersistor.setLastReportingDate(Dates.now());
+    myOutbox.add(new byte[]{1}, false, null);
+    enableReporting();
+    startScheduler();
+
+    final Long delay = myExecutor.getReportDelay();
+    Assert.assertNotNull(delay);
+    Assert.assertTrue(delay < 120 * Dates.ONE_MINUTE + RETRY_INTERVAL, "delay " + delay + " ms");
+  }
+
+  public void pending_report_should_not_be_sent_before_its_next_attempt() {
+    setInternalProperty("teamcity.usageStatistics.reporting.retry.initial.delay.minutes", "100");
+    myOutbox.add(new byte[]{1}, false, null);
+    enableReporting();
+    startScheduler();
+
+    final Long delay = myExecutor.getReportDelay();
+    Assert.assertNotNull(delay);
+    Assert.assertTrue(delay >= 80 * Dates.ONE_MINUTE - Dates.ONE_SECOND, "delay " + delay + " ms"); // 100 minutes with 20% jitter, although no report was sent yet
+  }
+
+  public void collecting_should_be_started_ahead_of_report() {
+    myCommonDataPersistor.setLastReportingDate(new Date(Dates.now().getTime() - 100 * Dates.ONE_MINUTE));
+    enableReporting();
+    startScheduler();
+
+    final Long reportDelay = myExecutor.getReportDelay();
+    Assert.assertNotNull(reportDelay);
+    Assert.assertEquals(myExecutor.getOtherDelays().size(), 1);
+    Assert.assertEquals(myExecutor.getOtherDelays().get(0).longValue(), reportDelay - 30 * Dates.ONE_MINUTE);
+  }
+
+  public void successful_report_should_be_scheduled_again_after_reporting_period() {
+    enableReporting();
+    startScheduler();
+    myExecutor.clear();
+
+    myScheduler.run();
+
+    Assert.assertNotNull(myCommonDataPersistor.getLastReportingDate());
+    assertDelay(myExecutor.getReportDelay(), PERIOD);
+  }
+
+  public void failed_report_should_be_retried_after_retry_interval() {
+    myReportResult = CompletableFuture.completedFuture(Boolean.FALSE);
+    enableReporting();
+    startScheduler();
+    myExecutor.clear();
+
+    myScheduler.run();
+
+    Assert.assertNull(myCommonDataPersistor.getLastReportingDate());
+    assertDelay(myExecutor.getReportDelay(), RETRY_INTERVAL);
+  }
+
+  public void running_report_should_reschedule_itself_when_finished() {
+    myReportResult = new CompletableFuture<Boolean>();
+    enableReporting();
+    startScheduler();
+    myExecutor.clear();
+
+    myScheduler.run();
+    mySettingsPersistor.saveSettings(new UsageStatisticsSettings(true));
+    Assert.assertNull(myExecutor.getReportDelay());
+
+    myReportResult.complete(Boolean.TRUE);
+    assertDelay(myExecutor.getReportDelay(), PERIOD);
+  }
+
+  public void shutdown_should_cancel_scheduled_report() {
+    enableReporting();
+    startScheduler();
+    final ScheduledFuture<?> task = myExecutor.getReportTask();
+    Assert.assertNotNull(task);
+
+    myScheduler.serverShutdown();
+
+    Assert.assertTrue(task.isCancelled());
+  }
+
+  private void startScheduler() {
+    myScheduler = new UsageStatisticsReportingScheduler(myServer, myExecutor, myCollector, mySettingsPersistor, myCommonDataPersistor,
+                                                        period -> myReportResult, myOutbox);
+  }
+
+  private void enableReporting() {
+    mySettingsPersistor.saveSettings(new UsageStatisticsSettings(true));
+  }
+
+  /**
+   * The delay includes up to the retry interval of jitter and is at least a minute.
+   */
+  private static void assertDelay(@Nullable final Long delay, final long expected) {
+    Assert.assertNotNull(delay);
+    final long min = Math.max(Dates.ONE_MINUTE, expected) - Dates.ONE_SECOND;
+    Assert.assertTrue(delay >= min && delay < min + RETRY_INTERVAL + 2 * Dates.ONE_SECOND,
+                      "delay " + delay + " ms, expected about " + expected + " ms");
+  }
+
+  /**
+   * Records the scheduled tasks without running them.
+   */
+  private class RecordingExecutor extends ScheduledThreadPoolExecutor {
+    @NotNull private final List<Runnable> myTasks = new ArrayList<Runnable>();
+    @NotNull private final List<Long> myDelays = new ArrayList<Long>();
+    @NotNull private final List<ScheduledFuture<?>> myFutures = new ArrayList<ScheduledFuture<?>>();
+
+    private RecordingExecutor() {
+      super(1);
+    }
+
+    @NotNull
+    @Override
+    public synchronized ScheduledFuture<?> schedule(@NotNull final Runnable command, final long delay, @NotNull final TimeUnit unit) {
+      final ScheduledFuture<?> future = super.schedule(() -> {}, 1, TimeUnit.DAYS);
+      myTasks.add(command);
+      myDelays.add(unit.toMillis(delay));
+      myFutures.add(future);
+      return future;
+    }
+
+    synchronized void clear() {
+      myTasks.clear();
+      myDelays.clear();
+      myFutures.clear();
+    }
+
+    /**
+     * @return delay of the last scheduled report which is not cancelled
+     */
+    @Nullable
+    synchronized Long getReportDelay() {
+      final int index = getReportIndex();
+      return index < 0 ? null : myDelays.get(index);
+    }
+
+    @Nullable
+    synchronized ScheduledFuture<?> getReportTask() {
+      final int index = getReportIndex();
+      return index < 0 ? null : myFutures.get(index);
+    }
+
+    /**
+     * @return delays of the not cancelled tasks other than the report
+     */
+    @NotNull
+    synchronized List<Long> getOtherDelays() {
+      final List<Long> result = new ArrayList<Long>();
+      for (int i = 0; i < myTasks.size(); i++) {
+        if (myTasks.get(i) != myScheduler && !myFutures.get(i).isCancelled()) {
+          result.add(myDelays.get(i));
+        }
+      }
+      return result;
+    }
+
+    private int getReportIndex() {
+      for (int i = myTasks.size() - 1; i >= 0; i--) {
+        if (myTasks.get(i) == myScheduler && !myFutures.get(i).isCancelled()) return i;
+      }
+      return -1;
+    }
+  }
+}
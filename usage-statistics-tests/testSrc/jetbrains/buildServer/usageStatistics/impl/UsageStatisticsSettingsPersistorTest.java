@@ -0,0 +1,66 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
+import jetbrains.buildServer.serverSide.impl.FileWatcherFactory;
+import jetbrains.buildServer.serverSide.impl.persisting.SettingsPersister;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class UsageStatisticsSettingsPersistorTest extends BaseServerTestCase {
+  private File myConfigFile;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myConfigFile = new File(myFixture.getServerPaths().getConfigDir(), "usage-statistics-config.xml");
+  }
+
+  public void reporting_should_be_disabled_without_settings_file() {
+    Assert.assertFalse(createPersistor().getSettings().isReportingEnabled());
+  }
+
+  public void settings_should_be_loaded_from_file() throws IOException {
+    writeSettingsFile(true);
+    Assert.assertTrue(createPersistor().getSettings().isReportingEnabled());
+  }
+
+  public void settings_file_should_not_be_read_on_every_call() throws IOException {
+    final UsageStatisticsSettingsPersistor persistor = createPersistor();
+    writeSettingsFile(true);
+
+    Assert.assertFalse(persistor.getSettings().isReportingEnabled());
+  }
+
+  public void saved_settings_should_be_cached_and_reported_to_listeners() {
+    final UsageStatisticsSettingsPersistor persistor = createPersistor();
+    final List<Boolean> notified = new ArrayList<Boolean>();
+    persistor.addSettingsListener(settings -> notified.add(settings.isReportingEnabled()));
+
+    persistor.saveSettings(persistor.getSettings().withReportingEnabled(true));
+
+    Assert.assertTrue(persistor.getSettings().isReportingEnabled());
+    Assert.assertEquals(notified, Collections.singletonList(Boolean.TRUE));
+  }
+
+  private void writeSettingsFile(final boolean reportingEnabled) throws IOException {
+    FileUtil.createParentDirs(myConfigFile);
+    FileUtil.writeFile(myConfigFile, "<usage-statistics-settings reporting-enabled=\"" + reportingEnabled + "\"/>", "UTF-8");
+  }
+
+  @NotNull
+  private UsageStatisticsSettingsPersistor createPersistor() {
+    return new UsageStatisticsSettingsPersistor(myFixture.getServerPaths(),
+                                                myFixture.getSingletonService(FileWatcherFactory.class),
+                                                myFixture.getSingletonService(SettingsPersister.class));
+  }
+}
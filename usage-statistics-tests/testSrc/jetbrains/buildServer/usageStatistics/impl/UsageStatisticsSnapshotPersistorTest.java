@@ -0,0 +1,109 @@
+package jetbrains.buildServer.usageStatistics.impl;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
+import jetbrains.buildServer.usageStatistics.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class UsageStatisticsSnapshotPersistorTest extends BaseServerTestCase {
+  private UsageStatisticsSnapshotPersistor myPersistor;
+  private File mySnapshotFile;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myPersistor = new UsageStatisticsSnapshotPersistor(myFixture.getServerPaths(), myFixture.getServerResponsibility());
+    mySnapshotFile = new File(new File(myFixture.getServerPaths().getPluginDataDirectory(), "usage-statistics"), "lastSnapshot.bin");
+  }
+
+  public void saved_snapshot_should_be_loaded_as_stale() {
+    final CompactUsageStatistics.Builder builder = new CompactUsageStatistics.Builder(new UsageStatisticIdDictionary());
+    builder.publishInt("int", 1);
+    builder.publishLong("long", 2L);
+    builder.publishStatistic("text", "value");
+    builder.publishStatistic("null", null);
+    final UsageStatisticsSnapshot.ProviderResult result = new UsageStatisticsSnapshot.ProviderResult("provider", UsageStatisticsProviderStatus.COLLECTED, builder.build());
+    myPersistor.save(new UsageStatisticsSnapshot(5, new Date(1000), new Date(2000), Collections.singletonList(result)));
+
+    final UsageStatisticsSnapshot loaded = myPersistor.load();
+    Assert.assertNotNull(loaded);
+    Assert.assertTrue(loaded.isStale());
+    Assert.assertEquals(loaded.getGeneration(), 0);
+    Assert.assertEquals(loaded.getStartDate(), new Date(1000));
+    Assert.assertEquals(loaded.getFinishDate(), new Date(2000));
+    Assert.assertEquals(loaded.getProviderStatuses(), Collections.singletonMap("provider", UsageStatisticsProviderStatus.COLLECTED));
+
+    final Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+    loaded.publishStatistics(new UsageStatisticsPublisher() {
+      public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
+        statistics.put(id, value);
+      }
+    });
+    Assert.assertEquals(statistics.get("int"), 1);
+    Assert.assertEquals(statistics.get("long"), 2L);
+    Assert.assertEquals(statistics.get("text"), "value");
+    Assert.assertTrue(statistics.containsKey("null"));
+    Assert.assertFalse(new File(mySnapshotFile.getParentFile(), mySnapshotFile.getName() + ".tmp").exists());
+  }
+
+  public void value_kinds_should_survive_saving() {
+    final CompactUsageStatistics.Builder builder = new CompactUsageStatistics.Builder(new UsageStatisticIdDictionary());
+    builder.publishStatistic("short", (short)3);
+    builder.publishStatistic("byte", (byte)4);
+    builder.publishStatistic("char", 'c');
+    builder.publishStatistic("float", 1.5f);
+    builder.publishStatistic("other", new StringBuilder("value"));
+    final UsageStatisticsSnapshot.ProviderResult result = new UsageStatisticsSnapshot.ProviderResult("provider", UsageStatisticsProviderStatus.COLLECTED, builder.build());
+    myPersistor.save(new UsageStatisticsSnapshot(1, new Date(1000), new Date(2000), Collections.singletonList(result)));
+
+    final UsageStatisticsSnapshot loaded = myPersistor.load();
+    Assert.assertNotNull(loaded);
+    final Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+    loaded.publishStatistics(new UsageStatisticsPublisher() {
+      public void publishStatistic(@NotNull final String id, @Nullable final Object value) {
+        statistics.put(id, value);
+      }
+    });
+    Assert.assertEquals(statistics.get("short"), (short)3);
+    Assert.assertEquals(statistics.get("byte"), (byte)4);
+    Assert.assertEquals(statistics.get("char"), 'c');
+    Assert.assertEquals(statistics.get("float"), 1.5f);
+    Assert.assertEquals(statistics.get("other"), "value");
+  }
+
+  public void file_with_huge_string_length_should_be_treated_as_corrupt() throws IOException {
+    mySnapshotFile.getParentFile().mkdirs();
+    final DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(mySnapshotFile)));
+    try {
+      out.writeInt(0x54435553);
+      out.writeInt(1);
+      out.writeLong(1000);
+      out.writeLong(2000);
+      out.writeInt(1);
+      out.writeInt(Integer.MAX_VALUE);
+    }
+    finally {
+      out.close();
+    }
+
+    Assert.assertNull(myPersistor.load());
+  }
+
+  public void missing_file_should_not_be_loaded() {
+    Assert.assertNull(myPersistor.load());
+  }
+}
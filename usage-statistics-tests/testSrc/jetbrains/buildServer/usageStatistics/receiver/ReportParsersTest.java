@@ -0,0 +1,69 @@
+package jetbrains.buildServer.usageStatistics.receiver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import jetbrains.buildServer.usageStatistics.impl.BinaryUsageStatisticsReportEncoder;
+import jetbrains.buildServer.usageStatistics.impl.FormUsageStatisticsReportEncoder;
+import jetbrains.buildServer.usageStatistics.impl.JsonUsageStatisticsReportEncoder;
+import jetbrains.buildServer.usageStatistics.impl.UsageStatisticsReportEncoder;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class ReportParsersTest {
+  private static final List<String> IDS = Arrays.asList("jb.build.count", "jb.build.countByType[x]", "jb.b", "jb.\u043f\u0440\u0438\u0432\u0435\u0442", "a=b&c");
+  private static final List<String> VALUES = Arrays.asList("1", "", "quote\" backslash\\ newline\n", "\u00e9\ud83d\ude00", "100% + 1");
+  private static final List<String> REMOVED = Arrays.asList("jb.old", "jb.build.count.old");
+
+  public void form_report_should_be_parsed_back() throws IOException {
+    assertRoundTrip(new FormUsageStatisticsReportEncoder(), new FormReportParser());
+  }
+
+  public void json_report_should_be_parsed_back() throws IOException {
+    assertRoundTrip(new JsonUsageStatisticsReportEncoder(), new JsonReportParser());
+  }
+
+  public void binary_report_should_be_parsed_back() throws IOException {
+    assertRoundTrip(new BinaryUsageStatisticsReportEncoder(), new BinaryReportParser());
+  }
+
+  public void parser_should_be_selected_by_content_type() {
+    Assert.assertTrue(ReportParser.forContentType(null) instanceof FormReportParser);
+    Assert.assertTrue(ReportParser.forContentType(new JsonUsageStatisticsReportEncoder().getContentType()) instanceof JsonReportParser);
+    Assert.assertTrue(ReportParser.forContentType(new BinaryUsageStatisticsReportEncoder().getContentType()) instanceof BinaryReportParser);
+    Assert.assertNull(ReportParser.forContentType("text/plain"));
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void truncated_binary_report_should_be_rejected() throws IOException {
+    final byte[] body = encode(new BinaryUsageStatisticsReportEncoder());
+    new BinaryReportParser().parse(new ByteArrayInputStream(Arrays.copyOf(body, body.length - 3)), new ReceivedReport(0, ""));
+  }
+
+  private static void assertRoundTrip(@NotNull final UsageStatisticsReportEncoder encoder, @NotNull final ReportParser parser) throws IOException {
+    final ReceivedReport report = new ReceivedReport(0, "");
+    parser.parse(new ByteArrayInputStream(encode(encoder)), report);
+
+    Assert.assertEquals(report.getIds(), IDS);
+    Assert.assertEquals(report.getValues(), VALUES);
+    Assert.assertEquals(report.getRemovedIds(), REMOVED);
+  }
+
+  @NotNull
+  private static byte[] encode(@NotNull final UsageStatisticsReportEncoder encoder) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final UsageStatisticsReportEncoder.Encoding encoding = encoder.startEncoding(out);
+    for (int i = 0; i < IDS.size(); i++) {
+      encoding.writeStatistic(IDS.get(i), VALUES.get(i));
+    }
+    for (final String id : REMOVED) {
+      encoding.writeRemoved(id);
+    }
+    encoding.finish();
+    return out.toByteArray();
+  }
+}
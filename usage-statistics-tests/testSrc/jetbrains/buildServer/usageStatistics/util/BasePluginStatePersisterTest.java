@@ -0,0 +1,128 @@
+package jetbrains.buildServer.usageStatistics.util;
+
+import java.io.File;
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
+import org.jdom.Element;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class BasePluginStatePersisterTest extends BaseServerTestCase {
+  private File myStateFile;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myStateFile = new File(new File(myFixture.getServerPaths().getPluginDataDirectory(), "test-plugin"), "test.xml");
+  }
+
+  public void unchanged_tracked_state_should_not_be_saved_on_shutdown() {
+    final TestPersister persister = startPersister(true);
+    persister.serverShutdown();
+
+    Assert.assertFalse(myStateFile.exists());
+  }
+
+  public void changed_tracked_state_should_be_saved_on_shutdown() {
+    final TestPersister persister = startPersister(true);
+    persister.myValue = "changed";
+    persister.markDirty();
+    persister.serverShutdown();
+
+    Assert.assertEquals(startPersister(true).myValue, "changed");
+  }
+
+  public void untracked_state_should_be_saved_on_shutdown() {
+    final TestPersister persister = startPersister(false);
+    persister.myValue = "changed";
+    persister.serverShutdown();
+
+    Assert.assertEquals(startPersister(false).myValue, "changed");
+  }
+
+  public void untracked_state_should_be_saved_on_shutdown_after_requested_save() throws InterruptedException {
+    final TestPersister persister = startPersister(false);
+    persister.myValue = "requested";
+    persister.requestSave();
+    waitForValue("requested");
+
+    persister.myValue = "changed";
+    persister.serverShutdown();
+
+    Assert.assertEquals(startPersister(false).myValue, "changed");
+  }
+
+  public void requested_save_should_be_written_in_background() throws InterruptedException {
+    final TestPersister persister = startPersister(true);
+    persister.myValue = "requested";
+    persister.requestSave();
+
+    waitForValue("requested");
+    persister.serverShutdown();
+  }
+
+  private void waitForValue(@NotNull final String value) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (!value.equals(new TestPersister(false).readValue()) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(new TestPersister(false).readValue(), value);
+  }
+
+  @NotNull
+  private TestPersister startPersister(final boolean tracksChanges) {
+    final TestPersister persister = new TestPersister(tracksChanges);
+    persister.serverStartup();
+    return persister;
+  }
+
+  private class TestPersister extends BasePluginStatePersister {
+    private final boolean myTracksChanges;
+    @Nullable private volatile String myValue;
+
+    private TestPersister(final boolean tracksChanges) {
+      super(myFixture.getEventDispatcher(), myFixture.getServerPaths(), myFixture.getServerResponsibility());
+      myTracksChanges = tracksChanges;
+    }
+
+    @Nullable
+    String readValue() {
+      loadState();
+      return myValue;
+    }
+
+    @NotNull
+    @Override
+    protected String getPluginName() {
+      return "test-plugin";
+    }
+
+    @NotNull
+    @Override
+    protected String getStateName() {
+      return "test";
+    }
+
+    @Override
+    protected boolean tracksChanges() {
+      return myTracksChanges;
+    }
+
+    @Override
+    protected void writeExternal(@NotNull final Element element) {
+      final String value = myValue;
+      if (value != null) {
+        element.setAttribute("v", value);
+      }
+    }
+
+    @Override
+    protected void readExternal(@NotNull final Element element) {
+      myValue = element.getAttributeValue("v");
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package jetbrains.buildServer.usageStatistics.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class BaseUsageJournalPersisterTest extends BaseServerTestCase {
+  private File myDataDir;
+  private TestPersister myPersister;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    setInternalProperty("teamcity.usageStatistics.journal.flush.interval.seconds", "3600");
+    myDataDir = new File(myFixture.getServerPaths().getPluginDataDirectory(), "test-plugin");
+    myPersister = startPersister();
+  }
+
+  @AfterMethod
+  public void stopPersister() {
+    myPersister.serverShutdown();
+  }
+
+  public void usages_should_be_replayed_after_restart() {
+    myPersister.addUsage("a", 1, 100);
+    myPersister.addUsage("b", 2, 200);
+    myPersister.addUsage("a", 3, 300);
+
+    restart();
+
+    Assert.assertEquals(myPersister.getUsages(), Arrays.asList("a:1:100", "b:2:200", "a:3:300"));
+  }
+
+  public void buffered_usages_should_be_written_on_flush() {
+    final File journal = getJournalFiles().get(0);
+    final long headerLength = journal.length();
+
+    myPersister.addUsage("a", 1, 100);
+    Assert.assertEquals(journal.length(), headerLength);
+
+    myPersister.flush();
+    Assert.assertTrue(journal.length() > headerLength);
+  }
+
+  public void compaction_should_replace_journals_with_snapshot() {
+    myPersister.addUsage("a", 1, 100);
+    myPersister.addUsage("b", 2, 200);
+    myPersister.compact();
+    myPersister.addUsage("c", 3, 300);
+
+    Assert.assertTrue(new File(myDataDir, "test.usages").isFile());
+    Assert.assertEquals(getJournalFiles().size(), 1);
+
+    restart();
+
+    Assert.assertEquals(myPersister.getUsages(), Arrays.asList("a:1:100", "b:2:200", "c:3:300"));
+  }
+
+  public void journal_included_into_snapshot_should_not_be_replayed() throws IOException {
+    myPersister.addUsage("a", 1, 100);
+    myPersister.flush();
+    final Map<File, byte[]> journals = new HashMap<File, byte[]>();
+    for (final File journal : getJournalFiles()) {
+      journals.put(journal, Files.readAllBytes(journal.toPath()));
+    }
+
+    myPersister.compact();
+    // a crash after the snapshot is written but before the previous journals are removed
+    for (final Map.Entry<File, byte[]> journal : journals.entrySet()) {
+      Files.write(journal.getKey().toPath(), journal.getValue());
+    }
+    myPersister.addUsage("b", 2, 200);
+
+    restart();
+
+    Assert.assertEquals(myPersister.getUsages(), Arrays.asList("a:1:100", "b:2:200"));
+  }
+
+  public void incomplete_record_should_be_dropped() throws IOException {
+    myPersister.addUsage("a", 1, 100);
+    myPersister.serverShutdown();
+
+    final List<File> journals = getJournalFiles();
+    final FileOutputStream out = new FileOutputStream(journals.get(journals.size() - 1), true);
+    try {
+      out.write(new byte[] { 2, 0 }); // a usage record without the user and the timestamp
+    }
+    finally {
+      out.close();
+    }
+
+    myPersister = startPersister();
+    Assert.assertEquals(myPersister.getUsages(), Collections.singletonList("a:1:100"));
+
+    myPersister.addUsage("b", 2, 200);
+    restart();
+
+    Assert.assertEquals(myPersister.getUsages(), Arrays.asList("a:1:100", "b:2:200"));
+  }
+
+  public void usage_added_before_startup_should_be_compacted() throws InterruptedException {
+    myPersister.serverShutdown();
+    myPersister = new TestPersister();
+    myPersister.addUsage("a", 1, 100); // the journal is not opened yet
+    myPersister.serverStartup(); // the needed compaction is started at once
+
+    final File snapshot = new File(myDataDir, "test.usages");
+    for (int i = 0; i < 100 && !snapshot.isFile(); i++) {
+      Thread.sleep(100);
+    }
+    Assert.assertTrue(snapshot.isFile());
+    restart();
+
+    Assert.assertEquals(myPersister.getUsages(), Collections.singletonList("a:1:100"));
+  }
+
+  public void migration_should_move_usages_and_remove_files() {
+    myPersister.addUsage("a", 1, 100);
+    myPersister.compact();
+    myPersister.addUsage("b", 2, 200);
+    myPersister.serverShutdown();
+
+    final List<String> migrated = new ArrayList<String>();
+    BaseUsageJournalPersister.migrateInto((key, userId, timestamp) -> migrated.add(key + ":" + userId + ":" + timestamp),
+                                          reader -> Assert.fail("No legacy state expected"),
+                                          myDataDir, "test", myFixture.getServerResponsibility());
+
+    Assert.assertEquals(migrated, Arrays.asList("a:1:100", "b:2:200"));
+    Assert.assertFalse(new File(myDataDir, "test.usages").exists());
+    Assert.assertTrue(getJournalFiles().isEmpty());
+  }
+
+  private void restart() {
+    myPersister.serverShutdown();
+    myPersister = startPersister();
+  }
+
+  @NotNull
+  private TestPersister startPersister() {
+    final TestPersister persister = new TestPersister();
+    persister.serverStartup();
+    return persister;
+  }
+
+  @NotNull
+  private List<File> getJournalFiles() {
+    final List<File> result = new ArrayList<File>();
+    final File[] files = myDataDir.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        if (file.getName().startsWith("test.journal.")) {
+          result.add(file);
+        }
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  private class TestPersister extends BaseUsageJournalPersister {
+    @NotNull private final List<String> myUsages = new ArrayList<String>();
+
+    private TestPersister() {
+      super(myFixture.getEventDispatcher(), myFixture.getServerPaths(), myFixture.getServerResponsibility());
+    }
+
+    @NotNull
+    @Override
+    protected String getPluginName() {
+      return "test-plugin";
+    }
+
+    @NotNull
+    @Override
+    protected String getStateName() {
+      return "test";
+    }
+
+    @Override
+    protected synchronized void applyUsage(@NotNull final String key, final long userId, final long timestamp) {
+      myUsages.add(key + ":" + userId + ":" + timestamp);
+    }
+
+    @Override
+    protected synchronized void writeUsages(@NotNull final UsageWriter writer) throws IOException {
+      for (final String usage : myUsages) {
+        final String[] parts = usage.split(":");
+        writer.write(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+      }
+    }
+
+    @NotNull
+    synchronized List<String> getUsages() {
+      return new ArrayList<String>(myUsages);
+    }
+
+    @Override
+    public void compact() {
+      super.compact();
+    }
+
+    @Override
+    public void flush() {
+      super.flush();
+    }
+  }
+}
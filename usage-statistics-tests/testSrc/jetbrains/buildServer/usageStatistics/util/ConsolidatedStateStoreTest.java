@@ -0,0 +1,122 @@
+package jetbrains.buildServer.usageStatistics.util;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
+import org.jdom.Element;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class ConsolidatedStateStoreTest extends BaseServerTestCase {
+  private File myDir;
+  private ConsolidatedStateStore myStore;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = createTempDir();
+    myStore = ConsolidatedStateStore.getInstance(myDir);
+  }
+
+  public void store_should_be_shared_by_data_directory() {
+    Assert.assertSame(ConsolidatedStateStore.getInstance(myDir), myStore);
+  }
+
+  public void sections_should_survive_restart() throws IOException {
+    final Element element = new Element("state");
+    element.setAttribute("date", "100");
+    element.setAttribute("name", "\u0442\u0435\u0441\u0442");
+    final Element child = new Element("item");
+    child.setAttribute("date", "200");
+    child.setText("text");
+    element.addContent(child);
+    myStore.save("first", element);
+    myStore.save("second", new Element("empty"));
+
+    // the store of the data directory is shared, so the file is read by the store of another one
+    final ConsolidatedStateStore restarted = ConsolidatedStateStore.getInstance(copyDataDir(myDir));
+    final Element first = restarted.read("first");
+    Assert.assertNotNull(first);
+    Assert.assertEquals(first.getName(), "state");
+    Assert.assertEquals(first.getAttributeValue("date"), "100");
+    Assert.assertEquals(first.getAttributeValue("name"), "\u0442\u0435\u0441\u0442");
+    Assert.assertEquals(first.getChildren().size(), 1);
+    Assert.assertEquals(first.getChild("item").getAttributeValue("date"), "200");
+    Assert.assertEquals(first.getChildText("item"), "text");
+    final Element second = restarted.read("second");
+    Assert.assertNotNull(second);
+    Assert.assertEquals(second.getName(), "empty");
+    Assert.assertNull(restarted.read("unknown"));
+  }
+
+  public void unchanged_sections_should_not_be_written_again() {
+    final Element element = new Element("state");
+    myStore.save("first", element);
+    Assert.assertTrue(myStore.exists());
+
+    Assert.assertTrue(new File(myDir, "state.bin").delete());
+    myStore.save("first", element);
+    Assert.assertFalse(myStore.exists());
+
+    element.setAttribute("date", "100");
+    myStore.save("first", element);
+    Assert.assertTrue(myStore.exists());
+  }
+
+  public void sections_not_saved_should_be_kept() throws IOException {
+    myStore.save("first", new Element("first"));
+    myStore.save("second", new Element("second"));
+
+    final File restartedDir = copyDataDir(myDir);
+    final ConsolidatedStateStore restarted = ConsolidatedStateStore.getInstance(restartedDir);
+    restarted.save("first", new Element("first").setAttribute("date", "100"));
+
+    final ConsolidatedStateStore restartedAgain = ConsolidatedStateStore.getInstance(copyDataDir(restartedDir));
+    Assert.assertEquals(restartedAgain.read("first").getAttributeValue("date"), "100");
+    Assert.assertEquals(restartedAgain.read("second").getName(), "second");
+  }
+
+  public void legacy_file_should_be_removed_after_save() throws IOException {
+    final File legacyFile = new File(myDir, "first.xml");
+    Assert.assertTrue(legacyFile.createNewFile());
+    myStore.migrateFrom("first", legacyFile);
+    myStore.save("second", new Element("second"));
+    Assert.assertTrue(legacyFile.exists()); // the section is not saved yet
+
+    myStore.save("first", new Element("first"));
+
+    Assert.assertFalse(legacyFile.exists());
+    Assert.assertNotNull(ConsolidatedStateStore.getInstance(copyDataDir(myDir)).read("first"));
+  }
+
+  public void file_of_other_format_should_not_be_read() throws IOException {
+    final DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(myDir, "state.bin")));
+    try {
+      out.writeInt(0x54435553); // the usage statistics snapshot
+      out.writeByte(1);
+      out.writeByte(1);
+    }
+    finally {
+      out.close();
+    }
+
+    Assert.assertNull(myStore.read("first"));
+  }
+
+  /**
+   * @return new data directory with a copy of the store file
+   */
+  @NotNull
+  private File copyDataDir(@NotNull final File dir) throws IOException {
+    final File copy = createTempDir();
+    Files.copy(new File(dir, "state.bin").toPath(), new File(copy, "state.bin").toPath());
+    return copy;
+  }
+}
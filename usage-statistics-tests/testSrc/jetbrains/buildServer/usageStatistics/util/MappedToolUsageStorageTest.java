@@ -0,0 +1,184 @@
+package jetbrains.buildServer.usageStatistics.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class MappedToolUsageStorageTest extends BaseServerTestCase {
+  private File myDir;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = createTempDir();
+  }
+
+  public void usages_should_survive_reopening() throws IOException {
+    final MappedToolUsageStorage storage = new MappedToolUsageStorage(myDir, "tools");
+    storage.addUsage("ant", 1, 100);
+    storage.addUsage("maven", 1, 200);
+    storage.addUsage("ant", 2, 300);
+    storage.flush();
+
+    Assert.assertEquals(getUsages(new MappedToolUsageStorage(myDir, "tools")), getUsages(storage));
+    Assert.assertEquals(getUsages(storage).size(), 3);
+  }
+
+  public void last_seen_should_only_move_forward() throws IOException {
+    final MappedToolUsageStorage storage = new MappedToolUsageStorage(myDir, "tools");
+    storage.addUsage("ant", 1, 200);
+    storage.addUsage("ant", 1, 100);
+    Assert.assertEquals(getUsages(storage), Collections.singletonMap("ant:1", 200L));
+
+    storage.addUsage("ant", 1, 300);
+    Assert.assertEquals(getUsages(storage), Collections.singletonMap("ant:1", 300L));
+  }
+
+  public void table_should_grow_keeping_usages() throws IOException {
+    final MappedToolUsageStorage storage = new MappedToolUsageStorage(myDir, "tools");
+    final Map<String, Long> expected = new HashMap<String, Long>();
+    for (int user = 0; user < 2000; user++) {
+      final String tool = "tool" + user % 7;
+      storage.addUsage(tool, user, user);
+      expected.put(tool + ":" + user, (long)user);
+    }
+    storage.flush();
+
+    Assert.assertEquals(getUsages(storage), expected);
+    Assert.assertEquals(getRowsFiles().size(), 1);
+    Assert.assertEquals(getUsages(new MappedToolUsageStorage(myDir, "tools")), expected);
+  }
+
+  public void old_usages_should_be_removed_and_others_found() throws IOException {
+    final MappedToolUsageStorage storage = new MappedToolUsageStorage(myDir, "tools");
+    final Map<String, Long> expected = new HashMap<String, Long>();
+    for (int user = 0; user < 600; user++) {
+      storage.addUsage("ant", user, user % 3);
+      if (user % 3 != 0) {
+        expected.put("ant:" + user, (long)(user % 3));
+      }
+    }
+
+    storage.removeOlderThan(0);
+    Assert.assertEquals(getUsages(storage), expected);
+
+    // every remaining usage is still found after the rows were shifted
+    for (int user = 0; user < 600; user++) {
+      if (user % 3 != 0) {
+        storage.addUsage("ant", user, 10);
+        expected.put("ant:" + user, 10L);
+      }
+    }
+    Assert.assertEquals(getUsages(storage), expected);
+  }
+
+  public void incomplete_table_should_be_ignored() throws IOException {
+    final MappedToolUsageStorage storage = new MappedToolUsageStorage(myDir, "tools");
+    storage.addUsage("ant", 1, 100);
+    storage.flush();
+    // a table of the next generation which was not written completely
+    writeFile(new File(myDir, "tools.rows.5"), new byte[] { 0, 0, 0, 0, 0, 0, 0, 1 });
+
+    Assert.assertEquals(getUsages(new MappedToolUsageStorage(myDir, "tools")), Collections.singletonMap("ant:1", 100L));
+    Assert.assertEquals(getRowsFiles(), Collections.singletonList(new File(myDir, "tools.rows.1")));
+  }
+
+  public void incomplete_tool_id_should_be_dropped() throws IOException {
+    final MappedToolUsageStorage storage = new MappedToolUsageStorage(myDir, "tools");
+    storage.addUsage("ant", 1, 100);
+    storage.flush();
+    final FileOutputStream out = new FileOutputStream(new File(myDir, "tools.tools"), true);
+    try {
+      out.write(new byte[] { 0, 0, 0, 5, 'm' }); // the tool id which was not written completely
+    }
+    finally {
+      out.close();
+    }
+
+    final MappedToolUsageStorage reopened = new MappedToolUsageStorage(myDir, "tools");
+    reopened.addUsage("maven", 2, 200);
+    reopened.flush();
+
+    final Map<String, Long> expected = new HashMap<String, Long>();
+    expected.put("ant:1", 100L);
+    expected.put("maven:2", 200L);
+    Assert.assertEquals(getUsages(new MappedToolUsageStorage(myDir, "tools")), expected);
+  }
+
+  public void usages_of_lost_tool_id_should_not_be_taken_for_new_tool() throws IOException {
+    final MappedToolUsageStorage storage = new MappedToolUsageStorage(myDir, "tools");
+    storage.addUsage("ant", 1, 100);
+    storage.addUsage("maven", 2, 200);
+    storage.flush();
+    // the last tool id did not reach the disk before a crash, while the row referring to it did
+    final File dictionary = new File(myDir, "tools.tools");
+    final RandomAccessFile raf = new RandomAccessFile(dictionary, "rw");
+    try {
+      raf.setLength(4 + "ant".length());
+    }
+    finally {
+      raf.close();
+    }
+
+    final MappedToolUsageStorage reopened = new MappedToolUsageStorage(myDir, "tools");
+    Assert.assertEquals(getUsages(reopened), Collections.singletonMap("ant:1", 100L));
+    reopened.addUsage("gradle", 3, 300);
+
+    final Map<String, Long> expected = new HashMap<String, Long>();
+    expected.put("ant:1", 100L);
+    expected.put("gradle:3", 300L);
+    Assert.assertEquals(getUsages(reopened), expected);
+  }
+
+  public void deleted_storage_should_not_exist() throws IOException {
+    Assert.assertFalse(MappedToolUsageStorage.exists(myDir, "tools"));
+    final MappedToolUsageStorage storage = new MappedToolUsageStorage(myDir, "tools");
+    storage.addUsage("ant", 1, 100);
+    Assert.assertTrue(MappedToolUsageStorage.exists(myDir, "tools"));
+
+    storage.delete();
+
+    Assert.assertFalse(MappedToolUsageStorage.exists(myDir, "tools"));
+    Assert.assertEquals(getRowsFiles().size(), 0);
+  }
+
+  @NotNull
+  private static Map<String, Long> getUsages(@NotNull final ToolUsageStorage storage) {
+    final Map<String, Long> result = new HashMap<String, Long>();
+    storage.forEachUsage((toolId, userId, lastSeen) -> Assert.assertNull(result.put(toolId + ":" + userId, lastSeen)));
+    return result;
+  }
+
+  @NotNull
+  private List<File> getRowsFiles() {
+    final List<File> result = new ArrayList<File>();
+    final File[] files = myDir.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        if (file.getName().startsWith("tools.rows.")) {
+          result.add(file);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static void writeFile(@NotNull final File file, @NotNull final byte[] content) throws IOException {
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content);
+    }
+    finally {
+      out.close();
+    }
+  }
+}
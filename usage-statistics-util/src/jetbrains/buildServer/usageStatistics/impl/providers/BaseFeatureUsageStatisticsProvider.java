@@ -3,31 +3,35 @@ package jetbrains.buildServer.usageStatistics.impl.providers;
 
 import com.intellij.openapi.util.Condition;
 import com.intellij.openapi.util.Pair;
+import java.io.IOException;
 import java.util.*;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.serverSide.ServerResponsibility;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsPublisher;
 import jetbrains.buildServer.usageStatistics.presentation.UsageStatisticsPresentationManager;
-import jetbrains.buildServer.usageStatistics.util.BaseUsageStatisticsStatePersister;
+import jetbrains.buildServer.usageStatistics.util.BaseUsageJournalPersister;
+import jetbrains.buildServer.usageStatistics.util.BaseUsageStatisticsJournalPersister;
+import jetbrains.buildServer.usageStatistics.util.XmlStreamUtil;
 import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.Dates;
 import jetbrains.buildServer.util.EventDispatcher;
-import org.jdom.Content;
-import org.jdom.Element;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
 public abstract class BaseFeatureUsageStatisticsProvider extends BaseDynamicUsageStatisticsProvider {
   @NotNull private final Map<String, List<Long>> myFeatureUsages = new HashMap<String, List<Long>>(); // feature name -> timestamps
+  @NotNull private final BaseUsageJournalPersister myJournal;
 
   protected BaseFeatureUsageStatisticsProvider(@NotNull EventDispatcher<BuildServerListener> eventDispatcher,
                                                @NotNull ServerPaths serverPaths,
                                                @NotNull ServerResponsibility serverResponsibility,
                                                @NotNull LinkedHashMap<Long, String> periodDescriptions) {
     super(periodDescriptions, null);
-    registerPersistor(eventDispatcher, serverPaths, serverResponsibility);
+    myJournal = registerPersistor(eventDispatcher, serverPaths, serverResponsibility);
   }
 
   @NotNull
@@ -46,7 +50,7 @@ public abstract class BaseFeatureUsageStatisticsProvider extends BaseDynamicUsag
       final String featureName = feature.getFirst();
       final String statisticId = makeId(periodDescription, featureName);
       presentationManager.applyPresentation(statisticId, feature.getSecond(), myGroupName, null, null);
-      publisher.publishStatistic(statisticId, computeFeatureUsagesCount(featureName, startDate));
+      publisher.publishInt(statisticId, computeFeatureUsagesCount(featureName, startDate));
     }
   }
 
@@ -55,13 +59,22 @@ public abstract class BaseFeatureUsageStatisticsProvider extends BaseDynamicUsag
     return true;
   }
 
-  protected synchronized void addUsage(@NotNull final String featureName) {
+  protected void addUsage(@NotNull final String featureName) {
+    myJournal.addUsage(featureName, 0, Dates.now().getTime());
+  }
+
+  private synchronized void applyUsage(@NotNull final String featureName, final long timestamp) {
     List<Long> usages = myFeatureUsages.get(featureName);
     if (usages == null) {
       usages = new ArrayList<Long>();
       myFeatureUsages.put(featureName, usages);
     }
-    usages.add(Dates.now().getTime());
+    if (usages.isEmpty() || usages.get(usages.size() - 1) <= timestamp) {
+      usages.add(timestamp);
+    }
+    else {
+      usages.add(CollectionsUtil.binarySearch(usages, createDateCondition(timestamp)), timestamp); // keeps the usages sorted
+    }
   }
 
   private synchronized void removeObsoleteUsages() {
@@ -98,45 +111,41 @@ public abstract class BaseFeatureUsageStatisticsProvider extends BaseDynamicUsag
   @NonNls @NotNull private static final String USAGE = "usage";
   @NonNls @NotNull private static final String TIMESTAMP = "timestamp";
 
-  private synchronized void writeExternal(@NotNull final Element element) {
+  private synchronized void writeUsages(@NotNull final BaseUsageJournalPersister.UsageWriter writer) throws IOException {
     removeObsoleteUsages();
     for (final Map.Entry<String, List<Long>> entry : myFeatureUsages.entrySet()) {
-      final Element featureElement = new Element(FEATURE);
-      featureElement.setAttribute(NAME, entry.getKey());
-      element.addContent((Content) featureElement);
       for (final long timestamp : entry.getValue()) {
-        final Element usageElement = new Element(USAGE);
-        usageElement.setAttribute(TIMESTAMP, String.valueOf(timestamp));
-        featureElement.addContent((Content) usageElement);
+        writer.write(entry.getKey(), 0, timestamp);
       }
     }
   }
 
-  private synchronized void readExternal(@NotNull final Element element) {
-    myFeatureUsages.clear();
-    for (final Object feature : element.getChildren(FEATURE)) {
-      if (!(feature instanceof Element)) continue;
-      final Element featureElement = (Element) feature;
-      final String featureName = featureElement.getAttributeValue(NAME);
-      if (featureName == null) continue;
-      final List<Long> usages = new ArrayList<Long>();
-      myFeatureUsages.put(featureName, usages);
-      for (final Object usage : featureElement.getChildren(USAGE)) {
-        if (!(usage instanceof Element)) continue;
-        final Element usageElement = (Element)usage;
-        final String timestampStr = usageElement.getAttributeValue(TIMESTAMP);
-        if (timestampStr == null) continue;
-        try {
-          usages.add(Long.parseLong(timestampStr));
-        } catch (final NumberFormatException ignore) {}
+  /**
+   * Adds the legacy usages to the usages already applied, e.g. added before the state was loaded.
+   */
+  private synchronized void readExternal(@NotNull final XMLStreamReader reader) throws XMLStreamException {
+    while (XmlStreamUtil.nextChild(reader)) {
+      final String featureName = FEATURE.equals(reader.getLocalName()) ? XmlStreamUtil.getAttribute(reader, NAME) : null;
+      if (featureName == null) {
+        XmlStreamUtil.skipElement(reader);
+        continue;
+      }
+      while (XmlStreamUtil.nextChild(reader)) {
+        final String timestampStr = XmlStreamUtil.getAttribute(reader, TIMESTAMP);
+        if (USAGE.equals(reader.getLocalName()) && timestampStr != null) {
+          try {
+            applyUsage(featureName, Long.parseLong(timestampStr));
+          } catch (final NumberFormatException ignore) {}
+        }
+        XmlStreamUtil.skipElement(reader);
       }
-      Collections.sort(usages);
     }
     removeObsoleteUsages();
   }
 
-  private void registerPersistor(@NotNull EventDispatcher<BuildServerListener> eventDispatcher, @NotNull ServerPaths serverPaths, @NotNull ServerResponsibility serverResponsibility) {
-    new BaseUsageStatisticsStatePersister(eventDispatcher, serverPaths, serverResponsibility) {
+  @NotNull
+  private BaseUsageJournalPersister registerPersistor(@NotNull EventDispatcher<BuildServerListener> eventDispatcher, @NotNull ServerPaths serverPaths, @NotNull ServerResponsibility serverResponsibility) {
+    return new BaseUsageStatisticsJournalPersister(eventDispatcher, serverPaths, serverResponsibility) {
       @NotNull
       @Override
       protected String getStateName() {
@@ -144,13 +153,18 @@ public abstract class BaseFeatureUsageStatisticsProvider extends BaseDynamicUsag
       }
 
       @Override
-      protected void writeExternal(@NotNull final Element element) {
-        BaseFeatureUsageStatisticsProvider.this.writeExternal(element);
+      protected void applyUsage(@NotNull final String key, final long userId, final long timestamp) {
+        BaseFeatureUsageStatisticsProvider.this.applyUsage(key, timestamp);
+      }
+
+      @Override
+      protected void writeUsages(@NotNull final UsageWriter writer) throws IOException {
+        BaseFeatureUsageStatisticsProvider.this.writeUsages(writer);
       }
 
       @Override
-      protected void readExternal(@NotNull final Element element) {
-        BaseFeatureUsageStatisticsProvider.this.readExternal(element);
+      protected void readLegacyState(@NotNull final XMLStreamReader reader) throws XMLStreamException {
+        BaseFeatureUsageStatisticsProvider.this.readExternal(reader);
       }
     };
   }
@@ -1,39 +1,51 @@
 
 package jetbrains.buildServer.usageStatistics.impl.providers;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.serverSide.ServerResponsibility;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsPublisher;
 import jetbrains.buildServer.usageStatistics.presentation.UsageStatisticsFormatter;
 import jetbrains.buildServer.usageStatistics.presentation.UsageStatisticsPresentationManager;
 import jetbrains.buildServer.usageStatistics.presentation.formatters.PercentageFormatter;
-import jetbrains.buildServer.usageStatistics.util.BaseUsageStatisticsStatePersister;
-import jetbrains.buildServer.util.CollectionsUtil;
+import jetbrains.buildServer.usageStatistics.util.BaseUsageJournalPersister;
+import jetbrains.buildServer.usageStatistics.util.BaseUsageStatisticsJournalPersister;
+import jetbrains.buildServer.usageStatistics.util.MappedToolUsageStorage;
+import jetbrains.buildServer.usageStatistics.util.ToolUsageStorage;
+import jetbrains.buildServer.usageStatistics.util.XmlStreamUtil;
+import jetbrains.buildServer.util.Dates;
 import jetbrains.buildServer.util.EventDispatcher;
-import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TimeService;
-import org.jdom.Content;
-import org.jdom.Element;
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
 public abstract class BaseToolUsersUsageStatisticsProvider extends BaseDynamicUsageStatisticsProvider {
 
-  @NotNull
-  private final Map<String, Map<Long, Long>> myToolUsages = new ConcurrentHashMap<>();
+  @NotNull private static final Logger LOG = Logger.getLogger(BaseToolUsersUsageStatisticsProvider.class);
 
-  @NotNull
-  private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
+  @NonNls @NotNull private static final String MAPPED_STORAGE_ENABLED = "teamcity.usageStatistics.toolUsages.mappedStorage.enabled";
+  @NonNls @NotNull private static final String LAST_SEEN_RESOLUTION = "teamcity.usageStatistics.toolUsages.lastSeen.resolution.seconds";
+  private static final int DEFAULT_LAST_SEEN_RESOLUTION = 5 * 60;
 
   @NotNull
   private final TimeService myTimeService;
 
+  @NotNull
+  private final ToolUsageStorage myStorage;
+
   @SuppressWarnings("WeakerAccess")
   public BaseToolUsersUsageStatisticsProvider(@NotNull EventDispatcher<BuildServerListener> eventDispatcher,
                                               @NotNull ServerPaths serverPaths,
@@ -42,7 +54,7 @@ public abstract class BaseToolUsersUsageStatisticsProvider extends BaseDynamicUs
                                               @NotNull final TimeService timeService) {
     super(periodDescriptions, new PercentageFormatter(1).format(0));
     myTimeService = timeService;
-    registerPersistor(eventDispatcher, serverPaths, serverResponsibility);
+    myStorage = createStorage(eventDispatcher, serverPaths, serverResponsibility);
   }
 
   @NotNull
@@ -64,8 +76,8 @@ public abstract class BaseToolUsersUsageStatisticsProvider extends BaseDynamicUs
                         @NotNull final UsageStatisticsPresentationManager presentationManager,
                         @NotNull final String periodDescription,
                         final long startDate) {
-    removeObsolete();
-    final Map<String, Map<Long, Long>> filtered = filter(startDate);
+    myStorage.removeOlderThan(getThresholdDate());
+    final Map<String, Set<Long>> filtered = filter(startDate);
     final UsageStatisticsFormatter formatter = new PercentageFormatter(getTotalUsersCount(startDate));
     filtered.keySet().stream()
             .filter(this::publishToolUsages)
@@ -73,7 +85,7 @@ public abstract class BaseToolUsersUsageStatisticsProvider extends BaseDynamicUs
             .forEach(toolIdSource -> {
               final String statisticId = makeId(periodDescription, toolIdSource);
               presentationManager.applyPresentation(statisticId, toolIdSource, myGroupName, formatter, getValueTooltip());
-              publisher.publishStatistic(statisticId, filtered.get(toolIdSource).size());
+              publisher.publishInt(statisticId, filtered.get(toolIdSource).size());
             });
   }
 
@@ -83,22 +95,14 @@ public abstract class BaseToolUsersUsageStatisticsProvider extends BaseDynamicUs
   }
 
   protected void addUsage(@NotNull final String toolIdSource, final long userId) {
-    myLock.readLock().lock();
-    try {
-      myToolUsages.computeIfAbsent(toolIdSource, k -> new ConcurrentHashMap<>())
-                  .put(userId, myTimeService.now());
-    } finally {
-      myLock.readLock().unlock();
-    }
+    myStorage.addUsage(toolIdSource, userId, myTimeService.now());
   }
 
-
   @SuppressWarnings("WeakerAccess")
   @NotNull
   public Set<String> getUsers(final long fromTimestamp) {
     return filter(fromTimestamp).values()
                                 .stream()
-                                .map(it -> it.keySet())
                                 .flatMap(it -> it.stream())
                                 .map(it -> it.toString())
                                 .collect(Collectors.toSet());
@@ -106,114 +110,242 @@ public abstract class BaseToolUsersUsageStatisticsProvider extends BaseDynamicUs
 
   protected int getTotalUsersCount(final long startDate) {
     final Set<Long> userIds = new HashSet<>();
-    myToolUsages.values().stream().map(Map::values).forEach(userIds::addAll);
+    myStorage.forEachUsage((toolIdSource, userId, lastSeen) -> userIds.add(userId));
     return userIds.size();
   }
 
-  private void removeObsolete() {
-    myLock.writeLock().lock();
-    try {
-      final long date = getThresholdDate();
-      myToolUsages.values().forEach(it -> it.entrySet().removeIf(e -> e.getValue() < date));
-    } finally {
-      myLock.writeLock().unlock();
+  @NotNull
+  private Map<String, Set<Long>> filter(final long startDate) {
+    final Map<String, Set<Long>> result = new HashMap<>();
+    myStorage.forEachUsage((toolIdSource, userId, lastSeen) -> {
+      if (lastSeen > startDate) {
+        result.computeIfAbsent(toolIdSource, k -> new HashSet<>()).add(userId);
+      }
+    });
+    return result;
+  }
+
+  @NotNull
+  private ToolUsageStorage createStorage(@NotNull EventDispatcher<BuildServerListener> eventDispatcher,
+                                         @NotNull ServerPaths serverPaths,
+                                         @NotNull ServerResponsibility serverResponsibility) {
+    if (TeamCityProperties.getBoolean(MAPPED_STORAGE_ENABLED) && serverResponsibility.canWriteToConfigDirectory()) {
+      try {
+        final File dataDir = FileUtil.createDir(new File(serverPaths.getPluginDataDirectory(), "usage-statistics"));
+        final MappedToolUsageStorage storage = new MappedToolUsageStorage(dataDir, getExternalId());
+        registerMigration(storage, dataDir, eventDispatcher, serverResponsibility);
+        eventDispatcher.addListener(new BuildServerAdapter() {
+          @Override
+          public void serverShutdown() {
+            storage.flush();
+          }
+        });
+        return storage;
+      }
+      catch (final IOException e) {
+        LOG.warn("Failed to open the memory-mapped storage of \"" + getExternalId() + "\" usages, the journal is used instead: " + e);
+      }
     }
+    final JournalToolUsageStorage storage = new JournalToolUsageStorage(eventDispatcher, serverPaths, serverResponsibility);
+    registerReverseMigration(storage, new File(serverPaths.getPluginDataDirectory(), "usage-statistics"), eventDispatcher, serverResponsibility);
+    return storage;
   }
 
-  private Map<String, Map<Long, Long>> filter(final long startDate) {
-    final Map<String, Map<Long, Long>> result = new HashMap<>();
-    myToolUsages.forEach((id, map) -> {
-      final Map<Long, Long> filtered = filter(map, startDate);
-      if (!filtered.isEmpty()) {
-        result.put(id, filtered);
+  /**
+   * Moves the usages persisted by the journal to the mapped storage on startup, if there are any.
+   */
+  private void registerMigration(@NotNull final MappedToolUsageStorage storage,
+                                 @NotNull final File dataDir,
+                                 @NotNull EventDispatcher<BuildServerListener> eventDispatcher,
+                                 @NotNull final ServerResponsibility serverResponsibility) {
+    eventDispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverStartup() {
+        BaseUsageJournalPersister.migrateInto(storage::addUsage,
+                                              reader -> readExternal(reader, getThresholdDate(), storage::addUsage),
+                                              dataDir, getExternalId(), serverResponsibility);
       }
     });
-    return result;
   }
 
-  private Map<Long, Long> filter(Map<Long, Long> map, long threshold) {
-    return CollectionsUtil.filterMapByValues(map, val -> val > threshold);
+  /**
+   * Moves the usages left in the mapped storage to the journal on startup, when the mapped storage is turned off.
+   * The journal persister is registered first, so its state is loaded by then and the moved usages are written
+   * to the journal file on the shutdown at the latest, only after that the mapped storage files are removed.
+   * Until then the usages are moved again on every startup, which does not change them.
+   */
+  private void registerReverseMigration(@NotNull final JournalToolUsageStorage storage,
+                                        @NotNull final File dataDir,
+                                        @NotNull EventDispatcher<BuildServerListener> eventDispatcher,
+                                        @NotNull final ServerResponsibility serverResponsibility) {
+    eventDispatcher.addListener(new BuildServerAdapter() {
+      private MappedToolUsageStorage myMigratedStorage;
+
+      @Override
+      public void serverStartup() {
+        if (!MappedToolUsageStorage.exists(dataDir, getExternalId())) return;
+        final MappedToolUsageStorage mappedStorage;
+        try {
+          mappedStorage = new MappedToolUsageStorage(dataDir, getExternalId());
+        }
+        catch (final IOException e) {
+          LOG.warn("Failed to open the memory-mapped storage of \"" + getExternalId() + "\" usages, they are not moved to the journal: " + e);
+          return;
+        }
+        final long threshold = getThresholdDate();
+        mappedStorage.forEachUsage((toolIdSource, userId, lastSeen) -> {
+          if (lastSeen > threshold) {
+            storage.myJournal.addUsage(toolIdSource, userId, lastSeen);
+          }
+        });
+        myMigratedStorage = mappedStorage;
+      }
+
+      @Override
+      public void serverShutdown() {
+        if (myMigratedStorage != null && serverResponsibility.canWriteToConfigDirectory()) {
+          myMigratedStorage.delete();
+        }
+      }
+    });
   }
 
   @NonNls @NotNull private static final String USAGE = "usage";
   @NonNls @NotNull private static final String USER_ID = "userId";
   @NonNls @NotNull private static final String TIMESTAMP = "timestamp";
 
-  private void writeExternal(@NotNull final Element element) {
-    myLock.writeLock().lock();
-    try {
-      final long threshold = getThresholdDate();
-      myToolUsages.forEach((id, usageMap) -> {
-        final Element toolElement = new Element(getToolName());
-        toolElement.setAttribute(getToolIdName(), StringUtil.replaceInvalidXmlChars(id));
-        element.addContent((Content)toolElement);
-        usageMap.forEach((userId, timestamp) -> {
-          if (timestamp > threshold) {
-            final Element usageElement = new Element(USAGE);
-            usageElement.setAttribute(USER_ID, String.valueOf(userId));
-            usageElement.setAttribute(TIMESTAMP, String.valueOf(timestamp));
-            toolElement.addContent((Content)usageElement);
-          }
-        });
-      });
-    } finally {
-      myLock.writeLock().unlock();
-    }
-  }
-
-  private void readExternal(@NotNull final Element element) {
-    myLock.writeLock().lock();
-    try {
-      final long threshold = getThresholdDate();
-      myToolUsages.clear();
-      for (final Object tool : element.getChildren(getToolName())) {
-        if (!(tool instanceof Element)) continue;
-        final Element toolElement = (Element)tool;
-        final String toolIdSource = toolElement.getAttributeValue(getToolIdName());
-        if (toolIdSource == null) continue;
-        final Map<Long, Long> value = new ConcurrentHashMap<>();
-        myToolUsages.put(toolIdSource, value);
-        for (final Object usage : toolElement.getChildren(USAGE)) {
-          if (!(usage instanceof Element)) continue;
-          final Element usageElement = (Element)usage;
-          final String userIdStr = usageElement.getAttributeValue(USER_ID);
-          if (userIdStr == null) continue;
-          final String timestampStr = usageElement.getAttributeValue(TIMESTAMP);
-          if (timestampStr == null) continue;
+  private void readExternal(@NotNull final XMLStreamReader reader,
+                            final long threshold,
+                            @NotNull final ToolUsageStorage.UsageVisitor consumer) throws XMLStreamException {
+    while (XmlStreamUtil.nextChild(reader)) {
+      final String toolIdSource = getToolName().equals(reader.getLocalName()) ? XmlStreamUtil.getAttribute(reader, getToolIdName()) : null;
+      if (toolIdSource == null) {
+        XmlStreamUtil.skipElement(reader);
+        continue;
+      }
+      while (XmlStreamUtil.nextChild(reader)) {
+        final String userIdStr = XmlStreamUtil.getAttribute(reader, USER_ID);
+        final String timestampStr = XmlStreamUtil.getAttribute(reader, TIMESTAMP);
+        if (USAGE.equals(reader.getLocalName()) && userIdStr != null && timestampStr != null) {
           try {
             long timestamp = Long.parseLong(timestampStr);
             if (timestamp > threshold) {
               long userId = Long.parseLong(userIdStr);
-              value.put(userId, timestamp);
+              consumer.visit(toolIdSource, userId, timestamp);
             }
           } catch (final NumberFormatException ignored) {
           }
         }
+        XmlStreamUtil.skipElement(reader);
       }
-    } finally {
-      myLock.writeLock().unlock();
     }
   }
 
-  private void registerPersistor(@NotNull EventDispatcher<BuildServerListener> eventDispatcher,
-                                 @NotNull ServerPaths serverPaths,
-                                 @NotNull ServerResponsibility serverResponsibility) {
-    new BaseUsageStatisticsStatePersister(eventDispatcher, serverPaths, serverResponsibility) {
-      @NotNull
-      @Override
-      protected String getStateName() {
-        return getExternalId();
+  /**
+   * Keeps the usages in memory and persists them with the usages journal.
+   */
+  private class JournalToolUsageStorage implements ToolUsageStorage {
+    @NotNull
+    private final Map<String, Map<Long, Long>> myToolUsages = new ConcurrentHashMap<>();
+
+    @NotNull
+    private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
+
+    @NotNull
+    private final BaseUsageJournalPersister myJournal;
+
+    private JournalToolUsageStorage(@NotNull EventDispatcher<BuildServerListener> eventDispatcher,
+                                    @NotNull ServerPaths serverPaths,
+                                    @NotNull ServerResponsibility serverResponsibility) {
+      myJournal = registerPersistor(eventDispatcher, serverPaths, serverResponsibility);
+    }
+
+    public void addUsage(@NotNull final String toolIdSource, final long userId, final long timestamp) {
+      final Map<Long, Long> usages = myToolUsages.get(toolIdSource);
+      final Long lastSeen = usages == null ? null : usages.get(userId);
+      final long resolution = TeamCityProperties.getInteger(LAST_SEEN_RESOLUTION, DEFAULT_LAST_SEEN_RESOLUTION) * Dates.ONE_SECOND;
+      if (lastSeen != null && timestamp - lastSeen < resolution) return; // not worth a journal record, the periods are days long
+      myJournal.addUsage(toolIdSource, userId, timestamp);
+    }
+
+    public void removeOlderThan(final long threshold) {
+      myLock.writeLock().lock();
+      try {
+        myToolUsages.values().forEach(it -> it.entrySet().removeIf(e -> e.getValue() <= threshold));
+      } finally {
+        myLock.writeLock().unlock();
       }
+    }
 
-      @Override
-      protected void writeExternal(@NotNull final Element element) {
-        BaseToolUsersUsageStatisticsProvider.this.writeExternal(element);
+    public void forEachUsage(@NotNull final UsageVisitor visitor) {
+      myToolUsages.forEach((toolIdSource, usages) -> usages.forEach((userId, lastSeen) -> visitor.visit(toolIdSource, userId, lastSeen)));
+    }
+
+    private void applyUsage(@NotNull final String toolIdSource, final long userId, final long timestamp) {
+      myLock.readLock().lock();
+      try {
+        myToolUsages.computeIfAbsent(toolIdSource, k -> new ConcurrentHashMap<>())
+                    .merge(userId, timestamp, Math::max);
+      } finally {
+        myLock.readLock().unlock();
       }
+    }
 
-      @Override
-      protected void readExternal(@NotNull final Element element) {
-        BaseToolUsersUsageStatisticsProvider.this.readExternal(element);
+    private void writeUsages(@NotNull final BaseUsageJournalPersister.UsageWriter writer) throws IOException {
+      myLock.writeLock().lock();
+      try {
+        final long threshold = getThresholdDate();
+        for (final Map.Entry<String, Map<Long, Long>> tool : myToolUsages.entrySet()) {
+          for (final Map.Entry<Long, Long> usage : tool.getValue().entrySet()) {
+            if (usage.getValue() > threshold) {
+              writer.write(tool.getKey(), usage.getKey(), usage.getValue());
+            }
+          }
+        }
+      } finally {
+        myLock.writeLock().unlock();
+      }
+    }
+
+    /**
+     * Adds the legacy usages to the usages already applied, e.g. added before the state was loaded.
+     */
+    private void readLegacyState(@NotNull final XMLStreamReader reader) throws XMLStreamException {
+      myLock.writeLock().lock();
+      try {
+        readExternal(reader, getThresholdDate(), (toolIdSource, userId, timestamp) ->
+          myToolUsages.computeIfAbsent(toolIdSource, k -> new ConcurrentHashMap<>()).merge(userId, timestamp, Math::max));
+      } finally {
+        myLock.writeLock().unlock();
       }
-    };
+    }
+
+    @NotNull
+    private BaseUsageJournalPersister registerPersistor(@NotNull EventDispatcher<BuildServerListener> eventDispatcher,
+                                                       @NotNull ServerPaths serverPaths,
+                                                       @NotNull ServerResponsibility serverResponsibility) {
+      return new BaseUsageStatisticsJournalPersister(eventDispatcher, serverPaths, serverResponsibility) {
+        @NotNull
+        @Override
+        protected String getStateName() {
+          return getExternalId();
+        }
+
+        @Override
+        protected void applyUsage(@NotNull final String key, final long userId, final long timestamp) {
+          JournalToolUsageStorage.this.applyUsage(key, userId, timestamp);
+        }
+
+        @Override
+        protected void writeUsages(@NotNull final UsageWriter writer) throws IOException {
+          JournalToolUsageStorage.this.writeUsages(writer);
+        }
+
+        @Override
+        protected void readLegacyState(@NotNull final XMLStreamReader reader) throws XMLStreamException {
+          JournalToolUsageStorage.this.readLegacyState(reader);
+        }
+      };
+    }
   }
 }
\ No newline at end of file
@@ -4,18 +4,20 @@ package jetbrains.buildServer.usageStatistics.impl.providers;
 import com.intellij.openapi.util.UserDataHolder;
 import java.util.ArrayList;
 import java.util.List;
-import jetbrains.buildServer.usageStatistics.UsageStatisticsProvider;
+import jetbrains.buildServer.usageStatistics.CacheableUsageStatisticsProvider;
 import jetbrains.buildServer.usageStatistics.UsageStatisticsPublisher;
 import jetbrains.buildServer.usageStatistics.presentation.UsageStatisticsFormatter;
 import jetbrains.buildServer.usageStatistics.presentation.UsageStatisticsPresentationManager;
 import jetbrains.buildServer.usageStatistics.presentation.UsageStatisticsPresentationProvider;
+import jetbrains.buildServer.util.Dates;
 import jetbrains.buildServer.util.positioning.PositionAware;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-public abstract class BaseUsageStatisticsProvider implements UsageStatisticsProvider, UsageStatisticsPresentationProvider {
+public abstract class BaseUsageStatisticsProvider implements CacheableUsageStatisticsProvider, UsageStatisticsPresentationProvider {
   @NotNull private String myIdFormat;
   @NotNull protected String myGroupName;
+  private long myResultTimeToLive = 0; // not cached by default
   @NotNull private final PresentationsCollector myPresentationsCollector = new PresentationsCollector();
 
   public void setIdFormat(@NotNull final String idFormat) {
@@ -26,6 +28,19 @@ public abstract class BaseUsageStatisticsProvider implements UsageStatisticsProv
     myGroupName = groupName;
   }
 
+  @NotNull
+  public String getGroupName() {
+    return myGroupName;
+  }
+
+  public void setResultTimeToLiveSeconds(final long resultTimeToLiveSeconds) {
+    myResultTimeToLive = resultTimeToLiveSeconds * Dates.ONE_SECOND;
+  }
+
+  public long getResultTimeToLive() {
+    return myResultTimeToLive;
+  }
+
   @NotNull
   protected String makeId(@NotNull final String... params) {
     return String.format(myIdFormat, params);
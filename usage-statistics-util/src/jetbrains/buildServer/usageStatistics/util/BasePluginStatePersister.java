@@ -2,24 +2,46 @@
 package jetbrains.buildServer.usageStatistics.util;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.ExceptionUtil;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
 import jetbrains.buildServer.util.XmlUtil;
 import org.apache.log4j.Logger;
 import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Helper for persisting the state of the TeamCity plugin.
+ * <p>
+ * A persister which reports its changes with {@link #markDirty()}, see {@link #tracksChanges()}, is saved in the background
+ * every {@link #CHECKPOINT_INTERVAL} seconds if it has changed, and on the server shutdown only if it has changed since then.
+ * The other persisters are saved on the server shutdown.
  */
 public abstract class BasePluginStatePersister extends BuildServerAdapter {
   @NotNull private static final Logger LOG = Logger.getLogger(BasePluginStatePersister.class);
 
+  @NotNull private static final String CHECKPOINT_INTERVAL = "teamcity.usageStatistics.state.checkpoint.interval.seconds";
+  private static final int DEFAULT_CHECKPOINT_INTERVAL = 300;
+
+  @NotNull private static final Object ourWriterLock = new Object();
+  @Nullable private static ScheduledExecutorService ourWriter; // guarded by ourWriterLock, shared by all the started persisters
+  private static int ourWriterUsers = 0; // guarded by ourWriterLock
+
   @NotNull private final File myFile;
   private final ServerResponsibility myServerResponsibility;
+  @NotNull private final Object mySaveLock = new Object();
+  @NotNull private final AtomicBoolean myDirty = new AtomicBoolean(false);
+  @NotNull private final AtomicBoolean mySaveRequested = new AtomicBoolean(false);
+  @Nullable private volatile ScheduledExecutorService myWriter;
+  @Nullable private ScheduledFuture<?> myCheckpoint;
 
   protected BasePluginStatePersister(@NotNull final EventDispatcher<BuildServerListener> eventDispatcher,
                                      @NotNull final ServerPaths serverPaths,
@@ -35,6 +57,10 @@ public abstract class BasePluginStatePersister extends BuildServerAdapter {
   @NotNull
   protected abstract String getStateName();
 
+  /**
+   * Writes the state. Is called by the background writer while the state may be changing,
+   * so the state must be read in a thread-safe way, e.g. copied under the lock guarding its changes.
+   */
   protected abstract void writeExternal(@NotNull Element element);
 
   protected abstract void readExternal(@NotNull Element element);
@@ -42,12 +68,91 @@ public abstract class BasePluginStatePersister extends BuildServerAdapter {
   @Override
   public void serverStartup() {
     loadState();
+    if (!myServerResponsibility.canWriteToConfigDirectory()) return;
+
+    final ScheduledExecutorService writer = acquireWriter();
+    final long interval = Math.max(1, TeamCityProperties.getInteger(CHECKPOINT_INTERVAL, DEFAULT_CHECKPOINT_INTERVAL));
+    myCheckpoint = writer.scheduleWithFixedDelay(this::checkpoint, interval, interval, TimeUnit.SECONDS);
+    myWriter = writer;
   }
 
   @Override
   public void serverShutdown() {
+    if (myCheckpoint != null) {
+      myCheckpoint.cancel(false);
+      myCheckpoint = null;
+      myWriter = null;
+      releaseWriter();
+    }
     if (myServerResponsibility.canWriteToConfigDirectory()) {
-      saveState();
+      synchronized (mySaveLock) {
+        if (!tracksChanges() || myDirty.getAndSet(false)) {
+          saveState();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if every change of the state is reported with {@link #markDirty()} or {@link #requestSave()},
+   * so the unchanged state is not saved again on the server shutdown
+   */
+  protected boolean tracksChanges() {
+    return false;
+  }
+
+  /**
+   * Reports that the state has changed, so it is saved with the next checkpoint.
+   * Must be called after the change, several changes between the checkpoints are saved with one write.
+   */
+  protected void markDirty() {
+    myDirty.set(true);
+  }
+
+  /**
+   * Reports that the state has changed and saves it in the background without waiting for the next checkpoint.
+   * The requests made while a save is pending are saved with that save.
+   */
+  protected void requestSave() {
+    markDirty();
+    final ScheduledExecutorService writer = myWriter;
+    if (writer == null || !mySaveRequested.compareAndSet(false, true)) return; // saved on shutdown or by the pending save
+    try {
+      writer.execute(() -> {
+        mySaveRequested.set(false);
+        checkpoint();
+      });
+    }
+    catch (final RejectedExecutionException e) {
+      mySaveRequested.set(false); // the server is stopping, the state is saved on shutdown
+    }
+  }
+
+  private void checkpoint() {
+    synchronized (mySaveLock) {
+      if (myDirty.compareAndSet(true, false)) {
+        saveState();
+      }
+    }
+  }
+
+  @NotNull
+  private static ScheduledExecutorService acquireWriter() {
+    synchronized (ourWriterLock) {
+      if (ourWriter == null) {
+        ourWriter = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("Plugin state writer"));
+      }
+      ourWriterUsers++;
+      return ourWriter;
+    }
+  }
+
+  private static void releaseWriter() {
+    synchronized (ourWriterLock) {
+      if (--ourWriterUsers == 0 && ourWriter != null) {
+        ourWriter.shutdown(); // the pending saves are completed, the checkpoints are cancelled
+        ourWriter = null;
+      }
     }
   }
 
@@ -62,17 +167,33 @@ public abstract class BasePluginStatePersister extends BuildServerAdapter {
     }
   }
 
+  /**
+   * Writes the state to a temporary file which then replaces the state file, so the state file is never left half-written.
+   */
   protected void saveState() {
+    final File tempFile = new File(myFile.getParentFile(), myFile.getName() + ".tmp");
     try {
       final Element root = new Element(getRootElementName());
       writeExternal(root);
-      FileUtil.writeFile(myFile, XmlUtil.to_s(root), "UTF-8");
+      try (FileOutputStream out = new FileOutputStream(tempFile)) {
+        out.write(XmlUtil.to_s(root).getBytes(StandardCharsets.UTF_8));
+        out.getFD().sync();
+      }
+      if (!FileUtil.rename(tempFile, myFile)) {
+        throw new IOException("Failed to rename \"" + tempFile.getAbsolutePath() + "\"");
+      }
     }
     catch (Exception e) {
       LOG.error("Failed to write \"" + getPluginName() + "\" plugin state to the \"" + myFile.getAbsolutePath() + "\" file: " + e, e);
+      FileUtil.delete(tempFile);
     }
   }
 
+  @NotNull
+  protected File getStateFile() {
+    return myFile;
+  }
+
   @NotNull
   protected String getRootElementName() {
     return "root";
@@ -0,0 +1,650 @@
+
+package jetbrains.buildServer.usageStatistics.util;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Persists usage events (key, user id, timestamp) of a TeamCity plugin as they happen.
+ * <p>
+ * Every usage is appended to the journal file as a compact binary record. The records are buffered and flushed to the file
+ * in background every {@link #FLUSH_INTERVAL} seconds (5 by default) and on the server shutdown, so a crash loses the usages
+ * of the last flush interval at most. The usages added before the state is loaded or while the journal cannot be written
+ * are kept in memory and written with the next compaction. The journal is periodically
+ * compacted in background: a new journal is started, the usages kept in memory are written to the snapshot file,
+ * which replaces the previous one, and the journals included into it are removed.
+ * On startup the snapshot and then the journals are read sequentially, a record incompletely written before a crash is dropped.
+ * <p>
+ * All the files start with the compaction epoch, every epoch has its own journal. The snapshot of epoch N includes all
+ * the journals of the epochs less than N, so a journal left behind by a crash during compaction is not replayed twice.
+ * <p>
+ * Usages are applied to the memory and appended to the journal under the persister lock, the compaction excludes them
+ * only to start a new journal and to copy the usages kept in memory, the snapshot is written without the lock.
+ * So implementations must not call the persister while holding their own locks.
+ */
+public abstract class BaseUsageJournalPersister extends BuildServerAdapter {
+  @NotNull private static final Logger LOG = Logger.getLogger(BaseUsageJournalPersister.class);
+
+  @NotNull private static final String COMPACTION_INTERVAL = "teamcity.usageStatistics.journal.compaction.interval.minutes";
+  private static final int DEFAULT_COMPACTION_INTERVAL = 60;
+  @NotNull private static final String FLUSH_INTERVAL = "teamcity.usageStatistics.journal.flush.interval.seconds";
+  private static final int DEFAULT_FLUSH_INTERVAL = 5;
+
+  private static final int MAGIC = 0x5443554A; // "TCUJ"
+  private static final int VERSION = 1;
+  private static final int KEY = 1;
+  private static final int USAGE = 2;
+
+  @NotNull private final UsageFiles myFiles;
+  @NotNull private final ServerResponsibility myServerResponsibility;
+
+  @NotNull private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
+  @Nullable private volatile UsageOutput myJournal; // replaced under the write lock, appends are synchronized on the journal
+  private long myEpoch = 0; // guarded by myLock
+  private boolean myLoaded = false; // guarded by myLock
+  private volatile boolean myCompactionNeeded = false;
+  @NotNull private final Object myCompactionLock = new Object(); // the snapshot is written by one compaction at a time
+  @Nullable private ScheduledExecutorService myWriter;
+
+  protected BaseUsageJournalPersister(@NotNull final EventDispatcher<BuildServerListener> eventDispatcher,
+                                      @NotNull final ServerPaths serverPaths,
+                                      @NotNull final ServerResponsibility serverResponsibility) {
+    myFiles = new UsageFiles(getDataDir(serverPaths), getStateName());
+    myServerResponsibility = serverResponsibility;
+    eventDispatcher.addListener(this);
+  }
+
+  @NotNull
+  protected abstract String getPluginName();
+
+  @NotNull
+  protected abstract String getStateName();
+
+  /**
+   * Applies the usage to the memory, called both for the new usages and for the persisted ones on startup.
+   */
+  protected abstract void applyUsage(@NotNull String key, long userId, long timestamp);
+
+  /**
+   * Writes all the usages kept in memory which are still needed.
+   */
+  protected abstract void writeUsages(@NotNull UsageWriter writer) throws IOException;
+
+  /**
+   * Reads the state saved by {@link BasePluginStatePersister} to the file of the same state name, the file is removed
+   * after the first compaction. The state is added to the usages already applied, which may have been added before the state is loaded. The file is streamed, the reader is positioned at the start of the root element and
+   * must be left at its end, see {@link XmlStreamUtil#nextChild(XMLStreamReader)}.
+   */
+  protected void readLegacyState(@NotNull final XMLStreamReader reader) throws XMLStreamException {
+    XmlStreamUtil.skipElement(reader);
+  }
+
+  /**
+   * Applies the usage to the memory and appends it to the journal buffer, which is flushed in background.
+   */
+  public void addUsage(@NotNull final String key, final long userId, final long timestamp) {
+    myLock.readLock().lock();
+    try {
+      applyUsage(key, userId, timestamp);
+      final UsageOutput journal = myJournal;
+      if (journal == null) { // not loaded yet, failed or not allowed to write, the usage is written with the next compaction
+        myCompactionNeeded = true;
+        return;
+      }
+      synchronized (journal) {
+        if (myJournal != journal) return; // dropped after a failed append
+        try {
+          journal.writeUsage(key, userId, timestamp);
+          myCompactionNeeded = true;
+        }
+        catch (final IOException e) {
+          LOG.error("Failed to append a usage to the \"" + myFiles.getJournalFile(myEpoch).getAbsolutePath() + "\" file, the journal is restarted with the next compaction: " + e, e);
+          journal.closeQuietly();
+          myJournal = null;
+          myCompactionNeeded = true;
+        }
+      }
+    }
+    finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void serverStartup() {
+    loadState();
+    if (!myServerResponsibility.canWriteToConfigDirectory()) return;
+
+    final long compactionInterval = Math.max(1, TeamCityProperties.getInteger(COMPACTION_INTERVAL, DEFAULT_COMPACTION_INTERVAL));
+    final long flushInterval = Math.max(1, TeamCityProperties.getInteger(FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL));
+    myWriter = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("Usage journal writer (" + getStateName() + ")"));
+    myWriter.scheduleWithFixedDelay(() -> {
+      if (myCompactionNeeded) {
+        compact();
+      }
+    }, 0, compactionInterval, TimeUnit.MINUTES);
+    myWriter.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void serverShutdown() {
+    if (myWriter != null) {
+      myWriter.shutdownNow();
+      try {
+        myWriter.awaitTermination(1, TimeUnit.MINUTES); // lets a running compaction finish the snapshot
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    myLock.writeLock().lock();
+    try {
+      if (myJournal != null) {
+        try {
+          myJournal.close();
+        }
+        catch (final IOException e) {
+          LOG.error("Failed to write usages to the \"" + myFiles.getJournalFile(myEpoch).getAbsolutePath() + "\" file: " + e, e);
+        }
+        myJournal = null;
+      }
+      myLoaded = false;
+    }
+    finally {
+      myLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Writes the buffered usages to the journal file.
+   */
+  protected void flush() {
+    myLock.readLock().lock();
+    try {
+      final UsageOutput journal = myJournal;
+      if (journal == null) return;
+      synchronized (journal) {
+        if (myJournal != journal) return; // dropped after a failed append
+        try {
+          journal.flush();
+        }
+        catch (final IOException e) {
+          LOG.error("Failed to append usages to the \"" + myFiles.getJournalFile(myEpoch).getAbsolutePath() + "\" file, the journal is restarted with the next compaction: " + e, e);
+          journal.closeQuietly();
+          myJournal = null;
+          myCompactionNeeded = true;
+        }
+      }
+    }
+    finally {
+      myLock.readLock().unlock();
+    }
+  }
+
+  @NotNull
+  private File getDataDir(@NotNull final ServerPaths serverPaths) {
+    try {
+      return FileUtil.createDir(new File(serverPaths.getPluginDataDirectory(), getPluginName()));
+    }
+    catch (final IOException e) {
+      ExceptionUtil.rethrowAsRuntimeException(e);
+      return null;
+    }
+  }
+
+  private void loadState() {
+    myLock.writeLock().lock();
+    try {
+      final UsageReader reader = new UsageReader(myFiles, this::applyUsage, this::readLegacyState);
+      final ReadResult validJournal = reader.read();
+      myEpoch = reader.myEpoch;
+      if (reader.myCompactionNeeded) {
+        myCompactionNeeded = true;
+      }
+      myLoaded = true;
+
+      if (myServerResponsibility.canWriteToConfigDirectory()) {
+        try {
+          final File journalFile = myFiles.getJournalFile(myEpoch);
+          myJournal = validJournal != null ? UsageOutput.append(journalFile, validJournal) : UsageOutput.create(journalFile, myEpoch, false);
+        }
+        catch (final IOException e) {
+          LOG.error("Failed to open the \"" + myFiles.getJournalFile(myEpoch).getAbsolutePath() + "\" file, the journal is restarted with the next compaction: " + e, e);
+          myCompactionNeeded = true;
+        }
+      }
+    }
+    finally {
+      myLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Moves the usages persisted by a journal persister to another storage: applies them to the storage and removes the files.
+   * The files are kept if they cannot be read completely, so they are migrated again on the next startup.
+   *
+   * @param dataDir directory of the plugin which persisted the usages
+   * @param stateName state name of the persister
+   * @param legacyStateReader reads the state saved by {@link BasePluginStatePersister}, see {@link #readLegacyState(XMLStreamReader)}
+   */
+  public static void migrateInto(@NotNull final UsageWriter storage,
+                                 @NotNull final LegacyStateReader legacyStateReader,
+                                 @NotNull final File dataDir,
+                                 @NotNull final String stateName,
+                                 @NotNull final ServerResponsibility serverResponsibility) {
+    final UsageFiles files = new UsageFiles(dataDir, stateName);
+    final UsageReader reader = new UsageReader(files, storage, legacyStateReader);
+    reader.read();
+    if (reader.myReadFailed || !serverResponsibility.canWriteToConfigDirectory()) return;
+    for (final File file : new File[] { files.mySnapshotFile, files.myLegacyFile }) {
+      if (file.isFile()) {
+        FileUtil.delete(file);
+      }
+    }
+    for (final long epoch : files.getJournalEpochs()) {
+      FileUtil.delete(files.getJournalFile(epoch));
+    }
+  }
+
+  /**
+   * Starts a new journal and writes the usages kept in memory to a new snapshot, which replaces the previous journals.
+   * Only starting the journal and copying the usages exclude the new usages, the snapshot is written after that.
+   */
+  protected void compact() {
+    synchronized (myCompactionLock) {
+      final long epoch;
+      final List<Usage> usages = new ArrayList<Usage>();
+      myLock.writeLock().lock();
+      try {
+        if (!myLoaded || !myServerResponsibility.canWriteToConfigDirectory()) return;
+        myCompactionNeeded = false;
+        try {
+          writeUsages((key, userId, timestamp) -> usages.add(new Usage(key, userId, timestamp)));
+        }
+        catch (final Exception e) {
+          LOG.error("Failed to compact \"" + getPluginName() + "\" plugin usages: " + e, e);
+          myCompactionNeeded = true;
+          return;
+        }
+
+        epoch = myEpoch + 1;
+        myEpoch = epoch; // the usages added from now on are not included into the snapshot
+        if (myJournal != null) {
+          myJournal.closeQuietly(); // the usages are included into the snapshot anyway
+          myJournal = null;
+        }
+        try {
+          myJournal = UsageOutput.create(myFiles.getJournalFile(epoch), epoch, false);
+        }
+        catch (final IOException e) {
+          LOG.error("Failed to start the \"" + myFiles.getJournalFile(epoch).getAbsolutePath() + "\" journal: " + e, e);
+          myCompactionNeeded = true;
+        }
+      }
+      finally {
+        myLock.writeLock().unlock();
+      }
+
+      final File tempFile = new File(myFiles.mySnapshotFile.getParentFile(), myFiles.mySnapshotFile.getName() + ".tmp");
+      try {
+        try (UsageOutput out = UsageOutput.create(tempFile, epoch, true)) {
+          for (final Usage usage : usages) {
+            out.writeUsage(usage.myKey, usage.myUserId, usage.myTimestamp);
+          }
+        }
+        if (!FileUtil.rename(tempFile, myFiles.mySnapshotFile)) {
+          throw new IOException("Failed to rename \"" + tempFile.getAbsolutePath() + "\"");
+        }
+      }
+      catch (final IOException e) {
+        LOG.error("Failed to write \"" + getPluginName() + "\" plugin usages to the \"" + myFiles.mySnapshotFile.getAbsolutePath() + "\" file: " + e, e);
+        FileUtil.delete(tempFile);
+        myCompactionNeeded = true; // the journals are kept until a snapshot is written
+        return;
+      }
+
+      for (final long journalEpoch : myFiles.getJournalEpochs()) {
+        if (journalEpoch < epoch) {
+          FileUtil.delete(myFiles.getJournalFile(journalEpoch));
+        }
+      }
+      if (myFiles.myLegacyFile.isFile()) {
+        FileUtil.delete(myFiles.myLegacyFile);
+      }
+    }
+  }
+
+  private static long readVarLong(@NotNull final DataInputStream in) throws IOException {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = in.readByte();
+      result |= (long)(b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return result;
+    }
+    throw new IOException("Malformed number");
+  }
+
+  public interface UsageWriter {
+    void write(@NotNull String key, long userId, long timestamp) throws IOException;
+  }
+
+  public interface LegacyStateReader {
+    void read(@NotNull XMLStreamReader reader) throws XMLStreamException;
+  }
+
+  private static class Usage {
+    @NotNull private final String myKey;
+    private final long myUserId;
+    private final long myTimestamp;
+
+    private Usage(@NotNull final String key, final long userId, final long timestamp) {
+      myKey = key;
+      myUserId = userId;
+      myTimestamp = timestamp;
+    }
+  }
+
+  private static class ReadResult {
+    private long myEpoch = -1; // -1 if the header is invalid
+    private long myLength = 0; // length of the complete part of the file
+    private int myRecords = 0;
+    @NotNull private final List<String> myKeys = new ArrayList<String>();
+  }
+
+  /**
+   * Files of the usages persisted under a state name.
+   */
+  private static class UsageFiles {
+    @NotNull private final File myDataDir;
+    @NotNull private final String myJournalPrefix;
+    @NotNull private final File mySnapshotFile;
+    @NotNull private final File myLegacyFile;
+
+    private UsageFiles(@NotNull final File dataDir, @NotNull final String stateName) {
+      myDataDir = dataDir;
+      myJournalPrefix = stateName + ".journal.";
+      mySnapshotFile = new File(dataDir, stateName + ".usages");
+      myLegacyFile = new File(dataDir, stateName + ".xml");
+    }
+
+    @NotNull
+    File getJournalFile(final long epoch) {
+      return new File(myDataDir, myJournalPrefix + epoch);
+    }
+
+    /**
+     * @return epochs of the journal files in the ascending order
+     */
+    @NotNull
+    List<Long> getJournalEpochs() {
+      final List<Long> result = new ArrayList<Long>();
+      final File[] files = myDataDir.listFiles();
+      if (files == null) return result;
+      for (final File file : files) {
+        final String name = file.getName();
+        if (!name.startsWith(myJournalPrefix) || !file.isFile()) continue;
+        try {
+          result.add(Long.parseLong(name.substring(myJournalPrefix.length())));
+        }
+        catch (final NumberFormatException ignore) {}
+      }
+      Collections.sort(result);
+      return result;
+    }
+  }
+
+  /**
+   * Reads the persisted usages once, on startup or for a migration.
+   */
+  private static class UsageReader {
+    @NotNull private final UsageFiles myFiles;
+    @NotNull private final UsageWriter myConsumer;
+    @NotNull private final LegacyStateReader myLegacyStateReader;
+    private long myEpoch = 0; // epoch of the last journal
+    private boolean myReadFailed = false;
+    private boolean myCompactionNeeded = false;
+
+    private UsageReader(@NotNull final UsageFiles files,
+                        @NotNull final UsageWriter consumer,
+                        @NotNull final LegacyStateReader legacyStateReader) {
+      myFiles = files;
+      myConsumer = consumer;
+      myLegacyStateReader = legacyStateReader;
+    }
+
+    /**
+     * Applies the usages of the snapshot (or the legacy state) and the journals not included into it.
+     *
+     * @return the journal of the last epoch if new usages can be appended to it
+     */
+    @Nullable
+    ReadResult read() {
+      long snapshotEpoch = 0;
+      if (myFiles.mySnapshotFile.isFile()) {
+        snapshotEpoch = Math.max(0, readUsages(myFiles.mySnapshotFile, -1).myEpoch);
+      }
+      else if (myFiles.myLegacyFile.isFile()) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(myFiles.myLegacyFile), 64 * 1024)) {
+          final XMLStreamReader reader = XmlStreamUtil.createReader(in);
+          try {
+            myLegacyStateReader.read(reader);
+          }
+          finally {
+            reader.close();
+          }
+          myCompactionNeeded = true;
+        }
+        catch (final Exception e) {
+          LOG.error("Failed to read the state from the \"" + myFiles.myLegacyFile.getAbsolutePath() + "\" file: " + e, e);
+          myReadFailed = true;
+        }
+      }
+
+      ReadResult validJournal = null;
+      myEpoch = snapshotEpoch;
+      for (final long epoch : myFiles.getJournalEpochs()) {
+        if (epoch < snapshotEpoch) { // included into the snapshot, removed by the next compaction
+          myCompactionNeeded = true;
+          continue;
+        }
+        final ReadResult journal = readUsages(myFiles.getJournalFile(epoch), epoch);
+        myEpoch = epoch;
+        validJournal = journal.myEpoch >= epoch ? journal : null;
+        if (journal.myRecords > 0 || epoch > snapshotEpoch) {
+          myCompactionNeeded = true;
+        }
+      }
+      return validJournal;
+    }
+
+    /**
+     * @param minEpoch the usages are applied only if the file epoch is not less than the specified one
+     */
+    @NotNull
+    private ReadResult readUsages(@NotNull final File file, final long minEpoch) {
+      final ReadResult result = new ReadResult();
+      final List<String> keys = result.myKeys;
+      try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+           DataInputStream in = new DataInputStream(counter)) {
+        if (in.readInt() != MAGIC) throw new IOException("Not a usage journal");
+        final int version = in.read();
+        if (version != VERSION) throw new IOException("Unsupported usage journal version: " + version);
+        result.myEpoch = in.readLong();
+        result.myLength = counter.myCount;
+        if (result.myEpoch < minEpoch) return result;
+
+        while (true) {
+          final int tag = in.read();
+          if (tag == -1) break;
+          if (tag == KEY) {
+            keys.add(in.readUTF());
+          }
+          else if (tag == USAGE) {
+            final long index = readVarLong(in);
+            if (index >= keys.size()) throw new IOException("Undefined key at offset " + result.myLength);
+            final String key = keys.get((int)index);
+            myConsumer.write(key, readVarLong(in), readVarLong(in));
+            result.myRecords++;
+          }
+          else {
+            throw new IOException("Unknown record tag " + tag + " at offset " + result.myLength);
+          }
+          result.myLength = counter.myCount;
+        }
+      }
+      catch (final EOFException e) {
+        LOG.warn("The \"" + file.getAbsolutePath() + "\" file ends with an incomplete record, it is dropped");
+      }
+      catch (final IOException e) {
+        LOG.error("Failed to read usages from the \"" + file.getAbsolutePath() + "\" file: " + e, e);
+        myReadFailed = true;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Journal or snapshot being written, every key is written once before the first usage referring to it.
+   */
+  private static class UsageOutput implements Closeable {
+    @NotNull private final FileOutputStream myFileOut;
+    @NotNull private final DataOutputStream myOut;
+    @NotNull private final Map<String, Integer> myKeys = new HashMap<String, Integer>();
+    private final boolean mySync;
+
+    private UsageOutput(@NotNull final FileOutputStream fileOut, final boolean sync) {
+      myFileOut = fileOut;
+      myOut = new DataOutputStream(new BufferedOutputStream(fileOut, 8 * 1024));
+      mySync = sync;
+    }
+
+    /**
+     * @param sync true to force the file to the disk on close
+     */
+    @NotNull
+    static UsageOutput create(@NotNull final File file, final long epoch, final boolean sync) throws IOException {
+      final UsageOutput result = new UsageOutput(new FileOutputStream(file), sync);
+      try {
+        result.myOut.writeInt(MAGIC);
+        result.myOut.write(VERSION);
+        result.myOut.writeLong(epoch);
+        result.flush();
+      }
+      catch (final IOException e) {
+        result.closeQuietly();
+        throw e;
+      }
+      return result;
+    }
+
+    /**
+     * Opens the journal for appending after its complete part, the keys already defined in it are reused.
+     */
+    @NotNull
+    static UsageOutput append(@NotNull final File file, @NotNull final ReadResult journal) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        if (raf.length() != journal.myLength) {
+          LOG.info("Truncating \"" + file.getAbsolutePath() + "\" from " + raf.length() + " to " + journal.myLength + " bytes");
+          raf.setLength(journal.myLength);
+        }
+      }
+      final UsageOutput result = new UsageOutput(new FileOutputStream(file, true), false);
+      for (final String key : journal.myKeys) {
+        result.myKeys.put(key, result.myKeys.size());
+      }
+      return result;
+    }
+
+    void writeUsage(@NotNull final String key, final long userId, final long timestamp) throws IOException {
+      Integer index = myKeys.get(key);
+      if (index == null) {
+        index = myKeys.size();
+        myOut.write(KEY);
+        myOut.writeUTF(key);
+        myKeys.put(key, index);
+      }
+      myOut.write(USAGE);
+      writeVarLong(index);
+      writeVarLong(userId);
+      writeVarLong(timestamp);
+    }
+
+    void flush() throws IOException {
+      myOut.flush();
+    }
+
+    public void close() throws IOException {
+      try {
+        myOut.flush();
+        if (mySync) {
+          myFileOut.getFD().sync();
+        }
+      }
+      finally {
+        myOut.close();
+      }
+    }
+
+    void closeQuietly() {
+      try {
+        myOut.close();
+      }
+      catch (final IOException ignore) {}
+    }
+
+    private void writeVarLong(long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+        myOut.write((int)(value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      myOut.write((int)value);
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    private long myCount = 0;
+
+    CountingInputStream(@NotNull final InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b != -1) myCount++;
+      return b;
+    }
+
+    @Override
+    public int read(@NotNull final byte[] b, final int off, final int len) throws IOException {
+      final int count = super.read(b, off, len);
+      if (count > 0) myCount += count;
+      return count;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      final long skipped = super.skip(n);
+      myCount += skipped;
+      return skipped;
+    }
+  }
+}
\ No newline at end of file
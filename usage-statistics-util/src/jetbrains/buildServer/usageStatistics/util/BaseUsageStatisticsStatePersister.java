@@ -1,17 +1,32 @@
-
 package jetbrains.buildServer.usageStatistics.util;
 
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.serverSide.ServerResponsibility;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.EventDispatcher;
+import org.apache.log4j.Logger;
+import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
 
+/**
+ * The states can be kept in the {@link ConsolidatedStateStore} of the plugin instead of the separate files,
+ * see {@link #STATE_STORE_ENABLED}. A state file left by the other mode is read first, so switching the mode keeps the state.
+ */
 public abstract class BaseUsageStatisticsStatePersister extends BasePluginStatePersister {
+  @NotNull private static final Logger LOG = Logger.getLogger(BaseUsageStatisticsStatePersister.class);
+
+  @NotNull private static final String STATE_STORE_ENABLED = "teamcity.usageStatistics.stateStore.enabled";
+
+  @NotNull private final ConsolidatedStateStore myStore;
+  private final boolean myStoreEnabled;
+
   public BaseUsageStatisticsStatePersister(@NotNull EventDispatcher<BuildServerListener> eventDispatcher,
                                            @NotNull ServerPaths serverPaths,
                                            @NotNull ServerResponsibility serverResponsibility) {
     super(eventDispatcher, serverPaths, serverResponsibility);
+    myStore = ConsolidatedStateStore.getInstance(getStateFile().getParentFile());
+    myStoreEnabled = TeamCityProperties.getBoolean(STATE_STORE_ENABLED);
   }
 
   @NotNull
@@ -19,4 +34,42 @@ public abstract class BaseUsageStatisticsStatePersister extends BasePluginStateP
   protected String getPluginName() {
     return "usage-statistics";
   }
+
+  @Override
+  protected void saveState() {
+    if (myStoreEnabled) {
+      final Element root = new Element(getRootElementName());
+      try {
+        writeExternal(root);
+      }
+      catch (Exception e) {
+        LOG.error("Failed to write \"" + getPluginName() + "\" plugin state \"" + getStateName() + "\" to the consolidated state store: " + e, e);
+        return;
+      }
+      myStore.save(getStateName(), root); // the states of the other persisters are written as they were saved last time
+    }
+    else {
+      super.saveState();
+    }
+  }
+
+  @Override
+  protected void loadState() {
+    if (getStateFile().isFile()) {
+      super.loadState();
+      if (myStoreEnabled) {
+        myStore.migrateFrom(getStateName(), getStateFile());
+      }
+      return;
+    }
+    if (!myStore.exists()) return;
+    final Element section = myStore.read(getStateName());
+    if (section == null) return;
+    try {
+      readExternal(section);
+    }
+    catch (Exception e) {
+      LOG.error("Failed to read \"" + getPluginName() + "\" plugin state \"" + getStateName() + "\" from the consolidated state store: " + e, e);
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,276 @@
+
+package jetbrains.buildServer.usageStatistics.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import jetbrains.buildServer.util.FileUtil;
+import org.apache.log4j.Logger;
+import org.jdom.Attribute;
+import org.jdom.Element;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the states of several plugin state persisters in one file, so the plugin has a single state file.
+ * <p>
+ * Every persister owns a named section, the section is an element tree. All the names, attribute values and texts
+ * of a section are kept in the string dictionary of the section, so the repeated attribute names are written once.
+ * The sections are kept encoded, so saving one section encodes that section only and does not touch the state of the other
+ * persisters. The whole file is written to a temporary file which is then renamed, and only if the saved section has changed.
+ */
+public class ConsolidatedStateStore {
+  @NotNull private static final Logger LOG = Logger.getLogger(ConsolidatedStateStore.class);
+
+  @NotNull private static final Map<File, ConsolidatedStateStore> ourStores = new HashMap<File, ConsolidatedStateStore>();
+
+  private static final int MAGIC = 0x54435543; // "TCUC"
+  private static final int VERSION = 1;
+
+  @NotNull private final File myFile;
+  @Nullable private Map<String, byte[]> mySections; // guarded by this, the encoded sections in the order they are written
+  @NotNull private final Map<String, File> myLegacyFiles = new HashMap<String, File>(); // guarded by this
+  private boolean myWritten; // guarded by this, true if the file has the current sections
+
+  private ConsolidatedStateStore(@NotNull final File file) {
+    myFile = file;
+  }
+
+  /**
+   * @return the store shared by all the persisters of the data directory
+   */
+  @NotNull
+  public static ConsolidatedStateStore getInstance(@NotNull final File dataDir) {
+    final File file = new File(dataDir, "state.bin");
+    synchronized (ourStores) {
+      return ourStores.computeIfAbsent(file, ConsolidatedStateStore::new);
+    }
+  }
+
+  public boolean exists() {
+    return myFile.isFile();
+  }
+
+  /**
+   * @return the persisted section or null if it is not in the file
+   */
+  @Nullable
+  public synchronized Element read(@NotNull final String name) {
+    final byte[] section = getSections().get(name);
+    if (section == null) return null;
+    try {
+      return decodeSection(section);
+    }
+    catch (final IOException e) {
+      LOG.error("Failed to read the state section \"" + name + "\" from the \"" + myFile.getAbsolutePath() + "\" file: " + e, e);
+      return null;
+    }
+  }
+
+  /**
+   * The file the section was persisted to before is removed after the section is saved.
+   */
+  public synchronized void migrateFrom(@NotNull final String name, @NotNull final File legacyFile) {
+    myLegacyFiles.put(name, legacyFile);
+  }
+
+  /**
+   * Replaces the section and writes the file, unless the section has not changed since the last write.
+   * The other sections are written as they were saved or loaded.
+   */
+  public synchronized void save(@NotNull final String name, @NotNull final Element section) {
+    final Map<String, byte[]> sections = getSections();
+    final byte[] encoded;
+    try {
+      encoded = encodeSection(section);
+    }
+    catch (final IOException e) {
+      LOG.error("Failed to serialize the state section \"" + name + "\" of the \"" + myFile.getAbsolutePath() + "\" file: " + e, e);
+      return;
+    }
+    if (myWritten && Arrays.equals(encoded, sections.get(name))) return;
+    sections.put(name, encoded);
+
+    final File tempFile = new File(myFile.getParentFile(), myFile.getName() + ".tmp");
+    try {
+      try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+           DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeVarInt(out, sections.size());
+        for (final Map.Entry<String, byte[]> entry : sections.entrySet()) {
+          writeBytes(out, entry.getKey().getBytes(StandardCharsets.UTF_8));
+          writeBytes(out, entry.getValue());
+        }
+        out.flush();
+        fileOut.getFD().sync();
+      }
+      if (!FileUtil.rename(tempFile, myFile)) {
+        throw new IOException("Failed to rename \"" + tempFile.getAbsolutePath() + "\"");
+      }
+    }
+    catch (final IOException e) {
+      LOG.error("Failed to write the state sections to the \"" + myFile.getAbsolutePath() + "\" file: " + e, e);
+      FileUtil.delete(tempFile);
+      myWritten = false;
+      return;
+    }
+    myWritten = true;
+
+    final File legacyFile = myLegacyFiles.remove(name);
+    if (legacyFile != null) {
+      FileUtil.delete(legacyFile);
+    }
+  }
+
+  @NotNull
+  private Map<String, byte[]> getSections() {
+    if (mySections == null) {
+      mySections = load();
+    }
+    return mySections;
+  }
+
+  @NotNull
+  private static byte[] encodeSection(@NotNull final Element section) throws IOException {
+    final Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final DataOutputStream bodyOut = new DataOutputStream(body);
+    writeElement(bodyOut, dictionary, section);
+
+    final ByteArrayOutputStream result = new ByteArrayOutputStream(body.size() + 1024);
+    final DataOutputStream out = new DataOutputStream(result);
+    writeVarInt(out, dictionary.size());
+    for (final String string : dictionary.keySet()) {
+      writeBytes(out, string.getBytes(StandardCharsets.UTF_8));
+    }
+    body.writeTo(out);
+    out.flush();
+    return result.toByteArray();
+  }
+
+  private static void writeBytes(@NotNull final DataOutputStream out, @NotNull final byte[] bytes) throws IOException {
+    writeVarInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeElement(@NotNull final DataOutputStream out,
+                                   @NotNull final Map<String, Integer> dictionary,
+                                   @NotNull final Element element) throws IOException {
+    writeString(out, dictionary, element.getName());
+    final List<?> attributes = element.getAttributes();
+    writeVarInt(out, attributes.size());
+    for (final Object attribute : attributes) {
+      writeString(out, dictionary, ((Attribute)attribute).getName());
+      writeString(out, dictionary, ((Attribute)attribute).getValue());
+    }
+    final String text = element.getText();
+    if (text.isEmpty()) {
+      writeVarInt(out, 0);
+    }
+    else {
+      writeVarInt(out, 1);
+      writeString(out, dictionary, text);
+    }
+    final List<?> children = element.getChildren();
+    writeVarInt(out, children.size());
+    for (final Object child : children) {
+      writeElement(out, dictionary, (Element)child);
+    }
+  }
+
+  private static void writeString(@NotNull final DataOutputStream out,
+                                  @NotNull final Map<String, Integer> dictionary,
+                                  @NotNull final String string) throws IOException {
+    Integer index = dictionary.get(string);
+    if (index == null) {
+      index = dictionary.size();
+      dictionary.put(string, index);
+    }
+    writeVarInt(out, index);
+  }
+
+  private static void writeVarInt(@NotNull final DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.write(value & 0x7F | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  @NotNull
+  private Map<String, byte[]> load() {
+    final Map<String, byte[]> result = new TreeMap<String, byte[]>();
+    if (!myFile.isFile()) return result;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile), 64 * 1024))) {
+      if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+        throw new IOException("Unknown file format");
+      }
+      final int count = readVarInt(in);
+      for (int i = 0; i < count; i++) {
+        final String name = new String(readBytes(in), StandardCharsets.UTF_8);
+        result.put(name, readBytes(in));
+      }
+    }
+    catch (final IOException e) {
+      LOG.error("Failed to read the state sections from the \"" + myFile.getAbsolutePath() + "\" file: " + e, e);
+    }
+    return result;
+  }
+
+  @NotNull
+  private byte[] readBytes(@NotNull final DataInputStream in) throws IOException {
+    final int length = readVarInt(in);
+    if (length > myFile.length()) throw new IOException("Invalid length " + length); // cannot be longer than the whole file
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  @NotNull
+  private Element decodeSection(@NotNull final byte[] section) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(section));
+    final String[] dictionary = new String[readVarInt(in)];
+    for (int i = 0; i < dictionary.length; i++) {
+      dictionary[i] = new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+    return readElement(in, dictionary);
+  }
+
+  @NotNull
+  private static Element readElement(@NotNull final DataInputStream in, @NotNull final String[] dictionary) throws IOException {
+    final Element element = new Element(readString(in, dictionary));
+    final int attributes = readVarInt(in);
+    for (int i = 0; i < attributes; i++) {
+      element.setAttribute(readString(in, dictionary), readString(in, dictionary));
+    }
+    if (readVarInt(in) != 0) {
+      element.setText(readString(in, dictionary));
+    }
+    final int children = readVarInt(in);
+    for (int i = 0; i < children; i++) {
+      element.addContent(readElement(in, dictionary));
+    }
+    return element;
+  }
+
+  @NotNull
+  private static String readString(@NotNull final DataInputStream in, @NotNull final String[] dictionary) throws IOException {
+    final int index = readVarInt(in);
+    if (index >= dictionary.length) throw new IOException("Unknown string " + index);
+    return dictionary[index];
+  }
+
+  private static int readVarInt(@NotNull final DataInputStream in) throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      final byte b = in.readByte();
+      result |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (result < 0) break;
+        return result;
+      }
+    }
+    throw new IOException("Malformed number");
+  }
+}
\ No newline at end of file
@@ -0,0 +1,427 @@
+
+package jetbrains.buildServer.usageStatistics.util;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.util.FileUtil;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tool usage storage kept in a memory-mapped file, so opening it does not depend on the number of usages
+ * and the usages are held by the OS page cache instead of the heap.
+ * <p>
+ * The rows file is an open addressing hash table of (tool index, user id, last seen) rows with linear probing,
+ * preceded by a header with the table capacity and the number of rows. The table is doubled into a new file
+ * of the next generation when it becomes too full, the header is written last, so a partially written table is ignored.
+ * Tool ids are kept in a small append-only dictionary file which is read on opening. The header also keeps the number
+ * of tool ids the rows may refer to, if the dictionary turns out to be shorter after a crash, the rows of the lost tool ids
+ * are removed on opening, so they are not taken for the usages of the tool ids added next.
+ * <p>
+ * Changes are visible in the file as soon as they are made, so they survive a crash of the server process.
+ * {@link #flush()} forces them to the disk.
+ * <p>
+ * The full scans do not hold the lock for the whole table, so they do not block the new usages for long:
+ * {@link #removeOlderThan(long)} releases it between chunks of rows and {@link #forEachUsage(UsageVisitor)} copies the rows out.
+ */
+public class MappedToolUsageStorage implements ToolUsageStorage {
+  @NotNull private static final Logger LOG = Logger.getLogger(MappedToolUsageStorage.class);
+
+  private static final int MAGIC = 0x5443554D; // "TCUM"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 32;
+  private static final int CAPACITY_OFFSET = 8;
+  private static final int SIZE_OFFSET = 12;
+  private static final int TOOLS_OFFSET = 16;
+
+  private static final int ROW_SIZE = 20;
+  private static final int TOOL_OFFSET = 0; // tool index + 1, 0 in an empty row
+  private static final int USER_OFFSET = 4;
+  private static final int LAST_SEEN_OFFSET = 12;
+
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int MAX_CAPACITY = 1 << 26; // the file stays below 2 GB
+  private static final double MAX_LOAD_FACTOR = 0.75;
+  private static final int SCAN_CHUNK = 4096; // rows
+
+  @NotNull private final File myDirectory;
+  @NotNull private final String myName;
+  @NotNull private final File myDictionaryFile;
+  @NotNull private final List<String> myTools = new ArrayList<String>(); // guarded by this
+  @NotNull private final Map<String, Integer> myToolIndices = new HashMap<String, Integer>(); // guarded by this
+  @NotNull private final DataOutputStream myDictionaryOut;
+
+  @NotNull private MappedByteBuffer myRows; // guarded by this
+  private int myCapacity; // guarded by this
+  private int mySize; // guarded by this
+  private long myGeneration; // guarded by this
+
+  public MappedToolUsageStorage(@NotNull final File directory, @NotNull final String name) throws IOException {
+    myDirectory = directory;
+    myName = name;
+    myDictionaryFile = new File(directory, name + ".tools");
+    myDictionaryOut = new DataOutputStream(new FileOutputStream(myDictionaryFile, true));
+    loadDictionary();
+
+    final File rowsFile = findRowsFile();
+    if (rowsFile == null) {
+      myGeneration = 1;
+      myRows = createTable(getRowsFile(myGeneration), INITIAL_CAPACITY, null);
+    }
+    else {
+      myRows = map(rowsFile, rowsFile.length());
+    }
+    myCapacity = myRows.getInt(CAPACITY_OFFSET);
+    mySize = myRows.getInt(SIZE_OFFSET);
+    removeUnknownTools();
+  }
+
+  /**
+   * @return true if the storage has been created in the directory
+   */
+  public static boolean exists(@NotNull final File directory, @NotNull final String name) {
+    return new File(directory, name + ".tools").isFile();
+  }
+
+  public synchronized void addUsage(@NotNull final String toolId, final long userId, final long timestamp) {
+    final int tool;
+    try {
+      tool = getToolIndex(toolId);
+    }
+    catch (final IOException e) {
+      LOG.warn("Failed to write the tool id to the \"" + myDictionaryFile.getAbsolutePath() + "\" file, the usage is ignored: " + e);
+      return;
+    }
+
+    int row = findRow(tool, userId);
+    if (row >= 0) {
+      if (getLastSeen(row) < timestamp) {
+        myRows.putLong(getOffset(row) + LAST_SEEN_OFFSET, timestamp);
+      }
+      return;
+    }
+    if (mySize + 1 > myCapacity * MAX_LOAD_FACTOR && myCapacity < MAX_CAPACITY) {
+      try {
+        grow();
+      }
+      catch (final IOException e) {
+        LOG.warn("Failed to grow the \"" + myName + "\" tool usages table, the usage is ignored: " + e);
+        return;
+      }
+      row = findRow(tool, userId);
+    }
+    if (mySize + 1 >= myCapacity) return; // the table is full
+    final int offset = getOffset(-row - 1);
+    myRows.putLong(offset + USER_OFFSET, userId);
+    myRows.putLong(offset + LAST_SEEN_OFFSET, timestamp);
+    myRows.putInt(offset + TOOL_OFFSET, tool + 1); // the row becomes visible after it is complete
+    setSize(mySize + 1);
+  }
+
+  public void removeOlderThan(final long threshold) {
+    int row = 0;
+    while (true) {
+      synchronized (this) {
+        if (row >= myCapacity) return;
+        final int end = Math.min(myCapacity, row + SCAN_CHUNK); // the table may have grown since the previous chunk
+        while (row < end) {
+          final int tool = getTool(row);
+          if (tool != 0 && (tool > myTools.size() || getLastSeen(row) <= threshold)) {
+            removeRow(row); // another row can be moved to this position, so it is checked again
+          }
+          else {
+            row++;
+          }
+        }
+      }
+    }
+  }
+
+  public void forEachUsage(@NotNull final UsageVisitor visitor) {
+    final String[] tools;
+    int[] rowTools;
+    long[] userIds;
+    long[] lastSeen;
+    int count = 0;
+    synchronized (this) {
+      tools = myTools.toArray(new String[myTools.size()]);
+      rowTools = new int[mySize];
+      userIds = new long[mySize];
+      lastSeen = new long[mySize];
+      for (int row = 0; row < myCapacity; row++) {
+        final int tool = getTool(row);
+        if (tool == 0 || tool > tools.length) continue; // the rows of unknown tools are removed by removeOlderThan
+        if (count == rowTools.length) { // the size is behind after a crash during an insertion
+          rowTools = Arrays.copyOf(rowTools, count * 2 + 1);
+          userIds = Arrays.copyOf(userIds, count * 2 + 1);
+          lastSeen = Arrays.copyOf(lastSeen, count * 2 + 1);
+        }
+        rowTools[count] = tool - 1;
+        userIds[count] = getUserId(row);
+        lastSeen[count] = getLastSeen(row);
+        count++;
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      visitor.visit(tools[rowTools[i]], userIds[i], lastSeen[i]);
+    }
+  }
+
+  /**
+   * Removes the files of the storage, the storage must not be used after that.
+   */
+  public synchronized void delete() {
+    try {
+      myDictionaryOut.close();
+    }
+    catch (final IOException ignore) {}
+    for (final File file : new File[] { getRowsFile(myGeneration), myDictionaryFile }) {
+      if (!file.delete()) {
+        LOG.warn("Failed to delete \"" + file.getAbsolutePath() + "\"");
+      }
+    }
+  }
+
+  public synchronized void flush() {
+    myRows.force();
+    try {
+      myDictionaryOut.flush();
+    }
+    catch (final IOException e) {
+      LOG.warn("Failed to flush the \"" + myDictionaryFile.getAbsolutePath() + "\" file: " + e);
+    }
+  }
+
+  /**
+   * @return row of the usage, or -(the empty row where it should be inserted) - 1
+   */
+  private int findRow(final int tool, final long userId) {
+    final int mask = myCapacity - 1;
+    int row = hash(tool, userId) & mask;
+    while (true) {
+      final int rowTool = getTool(row);
+      if (rowTool == 0) return -row - 1;
+      if (rowTool == tool + 1 && getUserId(row) == userId) return row;
+      row = (row + 1) & mask;
+    }
+  }
+
+  /**
+   * Removes the rows of the tool ids lost from the dictionary, so they are not taken for the usages of the tool ids added next.
+   */
+  private void removeUnknownTools() {
+    final int knownTools = myRows.getInt(TOOLS_OFFSET);
+    if (knownTools > myTools.size()) {
+      LOG.warn("The \"" + myDictionaryFile.getAbsolutePath() + "\" file lacks " + (knownTools - myTools.size()) + " tool id(s), their usages are dropped");
+      int row = 0;
+      while (row < myCapacity) {
+        if (getTool(row) > myTools.size()) {
+          removeRow(row);
+        }
+        else {
+          row++;
+        }
+      }
+    }
+    myRows.putInt(TOOLS_OFFSET, myTools.size());
+  }
+
+  /**
+   * Backward shift deletion: the following rows of the probe sequence are moved to the freed row unless
+   * they would be moved before their home row.
+   */
+  private void removeRow(int row) {
+    final int mask = myCapacity - 1;
+    int next = row;
+    while (true) {
+      next = (next + 1) & mask;
+      final int tool = getTool(next);
+      if (tool == 0) break;
+      final int home = hash(tool - 1, getUserId(next)) & mask;
+      final boolean stays = row <= next ? row < home && home <= next : row < home || home <= next;
+      if (stays) continue;
+      final int from = getOffset(next);
+      final int to = getOffset(row);
+      myRows.putLong(to + USER_OFFSET, myRows.getLong(from + USER_OFFSET));
+      myRows.putLong(to + LAST_SEEN_OFFSET, myRows.getLong(from + LAST_SEEN_OFFSET));
+      myRows.putInt(to + TOOL_OFFSET, tool);
+      row = next;
+    }
+    myRows.putInt(getOffset(row) + TOOL_OFFSET, 0);
+    setSize(mySize - 1);
+  }
+
+  private void grow() throws IOException {
+    final long generation = myGeneration + 1;
+    final File oldFile = getRowsFile(myGeneration);
+    myRows = createTable(getRowsFile(generation), myCapacity * 2, myRows);
+    myCapacity = myRows.getInt(CAPACITY_OFFSET);
+    myGeneration = generation;
+    if (!oldFile.delete()) {
+      LOG.debug("Failed to delete \"" + oldFile.getAbsolutePath() + "\", it will be deleted on the next opening");
+    }
+  }
+
+  /**
+   * Creates a table of the specified capacity with the rows of the source table.
+   */
+  @NotNull
+  private MappedByteBuffer createTable(@NotNull final File file, final int capacity, @Nullable final MappedByteBuffer source) throws IOException {
+    final MappedByteBuffer table = map(file, HEADER_SIZE + (long)capacity * ROW_SIZE);
+    int size = 0;
+    if (source != null) {
+      final int sourceCapacity = source.getInt(CAPACITY_OFFSET);
+      for (int sourceRow = 0; sourceRow < sourceCapacity; sourceRow++) {
+        final int sourceOffset = getOffset(sourceRow);
+        final int tool = source.getInt(sourceOffset + TOOL_OFFSET);
+        if (tool == 0) continue;
+        final long userId = source.getLong(sourceOffset + USER_OFFSET);
+        int row = hash(tool - 1, userId) & (capacity - 1);
+        while (table.getInt(getOffset(row) + TOOL_OFFSET) != 0) {
+          row = (row + 1) & (capacity - 1);
+        }
+        final int offset = getOffset(row);
+        table.putLong(offset + USER_OFFSET, userId);
+        table.putLong(offset + LAST_SEEN_OFFSET, source.getLong(sourceOffset + LAST_SEEN_OFFSET));
+        table.putInt(offset + TOOL_OFFSET, tool);
+        size++;
+      }
+    }
+    table.putInt(CAPACITY_OFFSET, capacity);
+    table.putInt(SIZE_OFFSET, size);
+    table.putInt(TOOLS_OFFSET, myTools.size());
+    table.putInt(4, VERSION);
+    table.force();
+    table.putInt(0, MAGIC);
+    table.force();
+    return table;
+  }
+
+  /**
+   * Finds the rows file of the latest generation with a complete header and deletes the others.
+   */
+  @Nullable
+  private File findRowsFile() {
+    final String prefix = myName + ".rows.";
+    final File[] files = myDirectory.listFiles((dir, fileName) -> fileName.startsWith(prefix));
+    if (files == null) return null;
+
+    File result = null;
+    for (final File file : files) {
+      final long generation;
+      try {
+        generation = Long.parseLong(file.getName().substring(prefix.length()));
+      }
+      catch (final NumberFormatException e) {
+        continue;
+      }
+      if (generation > myGeneration && isComplete(file)) {
+        result = file;
+        myGeneration = generation;
+      }
+    }
+    for (final File file : files) {
+      if (!file.equals(result)) {
+        FileUtil.delete(file);
+      }
+    }
+    return result;
+  }
+
+  private static boolean isComplete(@NotNull final File file) {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) return false;
+      final int capacity = in.readInt();
+      return Integer.bitCount(capacity) == 1 && capacity <= MAX_CAPACITY && file.length() == HEADER_SIZE + (long)capacity * ROW_SIZE;
+    }
+    catch (final IOException e) {
+      return false;
+    }
+  }
+
+  @NotNull
+  private static MappedByteBuffer map(@NotNull final File file, final long length) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length); // the mapping stays valid after the file is closed
+    }
+  }
+
+  @NotNull
+  private File getRowsFile(final long generation) {
+    return new File(myDirectory, myName + ".rows." + generation);
+  }
+
+  private int getToolIndex(@NotNull final String toolId) throws IOException {
+    final Integer index = myToolIndices.get(toolId);
+    if (index != null) return index;
+    final byte[] bytes = toolId.getBytes(StandardCharsets.UTF_8);
+    myDictionaryOut.writeInt(bytes.length);
+    myDictionaryOut.write(bytes);
+    myDictionaryOut.flush(); // the tool id must be in the file before a row refers to it
+    final int result = addTool(toolId);
+    myRows.putInt(TOOLS_OFFSET, myTools.size());
+    return result;
+  }
+
+  private int addTool(@NotNull final String toolId) {
+    final int index = myTools.size();
+    myTools.add(toolId);
+    myToolIndices.put(toolId, index);
+    return index;
+  }
+
+  private void loadDictionary() throws IOException {
+    long length = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myDictionaryFile)))) {
+      while (true) {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        addTool(new String(bytes, StandardCharsets.UTF_8));
+        length += 4 + bytes.length;
+      }
+    }
+    catch (final EOFException ignore) {}
+    try (RandomAccessFile raf = new RandomAccessFile(myDictionaryFile, "rw")) {
+      if (raf.length() != length) {
+        LOG.warn("The \"" + myDictionaryFile.getAbsolutePath() + "\" file ends with an incomplete tool id, it is dropped");
+        raf.setLength(length);
+      }
+    }
+  }
+
+  private void setSize(final int size) {
+    mySize = size;
+    myRows.putInt(SIZE_OFFSET, size);
+  }
+
+  private int getTool(final int row) {
+    return myRows.getInt(getOffset(row) + TOOL_OFFSET);
+  }
+
+  private long getUserId(final int row) {
+    return myRows.getLong(getOffset(row) + USER_OFFSET);
+  }
+
+  private long getLastSeen(final int row) {
+    return myRows.getLong(getOffset(row) + LAST_SEEN_OFFSET);
+  }
+
+  private static int getOffset(final int row) {
+    return HEADER_SIZE + row * ROW_SIZE;
+  }
+
+  private static int hash(final int tool, final long userId) {
+    long h = userId * 0x9E3779B97F4A7C15L + tool;
+    h ^= h >>> 32;
+    h *= 0xC2B2AE3D27D4EB4FL;
+    return (int)(h ^ h >>> 29);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,25 @@
+
+package jetbrains.buildServer.usageStatistics.util;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Keeps the time each user used each tool last time.
+ */
+public interface ToolUsageStorage {
+  /**
+   * Records the usage, the last seen time of the user is only moved forward.
+   */
+  void addUsage(@NotNull String toolId, long userId, long timestamp);
+
+  /**
+   * Removes the usages last seen at or before the threshold.
+   */
+  void removeOlderThan(long threshold);
+
+  void forEachUsage(@NotNull UsageVisitor visitor);
+
+  interface UsageVisitor {
+    void visit(@NotNull String toolId, long userId, long lastSeen);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,65 @@
+
+package jetbrains.buildServer.usageStatistics.util;
+
+import java.io.InputStream;
+import javax.xml.stream.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Helpers for reading the legacy plugin state files with StAX, so the state is never kept in memory as a document.
+ */
+public class XmlStreamUtil {
+  @NotNull private static final XMLInputFactory ourInputFactory = createInputFactory();
+
+  @NotNull
+  private static XMLInputFactory createInputFactory() {
+    final XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    return factory;
+  }
+
+  /**
+   * @return reader positioned at the start of the root element
+   */
+  @NotNull
+  public static XMLStreamReader createReader(@NotNull final InputStream in) throws XMLStreamException {
+    final XMLStreamReader reader = ourInputFactory.createXMLStreamReader(in);
+    while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+      if (!reader.hasNext()) throw new XMLStreamException("No root element");
+      reader.next();
+    }
+    return reader;
+  }
+
+  /**
+   * Moves the reader from the start of an element or the end of its previous child to the start of its next child.
+   * The caller must leave every child at its end, e.g. with {@link #skipElement(XMLStreamReader)}.
+   *
+   * @return false if the reader is moved to the end of the element instead
+   */
+  public static boolean nextChild(@NotNull final XMLStreamReader reader) throws XMLStreamException {
+    while (reader.hasNext()) {
+      final int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) return true;
+      if (event == XMLStreamConstants.END_ELEMENT) return false;
+    }
+    return false;
+  }
+
+  /**
+   * Moves the reader from the start of an element or the end of one of its children to the end of the element.
+   */
+  public static void skipElement(@NotNull final XMLStreamReader reader) throws XMLStreamException {
+    while (nextChild(reader)) {
+      skipElement(reader);
+    }
+  }
+
+  @Nullable
+  public static String getAttribute(@NotNull final XMLStreamReader reader, @NotNull final String name) {
+    return reader.getAttributeValue(null, name);
+  }
+}
\ No newline at end of file